@@ -0,0 +1,102 @@
+package io.github.tech0ver.ratelimiter;
+
+import io.github.tech0ver.ratelimiter.bucket.TokenBucketRateLimiter;
+import io.github.tech0ver.ratelimiter.metrics.InstrumentedRateLimiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of {@link InstrumentedRateLimiter} on a {@link TokenBucketRateLimiter} decision, with and without
+ * heavy hitters, over resources in cache (1000) and out of it (1000000), where it matters the least.
+ * <pre>
+ * gradle :benchmarks:jmh -Pjmh.includes='MetricsBenchmark'
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    @Param
+    public Instrumentation instrumentation;
+
+    @Param({"1000", "1000000"})
+    public int keys;
+
+    private MyRateLimiter limiter;
+    private String[] resources;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Mostly allowed
+        MyRateLimiter tokenBucket = new TokenBucketRateLimiter(
+                1_000_000, 1_000_000, Duration.ofSeconds(1), MyWatch.SYSTEM_NANO_TIME
+        );
+        limiter = instrumentation.create(tokenBucket);
+        resources = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            resources[i] = "resource-" + i;
+            limiter.isAllowed(resources[i]);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean threads_01() {
+        return isAllowed();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean threads_04() {
+        return isAllowed();
+    }
+
+    private boolean isAllowed() {
+        return limiter.isAllowed(resources[ThreadLocalRandom.current().nextInt(keys)]);
+    }
+
+    public enum Instrumentation {
+
+        NONE {
+            @Override
+            MyRateLimiter create(MyRateLimiter limiter) {
+                return limiter;
+            }
+        },
+        COUNTERS {
+            @Override
+            MyRateLimiter create(MyRateLimiter limiter) {
+                return new InstrumentedRateLimiter("benchmark", limiter);
+            }
+        },
+        HEAVY_HITTERS {
+            @Override
+            MyRateLimiter create(MyRateLimiter limiter) {
+                return new InstrumentedRateLimiter("benchmark", limiter, MyWatch.SYSTEM_NANO_TIME, 1_024);
+            }
+        };
+
+        abstract MyRateLimiter create(MyRateLimiter limiter);
+
+    }
+
+}
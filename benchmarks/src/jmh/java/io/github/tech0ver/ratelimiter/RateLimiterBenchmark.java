@@ -0,0 +1,259 @@
+package io.github.tech0ver.ratelimiter;
+
+import io.github.tech0ver.ratelimiter.bucket.CompositeRateLimiter;
+import io.github.tech0ver.ratelimiter.bucket.GcraRateLimiter;
+import io.github.tech0ver.ratelimiter.bucket.TokenBucketRateLimiter;
+import io.github.tech0ver.ratelimiter.window.CountMinSketchRateLimiter;
+import io.github.tech0ver.ratelimiter.window.FixedWindowCounterRateLimiter;
+import io.github.tech0ver.ratelimiter.window.SlidingWindowCounterRateLimiter;
+import io.github.tech0ver.ratelimiter.window.SlidingWindowLogRateLimiter;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MyRateLimiter#isAllowed(String)} of every implementation.
+ * <p>
+ * Throughput mode reports ops/us together with the {@code allowed} and {@code denied} rates,
+ * i.e. the actual allow/deny ratio of the run; sample time mode reports p99/p999 latency;
+ * the gc profiler reports the allocation rate ({@code gc.alloc.rate.norm}).
+ * <pre>
+ * gradle :benchmarks:jmh
+ * gradle :benchmarks:jmh -Pjmh.includes='RateLimiterBenchmark.threads_64'
+ * </pre>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class RateLimiterBenchmark {
+
+    @Param
+    public Algorithm algorithm;
+
+    // From a single hot key up to the per-IP cardinality
+    @Param({"1", "1000", "1000000", "10000000"})
+    public int keys;
+
+    // Per key per second, drives the allow/deny ratio together with the offered load
+    @Param({"1", "1000", "1000000"})
+    public int limit;
+
+    private MyRateLimiter limiter;
+    private String[] resources;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        limiter = algorithm.create(limit, Duration.ofSeconds(1), keys);
+        resources = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            resources[i] = "resource-" + i;
+            // Measure the steady state of existing resources, not their creation
+            limiter.isAllowed(resources[i]);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean threads_01(Cursor cursor, Decisions decisions) {
+        return isAllowed(cursor, decisions);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean threads_04(Cursor cursor, Decisions decisions) {
+        return isAllowed(cursor, decisions);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean threads_16(Cursor cursor, Decisions decisions) {
+        return isAllowed(cursor, decisions);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean threads_64(Cursor cursor, Decisions decisions) {
+        return isAllowed(cursor, decisions);
+    }
+
+    private boolean isAllowed(Cursor cursor, Decisions decisions) {
+        boolean allowed = limiter.isAllowed(resources[cursor.next(keys)]);
+        if (allowed) {
+            decisions.allowed++;
+        } else {
+            decisions.denied++;
+        }
+        return allowed;
+    }
+
+    public enum Algorithm {
+
+        TOKEN_BUCKET {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return new TokenBucketRateLimiter(limit, limit, window, MyWatch.SYSTEM_NANO_TIME);
+            }
+        },
+        TOKEN_BUCKET_OFF_HEAP {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return new TokenBucketRateLimiter(
+                        limit, limit, window, MyWatch.SYSTEM_NANO_TIME, new OffHeapLongStateTable(2 * keys)
+                );
+            }
+        },
+        TOKEN_BUCKET_HEAP {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return new TokenBucketRateLimiter(
+                        limit, limit, window, MyWatch.SYSTEM_NANO_TIME, new HeapLongStateTable(2 * keys)
+                );
+            }
+        },
+        GCRA {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return new GcraRateLimiter(limit, limit, window, MyWatch.SYSTEM_NANO_TIME);
+            }
+        },
+        GCRA_HEAP {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return new GcraRateLimiter(
+                        limit, limit, window, MyWatch.SYSTEM_NANO_TIME, new HeapLongStateTable(2 * keys)
+                );
+            }
+        },
+        COMPOSITE {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return new CompositeRateLimiter(List.of(
+                        CompositeRateLimiter.Limit.of(limit, window),
+                        CompositeRateLimiter.Limit.of(limit * 60L, window.multipliedBy(60)),
+                        CompositeRateLimiter.Limit.of(limit * 3600L, window.multipliedBy(3600))
+                ));
+            }
+        },
+        FIXED_WINDOW_COUNTER {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return new FixedWindowCounterRateLimiter(limit, window);
+            }
+        },
+        FIXED_WINDOW_COUNTER_HEAP {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return new FixedWindowCounterRateLimiter(
+                        limit, window, MyWatch.SYSTEM_NANO_TIME, new HeapLongStateTable(2 * keys)
+                );
+            }
+        },
+        SLIDING_WINDOW_LOG {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return new SlidingWindowLogRateLimiter(limit, window);
+            }
+        },
+        SLIDING_WINDOW_COUNTER_BUCKETED {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return SlidingWindowCounterRateLimiter.createBucketed(limit, window, 10);
+            }
+        },
+        SLIDING_WINDOW_COUNTER_LINEAR_INTERPOLATED {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return SlidingWindowCounterRateLimiter.createLinearInterpolated(limit, window);
+            }
+        },
+        SLIDING_WINDOW_COUNTER_LOCK_FREE_LINEAR_INTERPOLATED {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return SlidingWindowCounterRateLimiter.createLockFreeLinearInterpolated(limit, window);
+            }
+        },
+        SLIDING_WINDOW_COUNTER_LOCK_FREE_LINEAR_INTERPOLATED_OFF_HEAP {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return SlidingWindowCounterRateLimiter.createLockFreeLinearInterpolated(
+                        limit, window, MyWatch.SYSTEM_NANO_TIME, new OffHeapLongStateTable(2 * keys)
+                );
+            }
+        },
+        SLIDING_WINDOW_COUNTER_LOCK_FREE_LINEAR_INTERPOLATED_HEAP {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                return SlidingWindowCounterRateLimiter.createLockFreeLinearInterpolated(
+                        limit, window, MyWatch.SYSTEM_NANO_TIME, new HeapLongStateTable(2 * keys)
+                );
+            }
+        },
+        COUNT_MIN_SKETCH {
+            @Override
+            MyRateLimiter create(int limit, Duration window, int keys) {
+                // e / 2^16 of the permits of a window as overcount, with a probability of e^-4 at most
+                return new CountMinSketchRateLimiter(limit, window, 1 << 16, 4);
+            }
+        };
+
+        abstract MyRateLimiter create(int limit, Duration window, int keys);
+
+    }
+
+    /**
+     * Uniformly random resource per request, xorshift to keep the generator out of the profile.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private long seed;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            seed = ThreadLocalRandom.current().nextLong() | 1;
+        }
+
+        int next(int bound) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            return (int) (((seed >>> 32) * bound) >>> 32);
+        }
+
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Decisions {
+
+        public long allowed;
+        public long denied;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            allowed = 0;
+            denied = 0;
+        }
+
+    }
+
+}
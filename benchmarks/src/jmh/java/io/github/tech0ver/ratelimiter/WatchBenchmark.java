@@ -0,0 +1,136 @@
+package io.github.tech0ver.ratelimiter;
+
+import io.github.tech0ver.ratelimiter.bucket.TokenBucketRateLimiter;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MyWatch#SYSTEM_NANO_TIME} against {@link CachedWatch}: the throughput of reading the watch
+ * and of a {@link TokenBucketRateLimiter} decision, with the accuracy of the readings,
+ * i.e. {@code lagNanos / lagged} is the mean lag behind {@link System#nanoTime()} of the sampled readings.
+ * <pre>
+ * gradle :benchmarks:jmh -Pjmh.includes='WatchBenchmark'
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WatchBenchmark {
+
+    @Param({"SYSTEM_NANO_TIME", "CACHED_100_US", "CACHED_1_MS"})
+    public Watch watch;
+
+    private MyWatch myWatch;
+    private MyRateLimiter limiter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        myWatch = watch.create();
+        // Mostly allowed, a refill on almost every decision
+        limiter = new TokenBucketRateLimiter(1_000_000_000, 1_000_000_000, Duration.ofSeconds(1), myWatch);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (myWatch instanceof AutoCloseable) {
+            ((AutoCloseable) myWatch).close();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long currentTimeNanos_threads_01(Readings readings) {
+        return currentTimeNanos(readings);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long currentTimeNanos_threads_04(Readings readings) {
+        return currentTimeNanos(readings);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean isAllowed_threads_01() {
+        return limiter.isAllowed("resource");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean isAllowed_threads_04() {
+        return limiter.isAllowed("resource");
+    }
+
+    private long currentTimeNanos(Readings readings) {
+        long timeNanos = myWatch.currentTimeNanos();
+        // Sampled, not to measure the nano clock in every run
+        if ((++readings.readings & 1023) == 0) {
+            readings.lagNanos += System.nanoTime() - timeNanos;
+            readings.lagged++;
+        }
+        return timeNanos;
+    }
+
+    public enum Watch {
+
+        SYSTEM_NANO_TIME {
+            @Override
+            MyWatch create() {
+                return MyWatch.SYSTEM_NANO_TIME;
+            }
+        },
+        CACHED_100_US {
+            @Override
+            MyWatch create() {
+                return new CachedWatch(Duration.ofNanos(100_000));
+            }
+        },
+        CACHED_1_MS {
+            @Override
+            MyWatch create() {
+                return new CachedWatch(Duration.ofMillis(1));
+            }
+        };
+
+        abstract MyWatch create();
+
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Readings {
+
+        public long readings;
+        // Summed over the sampled readings, the mean lag is lagNanos / lagged
+        public long lagNanos;
+        public long lagged;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            readings = 0;
+            lagNanos = 0;
+            lagged = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,45 @@
+package io.github.tech0ver.ratelimiter;
+
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.function.LongConsumer;
+
+/**
+ * {@link MyRateLimiter#isAllowed(String[], BitSet)} of the limiters: every resource is checked before any decision,
+ * then the limiter sweeps once and decides on all of them at a single moment, through its {@link Decider}.
+ */
+public final class BatchDecisions {
+
+    private BatchDecisions() {
+    }
+
+    // O(R) decisions where R is the number of resources
+    public static void isAllowed(String[] resources, BitSet allowed, MyWatch watch, LongConsumer sweep,
+                                 Decider decider) {
+        Objects.requireNonNull(resources, "No resources");
+        Objects.requireNonNull(allowed, "No allowed");
+        for (String resource : resources) {
+            Objects.requireNonNull(resource, "No resource");
+        }
+        // A single moment for all the decisions
+        long nowNanos = watch.currentTimeNanos();
+        sweep.accept(nowNanos);
+        allowed.clear(0, resources.length);
+        for (int i = 0; i < resources.length; i++) {
+            if (decider.isAllowed(resources[i], 1, nowNanos)) {
+                allowed.set(i);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface Decider {
+
+        /**
+         * Same as {@link MyRateLimiter#isAllowed(String, long)} at the given moment, once swept.
+         */
+        boolean isAllowed(String resource, long permits, long nowNanos);
+
+    }
+
+}
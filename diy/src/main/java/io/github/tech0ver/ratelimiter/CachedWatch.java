@@ -0,0 +1,65 @@
+package io.github.tech0ver.ratelimiter;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coarse-grained watch, a background ticker reads the source every resolution
+ * and publishes the reading, so that reading this watch is a volatile read.
+ * <p>
+ * Readings lag behind the source by up to the resolution plus the ticker's scheduling delay:
+ * limiters still enforce their limits, but refills and windows are observed that much later.
+ */
+public final class CachedWatch implements MyWatch, AutoCloseable {
+
+    private final MyWatch source;
+    private final long resolutionNanos;
+    private final Thread ticker;
+    private volatile long timeNanos;
+    private volatile boolean closed;
+
+    public CachedWatch(Duration resolution) {
+        this(MyWatch.SYSTEM_NANO_TIME, resolution);
+    }
+
+    public CachedWatch(MyWatch source, Duration resolution) {
+        Objects.requireNonNull(source, "No source");
+        Objects.requireNonNull(resolution, "No resolution");
+        if (resolution.isNegative() || resolution.isZero()) throw new IllegalArgumentException("resolution must be > 0");
+        this.source = source;
+        this.resolutionNanos = resolution.toNanos();
+        this.timeNanos = source.currentTimeNanos();
+        this.ticker = new Thread(this::tick, "cached-watch-ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    // O(1)
+    @Override
+    public long currentTimeNanos() {
+        return timeNanos;
+    }
+
+    @Override
+    public void parkNanos(long nanos) {
+        source.parkNanos(nanos);
+    }
+
+    /**
+     * Stops the ticker, readings stay at the last published one.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(ticker);
+    }
+
+    private void tick() {
+        while (!closed) {
+            timeNanos = source.currentTimeNanos();
+            LockSupport.parkNanos(resolutionNanos);
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package io.github.tech0ver.ratelimiter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * {@link LongStateTable} in a single {@code long[]}: 16 bytes per slot like {@link OffHeapLongStateTable},
+ * but on the heap, so it's sized by {@code -Xmx} and freed with the limiter.
+ * Being a primitive array, it's a single object the collector never scans, whatever the number of keys,
+ * unlike a map retaining an entry, a resource string and a state object per key.
+ * <p>
+ * The slots are rounded up to a power of two; as with any open addressing,
+ * keep them at most 3/4 full for short probe sequences.
+ */
+public final class HeapLongStateTable extends LongStateTable {
+
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] words;
+    private final long seed;
+
+    /**
+     * Seeded at random, see {@link #seed()}.
+     */
+    public HeapLongStateTable(int slots) {
+        this(slots, randomSeed());
+    }
+
+    /**
+     * Seeded alike in every process restoring the snapshots of the others, see {@link #seed()}.
+     */
+    public HeapLongStateTable(int slots, long seed) {
+        super(slots);
+        // Zeroed, i.e. empty and unlocked
+        this.words = new long[words()];
+        this.seed = seed;
+    }
+
+    @Override
+    public long seed() {
+        return seed;
+    }
+
+    @Override
+    long getLong(int index) {
+        return (long) LONGS.getVolatile(words, index);
+    }
+
+    @Override
+    void setLong(int index, long value) {
+        LONGS.setVolatile(words, index, value);
+    }
+
+    @Override
+    boolean compareAndSetLong(int index, long expectedValue, long value) {
+        return LONGS.compareAndSet(words, index, expectedValue, value);
+    }
+
+}
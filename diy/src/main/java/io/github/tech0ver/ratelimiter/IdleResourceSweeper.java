@@ -0,0 +1,71 @@
+package io.github.tech0ver.ratelimiter;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Incremental eviction of per-resource state which can no longer affect a decision.
+ * <p>
+ * Each {@link #sweep(long)} visits a few entries, continuing where the previous one stopped,
+ * so a full pass over N resources is spread over O(N) decisions instead of a stop-the-world scan.
+ * A decision creates at most one resource but visits {@value #ENTRIES_PER_DECISION} on average,
+ * so the map stays proportional to the number of recently active resources.
+ */
+public final class IdleResourceSweeper<S> {
+
+    private static final int ENTRIES_PER_DECISION = 2;
+    // Sweep on 1 of 8 decisions only, to keep the sweeper's lock off the hot path
+    private static final int SWEEP_MASK = 7;
+    private static final int ENTRIES_PER_SWEEP = ENTRIES_PER_DECISION * (SWEEP_MASK + 1);
+
+    private final Map<String, S> stateByResource;
+    private final Evictor<S> evictor;
+    private final ReentrantLock lock;
+    private Iterator<String> cursor;
+
+    public IdleResourceSweeper(Map<String, S> stateByResource, Evictor<S> evictor) {
+        Objects.requireNonNull(stateByResource, "No stateByResource");
+        Objects.requireNonNull(evictor, "No evictor");
+        this.stateByResource = stateByResource;
+        this.evictor = evictor;
+        this.lock = new ReentrantLock();
+    }
+
+    // O(1)
+    public void sweep(long nowNanos) {
+        if ((ThreadLocalRandom.current().nextInt() & SWEEP_MASK) != 0) return;
+        // Somebody is already sweeping, no need to wait
+        if (lock.isLocked() || !lock.tryLock()) return;
+        try {
+            for (int i = 0; i < ENTRIES_PER_SWEEP; i++) {
+                // Start a new pass?
+                if (cursor == null || !cursor.hasNext()) {
+                    cursor = stateByResource.keySet().iterator();
+                    if (!cursor.hasNext()) return;
+                }
+                String resource = cursor.next();
+                S state = stateByResource.get(resource);
+                if (state != null) {
+                    evictor.evictIfIdle(resource, state, nowNanos);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @FunctionalInterface
+    public interface Evictor<S> {
+
+        /**
+         * Removes the state of the resource if it's idle, i.e. equivalent to a newly created one,
+         * and marks it so that threads still holding it retry with a fresh one.
+         */
+        void evictIfIdle(String resource, S state, long nowNanos);
+
+    }
+
+}
@@ -0,0 +1,374 @@
+package io.github.tech0ver.ratelimiter;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed-slot open-addressing table of 64-bit states keyed by {@link ResourceHash 64-bit hashes},
+ * an alternative to a map of per-resource objects for limiters whose state is a single word.
+ * <p>
+ * A slot is two words, the key and the state, probed linearly from the home slot of the key.
+ * The whole key is stored, so it doubles as the fingerprint verified on every lookup:
+ * resources share a slot only if their 64-bit hashes collide, hashes seeded by the table, see {@link #seed()}.
+ * Lookups and state updates are lock-free; claiming and freeing a slot take a spin lock striped by key,
+ * so a key never occupies two slots. A freed slot is left as a tombstone, reused by a later claim.
+ * A lock word holds its owner's pid and the second it was taken: a lock whose owner process is dead,
+ * or held for over {@value #LOCK_LEASE_SECONDS} seconds, is taken over, so a process killed while holding one
+ * doesn't block the others; an owner paused for that long may race with the next one.
+ * The table tracks how far from its home slot any key was ever claimed, and lookups stop probing there,
+ * so tombstones left by churn never lengthen a lookup beyond the longest probe sequence of a claim.
+ * <p>
+ * A claim probes at most {@value #MAX_PROBES} slots: a key finding none of them free gets {@link #NO_SLOT},
+ * and limiters deny it until the sweeper has evicted idle keys; keep the table at most 3/4 full,
+ * as with any open addressing, and that takes an unlucky key indeed.
+ * <p>
+ * Limiters mark a freed slot's state with their own "evicted" value, and recheck the key after reading the state.
+ * A thread that stalls for a whole eviction and reuse of its slot may still update the new key's state,
+ * if that state happens to equal the very value it read; it's as unlikely as it sounds.
+ */
+public abstract class LongStateTable {
+
+    /**
+     * No free slot for the key within {@value #MAX_PROBES} of its home slot.
+     */
+    public static final int NO_SLOT = -1;
+    public static final int MAX_PROBES = 64;
+
+    // Key words, hashes equal to them are remapped
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = 1;
+    private static final long CLAIMING = 2;
+    private static final long FIRST_KEY = 3;
+
+    static final int LOCK_STRIPES = 1024;
+    // Held for a single probe sequence, i.e. microseconds
+    static final int LOCK_LEASE_SECONDS = 10;
+    // Spins between checks whether the owner is gone
+    private static final int LOCK_SPINS = 1024;
+    private static final long PID = ProcessHandle.current().pid();
+    // Words: size, max displacement, lock stripes, then key and state of every slot
+    private static final int SIZE = 0;
+    private static final int MAX_DISPLACEMENT = 1;
+    static final int FIRST_LOCK = 2;
+    private static final int FIRST_SLOT = FIRST_LOCK + LOCK_STRIPES;
+
+    private static final SecureRandom SEEDS = new SecureRandom();
+
+    private static final int ENTRIES_PER_DECISION = 2;
+    // Sweep on 1 of 8 decisions only, to keep the sweeper's lock off the hot path
+    private static final int SWEEP_MASK = 7;
+    private static final int ENTRIES_PER_SWEEP = ENTRIES_PER_DECISION * (SWEEP_MASK + 1);
+
+    private final int slots;
+    private final int mask;
+    private final ReentrantLock sweepLock;
+    private int cursor;
+
+    LongStateTable(int slots) {
+        if (slots <= 0 || slots > maxSlots()) throw new IllegalArgumentException("slots must be in (0, " + maxSlots() + "]");
+        // Power of two, to hash by masking
+        this.slots = Math.max(1, Integer.highestOneBit(slots - 1) << 1);
+        this.mask = this.slots - 1;
+        this.sweepLock = new ReentrantLock();
+    }
+
+    // Keeps the memory within 2^31 bytes
+    static int maxSlots() {
+        return 1 << 26;
+    }
+
+    int words() {
+        return FIRST_SLOT + 2 * slots;
+    }
+
+    /**
+     * Secret seed for {@link ResourceHash hashes}, for any structure keyed by them.
+     */
+    public static long randomSeed() {
+        return SEEDS.nextLong();
+    }
+
+    /**
+     * Seed of the {@link ResourceHash hashes} of the keys, secret unless shared on purpose:
+     * an attacker knowing it could pick resources whose hashes collide, and deny a victim its own limit.
+     * A snapshot of key hashes is restored only by a table of the same seed.
+     */
+    public abstract long seed();
+
+    // O(L) where L is the length of the resource
+    public long hash(CharSequence resource) {
+        return ResourceHash.of(resource, seed());
+    }
+
+    // O(L) where L is the length of the resource
+    public long hash(byte[] resource, int offset, int length) {
+        return ResourceHash.of(resource, offset, length, seed());
+    }
+
+    // O(L) where L is the length of the resource
+    public long hash(ByteBuffer resource) {
+        return ResourceHash.of(resource, seed());
+    }
+
+    abstract long getLong(int index);
+
+    abstract void setLong(int index, long value);
+
+    abstract boolean compareAndSetLong(int index, long expectedValue, long value);
+
+    /**
+     * Slot of the key, claimed with the initial state if the key is absent.
+     *
+     * @return the slot, or {@link #NO_SLOT} if the key is absent and there is no free slot for it
+     */
+    // O(1) expected, lock-free unless absent
+    public int slot(long keyHash, long initialState) {
+        long key = key(keyHash);
+        int slot = home(key);
+        // No key lies further from its home slot, tombstones or not
+        long maxDisplacement = getLong(MAX_DISPLACEMENT);
+        for (int displacement = 0; displacement <= maxDisplacement; displacement++) {
+            long slotKey = getLong(keyIndex(slot));
+            if (slotKey == key) return slot;
+            if (slotKey == EMPTY) break;
+            slot = (slot + 1) & mask;
+        }
+        return claim(keyHash, initialState);
+    }
+
+    /**
+     * Same as {@link #slot(long, long)} but waits for a concurrent claim or removal of the key,
+     * so it's the one to look a key up again once its slot is observed removed.
+     *
+     * @return the slot, or {@link #NO_SLOT} if the key is absent and there is no free slot for it
+     */
+    // O(1) expected
+    public int claim(long keyHash, long initialState) {
+        long key = key(keyHash);
+        int lock = lockIndex(key);
+        long owner = lock(lock);
+        try {
+            while (true) {
+                int free = -1;
+                long freeKey = EMPTY;
+                int freeDisplacement = 0;
+                long maxDisplacement = getLong(MAX_DISPLACEMENT);
+                int slot = home(key);
+                for (int displacement = 0; displacement < Math.min(slots, MAX_PROBES); displacement++) {
+                    long slotKey = getLong(keyIndex(slot));
+                    if (slotKey == key) return slot;
+                    if ((slotKey == TOMBSTONE || slotKey == EMPTY) && free < 0) {
+                        free = slot;
+                        freeKey = slotKey;
+                        freeDisplacement = displacement;
+                    }
+                    // End of the chain, or no key lies further: the key is absent
+                    if (slotKey == EMPTY || (free >= 0 && displacement >= maxDisplacement)) break;
+                    slot = (slot + 1) & mask;
+                }
+                if (free < 0) return NO_SLOT;
+                // Not claimed for another key in the meantime?
+                if (compareAndSetLong(keyIndex(free), freeKey, CLAIMING)) {
+                    // Before the key is published, so lookups that see the key probe far enough
+                    maxLong(MAX_DISPLACEMENT, freeDisplacement);
+                    // Published along with the key
+                    setLong(stateIndex(free), initialState);
+                    setLong(keyIndex(free), key);
+                    addLong(SIZE, 1);
+                    return free;
+                }
+            }
+        } finally {
+            unlock(lock, owner);
+        }
+    }
+
+    /**
+     * Sets the state of the key, claiming a slot if the key is absent or its slot is observed removed.
+     *
+     * @return false if the key is absent and there is no free slot for it
+     */
+    // O(1) expected
+    public boolean put(long keyHash, long state, long removedState) {
+        int slot = slot(keyHash, state);
+        while (true) {
+            if (slot == NO_SLOT) return false;
+            long slotState = state(slot);
+            if (slotState == removedState || !holds(slot, keyHash)) {
+                slot = claim(keyHash, state);
+                continue;
+            }
+            if (compareAndSet(slot, slotState, state)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Key hash the slot holds, or 0 if it holds none.
+     * A hash equal to a reserved key word comes back remapped, which maps to the same slot anyway.
+     */
+    // O(1)
+    public long keyHash(int slot) {
+        long key = getLong(keyIndex(slot));
+        return isKey(key) ? key : EMPTY;
+    }
+
+    // O(1)
+    public boolean holds(int slot, long keyHash) {
+        return getLong(keyIndex(slot)) == key(keyHash);
+    }
+
+    // O(1)
+    public long state(int slot) {
+        return getLong(stateIndex(slot));
+    }
+
+    // O(1)
+    public boolean compareAndSet(int slot, long expectedState, long state) {
+        return compareAndSetLong(stateIndex(slot), expectedState, state);
+    }
+
+    /**
+     * Frees the slot if it still holds the key in the expected state,
+     * leaving the removed state for threads that still hold the slot.
+     */
+    // O(1)
+    public boolean remove(int slot, long keyHash, long expectedState, long removedState) {
+        long key = key(keyHash);
+        int lock = lockIndex(key);
+        long owner = lock(lock);
+        try {
+            if (getLong(keyIndex(slot)) != key || !compareAndSetLong(stateIndex(slot), expectedState, removedState)) {
+                return false;
+            }
+            setLong(keyIndex(slot), TOMBSTONE);
+            addLong(SIZE, -1);
+            return true;
+        } finally {
+            unlock(lock, owner);
+        }
+    }
+
+    /**
+     * Incremental eviction, like {@link IdleResourceSweeper#sweep(long)}, visiting slots instead of resources.
+     */
+    // O(1)
+    public void sweep(long nowNanos, Evictor evictor) {
+        if ((ThreadLocalRandom.current().nextInt() & SWEEP_MASK) != 0) return;
+        // Somebody is already sweeping, no need to wait
+        if (sweepLock.isLocked() || !sweepLock.tryLock()) return;
+        try {
+            for (int i = 0; i < ENTRIES_PER_SWEEP; i++) {
+                int slot = cursor;
+                cursor = (cursor + 1) & mask;
+                long key = getLong(keyIndex(slot));
+                if (isKey(key)) {
+                    evictor.evictIfIdle(slot, key, state(slot), nowNanos);
+                }
+            }
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+    public int size() {
+        return (int) getLong(SIZE);
+    }
+
+    public int slots() {
+        return slots;
+    }
+
+    // Longest probe sequence of a lookup, for tests
+    int maxDisplacement() {
+        return (int) getLong(MAX_DISPLACEMENT);
+    }
+
+    private int home(long key) {
+        return (int) key & mask;
+    }
+
+    private static long key(long keyHash) {
+        return keyHash >= EMPTY && keyHash < FIRST_KEY ? keyHash + FIRST_KEY : keyHash;
+    }
+
+    private static boolean isKey(long key) {
+        return key != EMPTY && key != TOMBSTONE && key != CLAIMING;
+    }
+
+    private static int lockIndex(long key) {
+        // High bits, the low ones pick the home slot
+        return FIRST_LOCK + (int) (key >>> 54) % LOCK_STRIPES;
+    }
+
+    private static int keyIndex(int slot) {
+        return FIRST_SLOT + 2 * slot;
+    }
+
+    private static int stateIndex(int slot) {
+        return FIRST_SLOT + 2 * slot + 1;
+    }
+
+    // Returns the owner word to unlock with
+    long lock(int index) {
+        for (int spins = 1; ; spins++) {
+            long owner = getLong(index);
+            if (owner == 0 || (spins % LOCK_SPINS == 0 && isAbandoned(owner))) {
+                long newOwner = owner(PID, epochSeconds());
+                if (compareAndSetLong(index, owner, newOwner)) {
+                    return newOwner;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private void unlock(int index, long owner) {
+        // Unless taken over meanwhile
+        compareAndSetLong(index, owner, 0);
+    }
+
+    static long owner(long pid, long epochSeconds) {
+        return (pid << 32) | (epochSeconds & 0xFFFF_FFFFL);
+    }
+
+    private static long epochSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private static boolean isAbandoned(long owner) {
+        long pid = owner >>> 32;
+        // Seconds wrap around every 136 years
+        int heldSeconds = (int) epochSeconds() - (int) owner;
+        return heldSeconds > LOCK_LEASE_SECONDS
+                || pid != PID && !ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+    }
+
+    private void addLong(int index, long delta) {
+        long value;
+        do {
+            value = getLong(index);
+        } while (!compareAndSetLong(index, value, value + delta));
+    }
+
+    private void maxLong(int index, long value) {
+        long current;
+        do {
+            current = getLong(index);
+        } while (current < value && !compareAndSetLong(index, current, value));
+    }
+
+    @FunctionalInterface
+    public interface Evictor {
+
+        /**
+         * Removes the slot of the key if it's idle, see {@link #remove(int, long, long, long)}.
+         */
+        void evictIfIdle(int slot, long keyHash, long state, long nowNanos);
+
+    }
+
+}
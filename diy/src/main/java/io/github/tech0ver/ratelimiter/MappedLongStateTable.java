@@ -0,0 +1,88 @@
+package io.github.tech0ver.ratelimiter;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * {@link LongStateTable} in a memory-mapped file, so that the limiters of every process mapping the same file,
+ * e.g. the workers of a host, share their state and enforce a single limit together.
+ * Every update is a CAS on the mapped memory, there is no I/O on the decision path.
+ * <p>
+ * The processes must configure their limiters alike, and their watches must agree on the time:
+ * {@link MyWatch#SYSTEM_NANO_TIME} does on Linux, where it's the system-wide monotonic clock.
+ * The {@link #seed() seed} is drawn at random by whoever creates the file, and kept in it.
+ * A process killed in the middle of claiming or freeing a slot leaves a lock stripe locked until another process
+ * takes it over, see {@link LongStateTable}, and may leave the slot it was claiming unusable;
+ * delete the file once every process has stopped to start over.
+ */
+public final class MappedLongStateTable extends LongStateTable {
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final long MAGIC = 0x52_4C_30_76_65_72_00_03L;
+    // Words: magic, slots, seed, then the table
+    private static final int HEADER_WORDS = 3;
+
+    private final MappedByteBuffer buffer;
+    private final long seed;
+
+    /**
+     * Maps the file, creating an empty table unless it exists.
+     *
+     * @throws IllegalArgumentException if the file holds a different table
+     */
+    public MappedLongStateTable(Path file, int slots) throws IOException {
+        super(slots);
+        Objects.requireNonNull(file, "No file");
+        try (FileChannel channel = FileChannel.open(
+                file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        )) {
+            // Grows the file with zeros, i.e. empty and unlocked, whoever comes first;
+            // stays mapped once the channel is closed
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) (HEADER_WORDS + words()) * Long.BYTES);
+        }
+        long existingMagic = compareAndExchangeHeader(0, MAGIC);
+        if (existingMagic != 0 && existingMagic != MAGIC) {
+            throw new IllegalArgumentException("file holds no table");
+        }
+        long existingSlots = compareAndExchangeHeader(1, slots());
+        if (existingSlots != 0 && existingSlots != slots()) {
+            throw new IllegalArgumentException("file holds " + existingSlots + " slots");
+        }
+        // Never 0, which tells a file nobody has seeded yet
+        long seed = randomSeed() | 1;
+        long existingSeed = compareAndExchangeHeader(2, seed);
+        this.seed = existingSeed != 0 ? existingSeed : seed;
+    }
+
+    @Override
+    public long seed() {
+        return seed;
+    }
+
+    @Override
+    long getLong(int index) {
+        return (long) LONGS.getVolatile(buffer, (HEADER_WORDS + index) * Long.BYTES);
+    }
+
+    @Override
+    void setLong(int index, long value) {
+        LONGS.setVolatile(buffer, (HEADER_WORDS + index) * Long.BYTES, value);
+    }
+
+    @Override
+    boolean compareAndSetLong(int index, long expectedValue, long value) {
+        return LONGS.compareAndSet(buffer, (HEADER_WORDS + index) * Long.BYTES, expectedValue, value);
+    }
+
+    private long compareAndExchangeHeader(int index, long value) {
+        return (long) LONGS.compareAndExchange(buffer, index * Long.BYTES, 0L, value);
+    }
+
+}
@@ -1,7 +1,94 @@
 package io.github.tech0ver.ratelimiter;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Objects;
+
 public interface MyRateLimiter {
 
-    boolean isAllowed(String resource);
+    default boolean isAllowed(String resource) {
+        return isAllowed(resource, 1);
+    }
+
+    /**
+     * Takes all the permits at once or none of them.
+     */
+    boolean isAllowed(String resource, long permits);
+
+    /**
+     * Same as {@link #isAllowed(String, long)} of the characters, e.g. of a reused {@link StringBuilder}.
+     * Limiters keeping resources by {@link ResourceHash hash} decide without building a {@link String},
+     * the ones keeping them in a map build one per call.
+     */
+    default boolean isAllowed(CharSequence resource, long permits) {
+        Objects.requireNonNull(resource, "No resource");
+        return isAllowed(resource.toString(), permits);
+    }
+
+    /**
+     * Same as {@link #isAllowed(String, long)} of the UTF-8 bytes, e.g. of a header value straight off the wire.
+     * Limiters keeping resources by {@link ResourceHash hash} decide without decoding them,
+     * the ones keeping them in a map decode them into a {@link String} per call.
+     * The bytes must be valid UTF-8: malformed ones decode to replacement characters but hash as they are,
+     * so they need not decide as the {@link String} they decode to.
+     */
+    default boolean isAllowed(byte[] resource, int offset, int length, long permits) {
+        Objects.requireNonNull(resource, "No resource");
+        return isAllowed(new String(resource, offset, length, StandardCharsets.UTF_8), permits);
+    }
+
+    /**
+     * Same as {@link #isAllowed(byte[], int, int, long)} of the remaining bytes, the position is left untouched.
+     */
+    default boolean isAllowed(ByteBuffer resource, long permits) {
+        Objects.requireNonNull(resource, "No resource");
+        return isAllowed(StandardCharsets.UTF_8.decode(resource.duplicate()).toString(), permits);
+    }
+
+    /**
+     * Decides on every resource as separate calls would, and sets the bit of each allowed one.
+     * The limiters of this library observe a single moment for all of them, see {@link BatchDecisions};
+     * this default makes the separate calls, each at its own moment.
+     */
+    default void isAllowed(String[] resources, BitSet allowed) {
+        Objects.requireNonNull(resources, "No resources");
+        Objects.requireNonNull(allowed, "No allowed");
+        allowed.clear(0, resources.length);
+        for (int i = 0; i < resources.length; i++) {
+            if (isAllowed(resources[i])) {
+                allowed.set(i);
+            }
+        }
+    }
+
+    /**
+     * Binds the resource, so that repeated decisions on it can skip the lookup.
+     */
+    default Handle handle(String resource) {
+        Objects.requireNonNull(resource, "No resource");
+        return permits -> isAllowed(resource, permits);
+    }
+
+    /**
+     * Number of resources the limiter keeps state for, i.e. its footprint; -1 unless it keeps track.
+     */
+    default int numberOfResources() {
+        return -1;
+    }
+
+    @FunctionalInterface
+    interface Handle {
+
+        default boolean tryAcquire() {
+            return tryAcquire(1);
+        }
+
+        /**
+         * Same as {@link MyRateLimiter#isAllowed(String, long)} of the bound resource.
+         */
+        boolean tryAcquire(long permits);
+
+    }
 
-}
\ No newline at end of file
+}
@@ -1,9 +1,18 @@
 package io.github.tech0ver.ratelimiter;
 
+import java.util.concurrent.locks.LockSupport;
+
 public interface MyWatch {
 
     MyWatch SYSTEM_NANO_TIME = System::nanoTime;
 
     long currentTimeNanos();
 
+    /**
+     * Parks the current thread for about the given nanos of this watch, it may return earlier.
+     */
+    default void parkNanos(long nanos) {
+        LockSupport.parkNanos(nanos);
+    }
+
 }
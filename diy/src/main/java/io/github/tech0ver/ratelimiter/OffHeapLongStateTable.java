@@ -0,0 +1,59 @@
+package io.github.tech0ver.ratelimiter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link LongStateTable} in a direct buffer: 16 bytes per slot, i.e. under 32 bytes per key
+ * while at most half full, and no garbage whatever the number of keys.
+ * <p>
+ * The slots are rounded up to a power of two; as with any open addressing,
+ * keep them at most 3/4 full for short probe sequences.
+ */
+public final class OffHeapLongStateTable extends LongStateTable {
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer buffer;
+    private final long seed;
+
+    /**
+     * Seeded at random, see {@link #seed()}.
+     */
+    public OffHeapLongStateTable(int slots) {
+        this(slots, randomSeed());
+    }
+
+    /**
+     * Seeded alike in every process restoring the snapshots of the others, see {@link #seed()}.
+     */
+    public OffHeapLongStateTable(int slots, long seed) {
+        super(slots);
+        // Zeroed, i.e. empty and unlocked; page aligned, i.e. every word is aligned for atomic access
+        this.buffer = ByteBuffer.allocateDirect(words() * Long.BYTES);
+        this.seed = seed;
+    }
+
+    @Override
+    public long seed() {
+        return seed;
+    }
+
+    @Override
+    long getLong(int index) {
+        return (long) LONGS.getVolatile(buffer, index * Long.BYTES);
+    }
+
+    @Override
+    void setLong(int index, long value) {
+        LONGS.setVolatile(buffer, index * Long.BYTES, value);
+    }
+
+    @Override
+    boolean compareAndSetLong(int index, long expectedValue, long value) {
+        return LONGS.compareAndSet(buffer, index * Long.BYTES, expectedValue, value);
+    }
+
+}
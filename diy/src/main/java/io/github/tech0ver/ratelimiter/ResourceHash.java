@@ -0,0 +1,137 @@
+package io.github.tech0ver.ratelimiter;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * 64-bit hash of a resource, over its UTF-8 bytes encoded on the fly, so it takes no allocation.
+ * The bytes themselves hash the same, so a resource straight off the wire needs no decoding.
+ * Only valid UTF-8 is supported: malformed bytes hash as they are, not as the replacement characters
+ * they decode to, while a lone surrogate hashes as the {@code '?'} it encodes to.
+ * <p>
+ * Keyed by a seed: the bytes are the coefficients of a polynomial evaluated modulo the prime {@code 2^61 - 1}
+ * at a point derived from the seed, followed by the MurmurHash3 finalizer, which spreads every bit over the hash.
+ * Two distinct resources of up to {@code L} bytes collide at {@code L} points at most, so without the seed
+ * nobody can tell which resources collide, let alone pick them; that takes a secret seed,
+ * see {@link LongStateTable#seed()}.
+ * <p>
+ * Resources whose hashes collide alias, i.e. share their state, with a probability of about
+ * {@code n^2 * L / 2^62} among {@code n} resources.
+ */
+public final class ResourceHash {
+
+    // Mersenne prime, so reducing modulo it takes a shift and an add
+    private static final long PRIME = (1L << 61) - 1;
+
+    private ResourceHash() {
+    }
+
+    /**
+     * Same as {@link #of(CharSequence, long)} with a seed of 0, which anybody can predict.
+     */
+    // O(L) where L is the length of the resource
+    public static long of(CharSequence resource) {
+        return of(resource, 0);
+    }
+
+    // O(L) where L is the length of the resource
+    public static long of(CharSequence resource, long seed) {
+        Objects.requireNonNull(resource, "No resource");
+        long point = point(seed);
+        long hash = 1;
+        int length = resource.length();
+        for (int i = 0; i < length; i++) {
+            char c = resource.charAt(i);
+            if (c < 0x80) {
+                hash = next(hash, point, c);
+            } else if (c < 0x800) {
+                hash = next(hash, point, 0xc0 | (c >> 6));
+                hash = next(hash, point, 0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(resource.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, resource.charAt(++i));
+                hash = next(hash, point, 0xf0 | (codePoint >> 18));
+                hash = next(hash, point, 0x80 | ((codePoint >> 12) & 0x3f));
+                hash = next(hash, point, 0x80 | ((codePoint >> 6) & 0x3f));
+                hash = next(hash, point, 0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Malformed, encoded as '?' just like String.getBytes(UTF_8)
+                hash = next(hash, point, '?');
+            } else {
+                hash = next(hash, point, 0xe0 | (c >> 12));
+                hash = next(hash, point, 0x80 | ((c >> 6) & 0x3f));
+                hash = next(hash, point, 0x80 | (c & 0x3f));
+            }
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Same as {@link #of(byte[], int, int, long)} with a seed of 0, which anybody can predict.
+     */
+    // O(L) where L is the length of the resource
+    public static long of(byte[] resource, int offset, int length) {
+        return of(resource, offset, length, 0);
+    }
+
+    /**
+     * Same as {@link #of(CharSequence, long)} of the UTF-8 bytes, as long as they are valid UTF-8.
+     */
+    // O(L) where L is the length of the resource
+    public static long of(byte[] resource, int offset, int length, long seed) {
+        Objects.requireNonNull(resource, "No resource");
+        Objects.checkFromIndexSize(offset, length, resource.length);
+        long point = point(seed);
+        long hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = next(hash, point, resource[i] & 0xff);
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Same as {@link #of(ByteBuffer, long)} with a seed of 0, which anybody can predict.
+     */
+    // O(L) where L is the length of the resource
+    public static long of(ByteBuffer resource) {
+        return of(resource, 0);
+    }
+
+    /**
+     * Same as {@link #of(CharSequence, long)} of the remaining UTF-8 bytes, the position is left untouched.
+     */
+    // O(L) where L is the length of the resource
+    public static long of(ByteBuffer resource, long seed) {
+        Objects.requireNonNull(resource, "No resource");
+        long point = point(seed);
+        long hash = 1;
+        for (int i = resource.position(); i < resource.limit(); i++) {
+            hash = next(hash, point, resource.get(i) & 0xff);
+        }
+        return mix(hash);
+    }
+
+    // In [2, 2^60), any point but 0 and 1 will do
+    private static long point(long seed) {
+        return (mix(seed) >>> 4) | 2;
+    }
+
+    // Horner's rule: hash * point + b, modulo the prime; the leading 1 tells apart resources padded with zeros
+    private static long next(long hash, long point, int b) {
+        long low = hash * point;
+        long high = Math.multiplyHigh(hash, point);
+        // 2^61 = 1 modulo the prime, so the bits above 61 add to the ones below
+        long next = (low & PRIME) + ((high << 3) | (low >>> 61)) + b;
+        next = (next & PRIME) + (next >>> 61);
+        return next >= PRIME ? next - PRIME : next;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
@@ -0,0 +1,182 @@
+package io.github.tech0ver.ratelimiter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Reads a snapshot written by a {@link SnapshotWriter}, one record at a time:
+ * <pre>
+ * while (reader.next()) {
+ *     long keyHash = reader.keyHash(table.seed());
+ *     long timeNanos = reader.readNanos();
+ * }
+ * </pre>
+ * Reads ahead of the snapshot, so it should be the rest of the stream.
+ */
+public final class SnapshotReader {
+
+    private final InputStream in;
+    private final long nowNanos;
+    private final long keySeed;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    private String resource;
+    private long keyHash;
+
+    /**
+     * @param limiter       kind of limiter the snapshot must be of
+     * @param configuration of the limiter the snapshot must be of
+     * @param nowNanos      moment of the restore, other moments are read relative to it
+     * @throws IllegalArgumentException if the stream holds no snapshot of the limiter so configured
+     */
+    public SnapshotReader(InputStream in, String limiter, long[] configuration, long nowNanos) throws IOException {
+        this.in = Objects.requireNonNull(in, "No in");
+        Objects.requireNonNull(limiter, "No limiter");
+        Objects.requireNonNull(configuration, "No configuration");
+        this.nowNanos = nowNanos;
+        this.buffer = new byte[SnapshotWriter.BUFFER_SIZE];
+        if (readInt() != SnapshotWriter.MAGIC) {
+            throw new IllegalArgumentException("stream holds no snapshot");
+        }
+        int version = readByte();
+        if (version != SnapshotWriter.VERSION) {
+            throw new IllegalArgumentException("stream holds a snapshot of version " + version);
+        }
+        String snapshotLimiter = readString();
+        if (!limiter.equals(snapshotLimiter)) {
+            throw new IllegalArgumentException("stream holds a snapshot of " + snapshotLimiter);
+        }
+        long[] snapshotConfiguration = readConfiguration();
+        if (!Arrays.equals(configuration, snapshotConfiguration)) {
+            throw new IllegalArgumentException(
+                    "stream holds a snapshot of a limiter configured with " + Arrays.toString(snapshotConfiguration)
+            );
+        }
+        this.keySeed = readLong64();
+    }
+
+    /**
+     * Moves to the next record, false at the end of the snapshot.
+     */
+    public boolean next() throws IOException {
+        int tag = readByte();
+        switch (tag) {
+            case SnapshotWriter.END:
+                resource = null;
+                return false;
+            case SnapshotWriter.RESOURCE:
+                resource = readString();
+                return true;
+            case SnapshotWriter.KEY_HASH:
+                resource = null;
+                keyHash = readLong64();
+                return true;
+            default:
+                throw new StreamCorruptedException("Unknown record " + tag);
+        }
+    }
+
+    /**
+     * Resource of the record, null if it was written by its hash only.
+     */
+    public String resource() {
+        return resource;
+    }
+
+    /**
+     * Same as {@link #resource()} for limiters keeping resources by name.
+     *
+     * @throws IllegalArgumentException if the record was written by its hash only
+     */
+    public String requireResource() {
+        if (resource == null) throw new IllegalArgumentException("snapshot holds key hashes only");
+        return resource;
+    }
+
+    /**
+     * Key hash of the record for a table of the seed: its resource hashed with the seed,
+     * or the key hash written, seeded alike.
+     *
+     * @throws IllegalArgumentException if the key hash was written with another seed
+     */
+    public long keyHash(long seed) {
+        if (resource != null) return ResourceHash.of(resource, seed);
+        if (seed != keySeed) throw new IllegalArgumentException("snapshot holds key hashes of another seed");
+        return keyHash;
+    }
+
+    public long readLong() throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            int b = readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    public long readNanos() throws IOException {
+        return nowNanos + readLong();
+    }
+
+    private long[] readConfiguration() throws IOException {
+        long length = readLong();
+        // Far more than any limiter has
+        if (length < 0 || length > 1024) throw new StreamCorruptedException("Malformed configuration");
+        long[] configuration = new long[(int) length];
+        for (int i = 0; i < configuration.length; i++) {
+            configuration[i] = readLong();
+        }
+        return configuration;
+    }
+
+    private String readString() throws IOException {
+        long length = readLong();
+        if (length < 0 || length > SnapshotWriter.MAX_STRING_BYTES) {
+            throw new StreamCorruptedException("Malformed string");
+        }
+        byte[] bytes = new byte[(int) length];
+        int read = 0;
+        while (read < bytes.length) {
+            if (position == limit) {
+                fillBuffer();
+            }
+            int count = Math.min(bytes.length - read, limit - position);
+            System.arraycopy(buffer, position, bytes, read, count);
+            position += count;
+            read += count;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long readLong64() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFF_FFFFL);
+    }
+
+    private int readInt() throws IOException {
+        return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    private int readByte() throws IOException {
+        if (position == limit) {
+            fillBuffer();
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private void fillBuffer() throws IOException {
+        int read = in.read(buffer);
+        if (read <= 0) throw new EOFException("Truncated snapshot");
+        position = 0;
+        limit = read;
+    }
+
+}
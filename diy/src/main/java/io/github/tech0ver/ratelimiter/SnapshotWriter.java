@@ -0,0 +1,147 @@
+package io.github.tech0ver.ratelimiter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Streams a snapshot of a limiter's resources, one record at a time, for a {@link SnapshotReader}:
+ * <pre>
+ * | magic (4 bytes) | version (1 byte) | limiter (string) | configuration | key seed (8 bytes) | record* | end |
+ * configuration: | count (varint) | value (varint)* |
+ * record: | tag (1 byte) | resource (string) or key hash (8 bytes) | value (varint)* |
+ * string: | length (varint) | UTF-8 bytes, at most 1 MiB |
+ * end: | 0 (1 byte) |
+ * </pre>
+ * The configuration is the limiter's, e.g. its limit and window, so that states are only restored by a limiter
+ * that reads them alike. Key hashes are only meaningful with the seed of their table, so they come with it.
+ * Values are zigzag varints, so small counts and offsets take a byte or two.
+ * Watches of different processes don't share their origin, so moments are written relative to the snapshot,
+ * and read relative to the restore: the time in between doesn't count as elapsed,
+ * the restored limits are as strict as they were when snapshotted.
+ */
+public final class SnapshotWriter {
+
+    static final int MAGIC = 0x524C_534E;
+    static final int VERSION = 4;
+    static final int END = 0;
+    static final int RESOURCE = 1;
+    static final int KEY_HASH = 2;
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int MAX_STRING_BYTES = 1 << 20;
+
+    private final OutputStream out;
+    private final long nowNanos;
+    // Buffered here rather than by a BufferedOutputStream, which locks on every write
+    private final byte[] buffer;
+    private int position;
+
+    /**
+     * Same as {@link #SnapshotWriter(OutputStream, String, long[], long, long)} of resources written by name only.
+     */
+    public SnapshotWriter(OutputStream out, String limiter, long[] configuration, long nowNanos) throws IOException {
+        this(out, limiter, configuration, 0, nowNanos);
+    }
+
+    /**
+     * @param limiter       kind of limiter, checked by the reader
+     * @param configuration of the limiter, checked by the reader
+     * @param keySeed       {@link LongStateTable#seed() seed} of the key hashes written
+     * @param nowNanos      moment of the snapshot, other moments are written relative to it
+     */
+    public SnapshotWriter(OutputStream out, String limiter, long[] configuration, long keySeed, long nowNanos)
+            throws IOException {
+        this.out = Objects.requireNonNull(out, "No out");
+        Objects.requireNonNull(limiter, "No limiter");
+        Objects.requireNonNull(configuration, "No configuration");
+        this.nowNanos = nowNanos;
+        this.buffer = new byte[BUFFER_SIZE];
+        writeInt(MAGIC);
+        writeByte(VERSION);
+        writeString(limiter);
+        writeLong(configuration.length);
+        for (long value : configuration) {
+            writeLong(value);
+        }
+        writeInt((int) (keySeed >>> 32));
+        writeInt((int) keySeed);
+    }
+
+    /**
+     * Starts a record of the resource.
+     *
+     * @throws IllegalArgumentException if the resource is longer than 1 MiB in UTF-8
+     */
+    public void resource(String resource) throws IOException {
+        writeByte(RESOURCE);
+        writeString(resource);
+    }
+
+    /**
+     * Starts a record of a resource known by its {@link ResourceHash hash} only, seeded by the key seed.
+     */
+    public void keyHash(long keyHash) throws IOException {
+        writeByte(KEY_HASH);
+        writeInt((int) (keyHash >>> 32));
+        writeInt((int) keyHash);
+    }
+
+    public void writeLong(long value) throws IOException {
+        // Zigzag, so that small negative values are short too
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            writeByte((int) (zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        writeByte((int) zigzag);
+    }
+
+    public void writeNanos(long timeNanos) throws IOException {
+        writeLong(timeNanos - nowNanos);
+    }
+
+    /**
+     * Ends the snapshot and flushes the stream, leaving it open.
+     */
+    public void finish() throws IOException {
+        writeByte(END);
+        flushBuffer();
+        out.flush();
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) throw new IllegalArgumentException("string must be <= 1 MiB");
+        writeLong(bytes.length);
+        if (bytes.length > buffer.length - position) {
+            flushBuffer();
+        }
+        if (bytes.length > buffer.length) {
+            out.write(bytes);
+        } else {
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        writeByte(value >>> 24);
+        writeByte(value >>> 16);
+        writeByte(value >>> 8);
+        writeByte(value);
+    }
+
+    private void writeByte(int value) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+}
@@ -0,0 +1,30 @@
+package io.github.tech0ver.ratelimiter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A limiter whose state can be carried over, e.g. across a restart or to another process,
+ * so that the resources keep their limits instead of starting afresh.
+ */
+public interface SnapshottableRateLimiter extends MyRateLimiter {
+
+    /**
+     * Writes the state of the active resources as a compact {@link SnapshotWriter binary snapshot},
+     * to be restored by a limiter of the same kind and configuration, possibly in another process.
+     * Decisions go on meanwhile, each resource is captured as of some moment during the snapshot.
+     * The stream is flushed, not closed.
+     */
+    void snapshot(OutputStream out) throws IOException;
+
+    /**
+     * Restores the resources of a snapshot, replacing their current state.
+     * Meant for a limiter not taking decisions yet: those made on a restored resource during the restore may be lost.
+     * A limiter keeping its state in a {@link LongStateTable} drops the resources it has no free slot for.
+     *
+     * @throws IllegalArgumentException if the stream holds no snapshot of this kind of limiter
+     */
+    void restore(InputStream in) throws IOException;
+
+}
\ No newline at end of file
@@ -0,0 +1,143 @@
+package io.github.tech0ver.ratelimiter;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel: a timeout goes into the bucket of its tick modulo the wheel size,
+ * and a single timer thread visits one bucket per tick, running the timeouts that are due.
+ * <p>
+ * Scheduling is O(1) and lock-free, the buckets are touched by the timer thread only.
+ * A task runs at or after its deadline, at most a tick later; tasks due on the same tick
+ * run in the order of their deadlines. The timer thread lives only while there are pending timeouts.
+ */
+public final class TimerWheel {
+
+    private final MyWatch watch;
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    // Handed over to the timer thread on its next tick
+    private final Queue<Timeout> scheduled;
+    private final AtomicInteger pending;
+    private final AtomicBoolean running;
+
+    public TimerWheel(MyWatch watch, Duration tick, int wheelSize) {
+        Objects.requireNonNull(watch, "No watch");
+        Objects.requireNonNull(tick, "No tick");
+        if (tick.isNegative() || tick.isZero()) throw new IllegalArgumentException("tick must be > 0");
+        if (wheelSize <= 0 || wheelSize > 1 << 30) throw new IllegalArgumentException("wheelSize must be in (0, 2^30]");
+        this.watch = watch;
+        this.tickNanos = tick.toNanos();
+        // Power of two, to hash by masking
+        this.buckets = new Timeout[Math.max(1, Integer.highestOneBit(wheelSize - 1) << 1)];
+        this.mask = buckets.length - 1;
+        this.scheduled = new ConcurrentLinkedQueue<>();
+        this.pending = new AtomicInteger();
+        this.running = new AtomicBoolean();
+    }
+
+    /**
+     * Runs the task on the timer thread once the watch reaches the deadline,
+     * so the task must be short and must not throw.
+     */
+    // O(1)
+    public void schedule(long deadlineNanos, Runnable task) {
+        Objects.requireNonNull(task, "No task");
+        // Counted first, the timer thread must not stop with it in the queue
+        pending.incrementAndGet();
+        scheduled.add(new Timeout(deadlineNanos, task));
+        // Nobody ticking?
+        if (!running.get() && running.compareAndSet(false, true)) {
+            Thread timer = new Thread(this::tick, "rate-limiter-timer");
+            timer.setDaemon(true);
+            timer.start();
+        }
+    }
+
+    int pending() {
+        return pending.get();
+    }
+
+    private void tick() {
+        List<Timeout> due = new ArrayList<>();
+        long tick = Math.floorDiv(watch.currentTimeNanos(), tickNanos);
+        while (true) {
+            transferScheduled(tick);
+            expire(tick, due);
+            // Nothing left, stop unless something got scheduled in the meantime and nobody took over
+            if (pending.get() == 0) {
+                running.set(false);
+                if (pending.get() == 0 || !running.compareAndSet(false, true)) return;
+            }
+            tick++;
+            // Catch up without parking if behind
+            long remainingNanos;
+            while ((remainingNanos = tick * tickNanos - watch.currentTimeNanos()) > 0) {
+                watch.parkNanos(remainingNanos);
+            }
+        }
+    }
+
+    // O(S) where S is the number of timeouts scheduled since the previous tick
+    private void transferScheduled(long tick) {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            // Never before its deadline, already due ones on this tick
+            timeout.tick = Math.max(-Math.floorDiv(-timeout.deadlineNanos, tickNanos), tick);
+            int index = (int) (timeout.tick & mask);
+            timeout.next = buckets[index];
+            buckets[index] = timeout;
+        }
+    }
+
+    // O(B) where B is the number of timeouts in the bucket, due ones or a round later
+    private void expire(long tick, List<Timeout> due) {
+        int index = (int) (tick & mask);
+        Timeout remaining = null;
+        for (Timeout timeout = buckets[index], next; timeout != null; timeout = next) {
+            next = timeout.next;
+            if (timeout.tick <= tick) {
+                due.add(timeout);
+            } else {
+                timeout.next = remaining;
+                remaining = timeout;
+            }
+        }
+        buckets[index] = remaining;
+        if (due.isEmpty()) return;
+        due.sort(Comparator.comparingLong(timeout -> timeout.deadlineNanos));
+        for (Timeout timeout : due) {
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+        pending.addAndGet(-due.size());
+        due.clear();
+    }
+
+    private static final class Timeout {
+
+        final long deadlineNanos;
+        final Runnable task;
+        long tick;
+        Timeout next;
+
+        Timeout(long deadlineNanos, Runnable task) {
+            this.deadlineNanos = deadlineNanos;
+            this.task = task;
+        }
+
+    }
+
+}
@@ -0,0 +1,307 @@
+package io.github.tech0ver.ratelimiter.bucket;
+
+import io.github.tech0ver.ratelimiter.BatchDecisions;
+import io.github.tech0ver.ratelimiter.IdleResourceSweeper;
+import io.github.tech0ver.ratelimiter.MyWatch;
+import io.github.tech0ver.ratelimiter.SnapshotReader;
+import io.github.tech0ver.ratelimiter.SnapshotWriter;
+import io.github.tech0ver.ratelimiter.SnapshottableRateLimiter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Several limits on the same resource at once, e.g. 10 per second and 500 per minute and 10k per day,
+ * each one a token bucket as in {@link TokenBucketRateLimiter}: {@code limit} tokens refilled over the period.
+ * <p>
+ * The buckets of a resource are a single record, i.e. a single lookup and a single monitor per decision,
+ * and the permits are taken from all of them or none: a limit denying the permits doesn't cost the others anything,
+ * unlike limiters chained one after another.
+ */
+public class CompositeRateLimiter implements SnapshottableRateLimiter {
+
+    // Keep room for the arithmetic on nanos, it is ~73 years anyway
+    private static final long MAX_NANOS = Long.MAX_VALUE >> 2;
+    private static final String SNAPSHOT = "CompositeTokenBucket";
+
+    // O(N) where N is the number of recently active resources
+    private final Map<String, Buckets> bucketsByResource;
+    private final IdleResourceSweeper<Buckets> sweeper;
+    private final MyWatch watch;
+    // Per limit, rounded up to whole nanos like TokenBucketRateLimiter does
+    private final long[] nanosPerToken;
+    private final long[] fillNanos;
+    // Permits fitting into every bucket
+    private final long capacity;
+
+    public CompositeRateLimiter(List<Limit> limits) {
+        this(limits, MyWatch.SYSTEM_NANO_TIME);
+    }
+
+    public CompositeRateLimiter(List<Limit> limits, MyWatch watch) {
+        Objects.requireNonNull(limits, "No limits");
+        if (limits.isEmpty()) throw new IllegalArgumentException("limits must not be empty");
+        Objects.requireNonNull(watch, "No watch");
+        this.watch = watch;
+        this.nanosPerToken = new long[limits.size()];
+        this.fillNanos = new long[limits.size()];
+        long capacity = Long.MAX_VALUE;
+        for (int i = 0; i < limits.size(); i++) {
+            Limit limit = Objects.requireNonNull(limits.get(i), "No limit");
+            nanosPerToken[i] = limit.nanosPerToken();
+            // Checked by the limit, it fits
+            fillNanos[i] = limit.limit * nanosPerToken[i];
+            capacity = Math.min(capacity, limit.limit);
+        }
+        this.capacity = capacity;
+        this.bucketsByResource = new ConcurrentHashMap<>();
+        this.sweeper = new IdleResourceSweeper<>(bucketsByResource, this::evictIfIdle);
+    }
+
+    // O(L) where L is the number of limits
+    @Override
+    public boolean isAllowed(String resource, long permits) {
+        Objects.requireNonNull(resource, "No resource");
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+        long nowNanos = watch.currentTimeNanos();
+        sweeper.sweep(nowNanos);
+        return isAllowed(resource, buckets(resource, nowNanos), permits, nowNanos);
+    }
+
+    // O(R * L) where R is the number of resources, L is the number of limits
+    @Override
+    public void isAllowed(String[] resources, BitSet allowed) {
+        BatchDecisions.isAllowed(
+                resources, allowed, watch, sweeper::sweep,
+                (resource, permits, nowNanos) -> isAllowed(resource, buckets(resource, nowNanos), permits, nowNanos)
+        );
+    }
+
+    /**
+     * Binds the buckets of the resource, stale ones are looked up again once evicted.
+     */
+    @Override
+    public Handle handle(String resource) {
+        Objects.requireNonNull(resource, "No resource");
+        return new BucketsHandle(resource, buckets(resource, watch.currentTimeNanos()));
+    }
+
+    /**
+     * Writes the moment each bucket is empty, leaving out the resources with all of them full.
+     */
+    // O(N * L) where N is the number of recently active resources, L is the number of limits
+    @Override
+    public void snapshot(OutputStream out) throws IOException {
+        Objects.requireNonNull(out, "No out");
+        long nowNanos = watch.currentTimeNanos();
+        SnapshotWriter writer = new SnapshotWriter(out, SNAPSHOT, configuration(), nowNanos);
+        long[] emptyNanos = new long[fillNanos.length];
+        for (Map.Entry<String, Buckets> entry : bucketsByResource.entrySet()) {
+            Buckets buckets = entry.getValue();
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (buckets) {
+                if (buckets.evicted || isIdle(buckets, nowNanos)) continue;
+                System.arraycopy(buckets.emptyNanos, 0, emptyNanos, 0, emptyNanos.length);
+            }
+            writer.resource(entry.getKey());
+            for (long bucketEmptyNanos : emptyNanos) {
+                writer.writeNanos(bucketEmptyNanos);
+            }
+        }
+        writer.finish();
+    }
+
+    // O(S * L) where S is the number of resources in the snapshot, L is the number of limits
+    @Override
+    public void restore(InputStream in) throws IOException {
+        Objects.requireNonNull(in, "No in");
+        SnapshotReader reader = new SnapshotReader(in, SNAPSHOT, configuration(), watch.currentTimeNanos());
+        while (reader.next()) {
+            String resource = reader.requireResource();
+            // As many as the limits, the configuration matched
+            Buckets buckets = new Buckets(fillNanos.length);
+            for (int i = 0; i < fillNanos.length; i++) {
+                buckets.emptyNanos[i] = reader.readNanos();
+            }
+            Buckets replaced = bucketsByResource.put(resource, buckets);
+            if (replaced != null) {
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized (replaced) {
+                    // Threads and handles holding it look the resource up again
+                    replaced.evicted = true;
+                }
+            }
+        }
+    }
+
+    // O(L) where L is the number of limits
+    private boolean isAllowed(String resource, Buckets buckets, long permits, long nowNanos) {
+        // Would never fit into the smallest bucket
+        if (permits > capacity) {
+            return false;
+        }
+        while (true) {
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (buckets) {
+                // Not evicted in the meantime?
+                if (!buckets.evicted) {
+                    long[] emptyNanos = buckets.emptyNanos;
+                    // Check them all before taking from any
+                    for (int i = 0; i < emptyNanos.length; i++) {
+                        if (nextEmptyNanos(i, emptyNanos[i], permits, nowNanos) > nowNanos) {
+                            return false;
+                        }
+                    }
+                    for (int i = 0; i < emptyNanos.length; i++) {
+                        emptyNanos[i] = nextEmptyNanos(i, emptyNanos[i], permits, nowNanos);
+                    }
+                    return true;
+                }
+            }
+            buckets = buckets(resource, nowNanos);
+        }
+    }
+
+    private long nextEmptyNanos(int limit, long emptyNanos, long permits, long nowNanos) {
+        // Refill, never above the limit
+        return Math.max(emptyNanos, nowNanos - fillNanos[limit]) + permits * nanosPerToken[limit];
+    }
+
+    // Get or create buckets
+    private Buckets buckets(String resource, long nowNanos) {
+        return bucketsByResource.computeIfAbsent(resource, k -> {
+            Buckets buckets = new Buckets(fillNanos.length);
+            for (int i = 0; i < fillNanos.length; i++) {
+                buckets.emptyNanos[i] = nowNanos - fillNanos[i];
+            }
+            return buckets;
+        });
+    }
+
+    // Checked on restore, states are only meaningful to a limiter configured alike
+    private long[] configuration() {
+        long[] configuration = new long[2 * fillNanos.length];
+        for (int i = 0; i < fillNanos.length; i++) {
+            configuration[2 * i] = fillNanos[i];
+            configuration[2 * i + 1] = nanosPerToken[i];
+        }
+        return configuration;
+    }
+
+    @Override
+    public int numberOfResources() {
+        return bucketsByResource.size();
+    }
+
+    private void evictIfIdle(String resource, Buckets buckets, long nowNanos) {
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (buckets) {
+            if (!buckets.evicted && isIdle(buckets, nowNanos)) {
+                buckets.evicted = true;
+                bucketsByResource.remove(resource, buckets);
+            }
+        }
+    }
+
+    // Full buckets are indistinguishable from new ones
+    private boolean isIdle(Buckets buckets, long nowNanos) {
+        for (int i = 0; i < fillNanos.length; i++) {
+            if (nowNanos - buckets.emptyNanos[i] < fillNanos[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * At most {@code limit} permits per period.
+     */
+    public static final class Limit {
+
+        private final long limit;
+        private final Duration period;
+
+        private Limit(long limit, Duration period) {
+            this.limit = limit;
+            this.period = period;
+        }
+
+        public static Limit of(long limit, Duration period) {
+            if (limit <= 0) throw new IllegalArgumentException("limit must be > 0");
+            Objects.requireNonNull(period, "No period");
+            if (period.isNegative() || period.isZero()) throw new IllegalArgumentException("period must be > 0");
+            Limit checked = new Limit(limit, period);
+            // At most a token per nano, whole nanos per token
+            if (limit > period.toNanos()) throw new IllegalArgumentException("limit must be <= period nanos");
+            if (limit > MAX_NANOS / checked.nanosPerToken()) {
+                throw new IllegalArgumentException("limit must be refilled within ~73 years");
+            }
+            return checked;
+        }
+
+        public long limit() {
+            return limit;
+        }
+
+        public Duration period() {
+            return period;
+        }
+
+        // Rounded up to whole nanos like TokenBucketRateLimiter does
+        long nanosPerToken() {
+            long periodNanos = period.toNanos();
+            return periodNanos / limit + (periodNanos % limit != 0 ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return limit + "/" + period;
+        }
+
+    }
+
+    private static final class Buckets {
+
+        // Per limit, the moment the bucket was (or would have been) empty
+        final long[] emptyNanos;
+        volatile boolean evicted;
+
+        Buckets(int limits) {
+            this.emptyNanos = new long[limits];
+        }
+
+    }
+
+    private final class BucketsHandle implements Handle {
+
+        private final String resource;
+        private volatile Buckets buckets;
+
+        BucketsHandle(String resource, Buckets buckets) {
+            this.resource = resource;
+            this.buckets = buckets;
+        }
+
+        // O(L) where L is the number of limits
+        @Override
+        public boolean tryAcquire(long permits) {
+            if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+            long nowNanos = watch.currentTimeNanos();
+            sweeper.sweep(nowNanos);
+            Buckets buckets = this.buckets;
+            if (buckets.evicted) {
+                this.buckets = buckets = buckets(resource, nowNanos);
+            }
+            return isAllowed(resource, buckets, permits, nowNanos);
+        }
+
+    }
+
+}
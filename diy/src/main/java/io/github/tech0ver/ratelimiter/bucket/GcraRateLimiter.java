@@ -0,0 +1,414 @@
+package io.github.tech0ver.ratelimiter.bucket;
+
+import io.github.tech0ver.ratelimiter.BatchDecisions;
+import io.github.tech0ver.ratelimiter.IdleResourceSweeper;
+import io.github.tech0ver.ratelimiter.LongStateTable;
+import io.github.tech0ver.ratelimiter.MyWatch;
+import io.github.tech0ver.ratelimiter.SnapshotReader;
+import io.github.tech0ver.ratelimiter.SnapshotWriter;
+import io.github.tech0ver.ratelimiter.SnapshottableRateLimiter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <a href="https://en.wikipedia.org/wiki/Generic_cell_rate_algorithm">Generic Cell Rate Algorithm</a>:
+ * the state of a resource is a single word, its theoretical arrival time (TAT), i.e. the moment
+ * all the permits taken so far would have been spaced by the emission interval {@code refillPeriod / refillTokens}.
+ * Permits arriving at {@code now} are allowed if the TAT they'd move to is at most {@code capacity} intervals ahead,
+ * which is the burst tolerance, so the policy is the same as {@link TokenBucketRateLimiter}'s,
+ * with its {@code emptyNanos} being {@code TAT - capacity * interval}.
+ * <p>
+ * The TAT tells how long denied permits have to wait, see {@link #tryAcquire(String, long)}.
+ * Being a single word updated by CAS, it can be kept in a {@link LongStateTable}, e.g. a plain {@code long[]}
+ * of a {@link io.github.tech0ver.ratelimiter.HeapLongStateTable}.
+ */
+public class GcraRateLimiter implements SnapshottableRateLimiter {
+
+    // Never a real moment, a TAT with it was removed from the map
+    private static final long EVICTED = Long.MIN_VALUE;
+    // Keep room for the arithmetic on nanos, it is ~73 years anyway
+    private static final long MAX_NANOS = Long.MAX_VALUE >> 2;
+    private static final String SNAPSHOT = "Gcra";
+
+    // O(N) where N is the number of recently active resources, unless kept in the table
+    private final Map<String, Tat> tatByResource;
+    private final IdleResourceSweeper<Tat> sweeper;
+    private final LongStateTable table;
+    private final LongStateTable.Evictor evictor;
+    private final MyWatch watch;
+    private final long capacity;
+    // Emission interval, rounded up to whole nanos: exact for usual rates, slightly stricter otherwise
+    private final long intervalNanos;
+    // Burst tolerance, how far ahead of now the TAT may be
+    private final long toleranceNanos;
+
+    public GcraRateLimiter(long capacity, Duration refillPeriod) {
+        this(capacity, refillPeriod, MyWatch.SYSTEM_NANO_TIME);
+    }
+
+    public GcraRateLimiter(long capacity, Duration refillPeriod, MyWatch watch) {
+        this(capacity, 1, refillPeriod, watch);
+    }
+
+    public GcraRateLimiter(long capacity, long refillTokens, Duration refillPeriod, MyWatch watch) {
+        this(null, capacity, refillTokens, refillPeriod, watch);
+    }
+
+    /**
+     * Keeps the TATs in the table, which must not be shared with another limiter.
+     * A resource the full table has no slot for is denied, see {@link LongStateTable#NO_SLOT}.
+     */
+    public GcraRateLimiter(long capacity, long refillTokens, Duration refillPeriod, MyWatch watch,
+                           LongStateTable table) {
+        this(Objects.requireNonNull(table, "No table"), capacity, refillTokens, refillPeriod, watch);
+    }
+
+    private GcraRateLimiter(LongStateTable table, long capacity, long refillTokens, Duration refillPeriod,
+                            MyWatch watch) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+        if (refillTokens <= 0) throw new IllegalArgumentException("refillTokens must be > 0");
+        Objects.requireNonNull(refillPeriod, "No refillPeriod");
+        Objects.requireNonNull(watch, "No watch");
+        this.watch = watch;
+        long refillNanos = refillPeriod.toNanos();
+        // At most a token per nano, whole nanos per token
+        if (refillTokens > refillNanos) {
+            throw new IllegalArgumentException("refillTokens must be <= refillPeriod nanos");
+        }
+        this.intervalNanos = refillNanos / refillTokens + (refillNanos % refillTokens != 0 ? 1 : 0);
+        if (capacity > MAX_NANOS / intervalNanos) {
+            throw new IllegalArgumentException("capacity must be refilled within ~73 years");
+        }
+        this.toleranceNanos = capacity * intervalNanos;
+        this.capacity = capacity;
+        this.tatByResource = new ConcurrentHashMap<>();
+        this.sweeper = new IdleResourceSweeper<>(tatByResource, this::evictIfIdle);
+        this.table = table;
+        this.evictor = this::evictIfIdle;
+    }
+
+    // O(1)
+    @Override
+    public boolean isAllowed(String resource, long permits) {
+        return tryAcquire(resource, permits) == 0;
+    }
+
+    /**
+     * Takes the permits if allowed, otherwise takes nothing and tells how long until they would be allowed,
+     * e.g. for a {@code Retry-After} header. Exact, unless other decisions on the resource take permits meanwhile.
+     *
+     * @return 0 if allowed, the nanos to wait otherwise, {@link Long#MAX_VALUE} if the permits never fit
+     * or the full table has no slot for the resource
+     */
+    // O(1)
+    public long tryAcquire(String resource, long permits) {
+        Objects.requireNonNull(resource, "No resource");
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+        long nowNanos = watch.currentTimeNanos();
+        sweep(nowNanos);
+        return tryAcquire(resource, permits, nowNanos);
+    }
+
+    // O(R) where R is the number of resources
+    @Override
+    public void isAllowed(String[] resources, BitSet allowed) {
+        BatchDecisions.isAllowed(resources, allowed, watch, this::sweep, this::isAllowed);
+    }
+
+    /**
+     * Binds the TAT of the resource, a stale one is looked up again once evicted.
+     */
+    @Override
+    public Handle handle(String resource) {
+        Objects.requireNonNull(resource, "No resource");
+        long nowNanos = watch.currentTimeNanos();
+        if (table != null) {
+            long keyHash = table.hash(resource);
+            return new SlotHandle(keyHash, table.slot(keyHash, nowNanos));
+        }
+        return new TatHandle(resource, tat(resource, nowNanos));
+    }
+
+    /**
+     * By the hash of the characters when kept in the table, no {@link String} is built.
+     */
+    // O(L) where L is the length of the resource
+    @Override
+    public boolean isAllowed(CharSequence resource, long permits) {
+        if (table == null) return SnapshottableRateLimiter.super.isAllowed(resource, permits);
+        return isAllowed(table.hash(resource), permits);
+    }
+
+    /**
+     * By the hash of the bytes when kept in the table, nothing is decoded.
+     */
+    // O(L) where L is the length of the resource
+    @Override
+    public boolean isAllowed(byte[] resource, int offset, int length, long permits) {
+        if (table == null) return SnapshottableRateLimiter.super.isAllowed(resource, offset, length, permits);
+        return isAllowed(table.hash(resource, offset, length), permits);
+    }
+
+    /**
+     * By the hash of the remaining bytes when kept in the table, nothing is decoded.
+     */
+    // O(L) where L is the length of the resource
+    @Override
+    public boolean isAllowed(ByteBuffer resource, long permits) {
+        if (table == null) return SnapshottableRateLimiter.super.isAllowed(resource, permits);
+        return isAllowed(table.hash(resource), permits);
+    }
+
+    // O(1), same as isAllowed(String, long) of a resource in the table
+    private boolean isAllowed(long keyHash, long permits) {
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+        long nowNanos = watch.currentTimeNanos();
+        sweep(nowNanos);
+        return tryAcquire(keyHash, table.slot(keyHash, nowNanos), permits, nowNanos) == 0;
+    }
+
+    /**
+     * Writes the TAT of each resource, leaving out the ones at full burst.
+     */
+    // O(N) where N is the number of recently active resources, or the slots of the table
+    @Override
+    public void snapshot(OutputStream out) throws IOException {
+        Objects.requireNonNull(out, "No out");
+        long nowNanos = watch.currentTimeNanos();
+        SnapshotWriter writer = new SnapshotWriter(
+                out, SNAPSHOT, configuration(), table != null ? table.seed() : 0, nowNanos
+        );
+        if (table != null) {
+            for (int slot = 0; slot < table.slots(); slot++) {
+                long keyHash = table.keyHash(slot);
+                long tatNanos = table.state(slot);
+                // Freed or claimed for another key in the meantime?
+                if (keyHash == 0 || tatNanos == EVICTED || !table.holds(slot, keyHash)) continue;
+                if (!isIdle(tatNanos, nowNanos)) {
+                    writer.keyHash(keyHash);
+                    writer.writeNanos(tatNanos);
+                }
+            }
+        } else {
+            for (Map.Entry<String, Tat> entry : tatByResource.entrySet()) {
+                long tatNanos = entry.getValue().nanos;
+                if (tatNanos != EVICTED && !isIdle(tatNanos, nowNanos)) {
+                    writer.resource(entry.getKey());
+                    writer.writeNanos(tatNanos);
+                }
+            }
+        }
+        writer.finish();
+    }
+
+    // O(S) where S is the number of resources in the snapshot
+    @Override
+    public void restore(InputStream in) throws IOException {
+        Objects.requireNonNull(in, "No in");
+        SnapshotReader reader = new SnapshotReader(in, SNAPSHOT, configuration(), watch.currentTimeNanos());
+        while (reader.next()) {
+            long tatNanos = reader.readNanos();
+            if (table != null) {
+                table.put(reader.keyHash(table.seed()), tatNanos, EVICTED);
+            } else {
+                Tat replaced = tatByResource.put(reader.requireResource(), new Tat(tatNanos));
+                // Threads holding it look the resource up again
+                if (replaced != null) {
+                    replaced.nanos = EVICTED;
+                }
+            }
+        }
+    }
+
+    private boolean isAllowed(String resource, long permits, long nowNanos) {
+        return tryAcquire(resource, permits, nowNanos) == 0;
+    }
+
+    private long tryAcquire(String resource, long permits, long nowNanos) {
+        if (table != null) {
+            long keyHash = table.hash(resource);
+            return tryAcquire(keyHash, table.slot(keyHash, nowNanos), permits, nowNanos);
+        }
+        return tryAcquire(resource, tat(resource, nowNanos), permits, nowNanos);
+    }
+
+    // O(1)
+    private long tryAcquire(String resource, Tat tat, long permits, long nowNanos) {
+        // Would never fit into the burst
+        if (permits > capacity) {
+            return Long.MAX_VALUE;
+        }
+        long permitsNanos = permits * intervalNanos;
+        while (true) {
+            long tatNanos = tat.nanos;
+            // Evicted in the meantime?
+            if (tatNanos == EVICTED) {
+                tat = tat(resource, nowNanos);
+                continue;
+            }
+            long nextTatNanos = Math.max(tatNanos, nowNanos) + permitsNanos;
+            long retryAfterNanos = nextTatNanos - nowNanos - toleranceNanos;
+            if (retryAfterNanos > 0) {
+                return retryAfterNanos;
+            }
+            if (tat.compareAndSet(tatNanos, nextTatNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    // O(1), same for a slot of the table
+    private long tryAcquire(long keyHash, int slot, long permits, long nowNanos) {
+        // Would never fit into the burst
+        if (permits > capacity) {
+            return Long.MAX_VALUE;
+        }
+        long permitsNanos = permits * intervalNanos;
+        while (true) {
+            // No slot in the full table, no telling when one is freed
+            if (slot == LongStateTable.NO_SLOT) {
+                return Long.MAX_VALUE;
+            }
+            long tatNanos = table.state(slot);
+            // Evicted in the meantime?
+            if (tatNanos == EVICTED || !table.holds(slot, keyHash)) {
+                slot = table.claim(keyHash, nowNanos);
+                continue;
+            }
+            long nextTatNanos = Math.max(tatNanos, nowNanos) + permitsNanos;
+            long retryAfterNanos = nextTatNanos - nowNanos - toleranceNanos;
+            if (retryAfterNanos > 0) {
+                return retryAfterNanos;
+            }
+            if (table.compareAndSet(slot, tatNanos, nextTatNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    private void sweep(long nowNanos) {
+        if (table != null) {
+            table.sweep(nowNanos, evictor);
+        } else {
+            sweeper.sweep(nowNanos);
+        }
+    }
+
+    // Get or create TAT, now for a resource at full burst
+    private Tat tat(String resource, long nowNanos) {
+        return tatByResource.computeIfAbsent(resource, k -> new Tat(nowNanos));
+    }
+
+    // Checked on restore, states are only meaningful to a limiter configured alike
+    private long[] configuration() {
+        return new long[]{capacity, intervalNanos};
+    }
+
+    @Override
+    public int numberOfResources() {
+        return table != null ? table.size() : tatByResource.size();
+    }
+
+    private void evictIfIdle(String resource, Tat tat, long nowNanos) {
+        long tatNanos = tat.nanos;
+        if (tatNanos != EVICTED && isIdle(tatNanos, nowNanos) && tat.compareAndSet(tatNanos, EVICTED)) {
+            tatByResource.remove(resource, tat);
+        }
+    }
+
+    private void evictIfIdle(int slot, long keyHash, long tatNanos, long nowNanos) {
+        if (tatNanos != EVICTED && isIdle(tatNanos, nowNanos)) {
+            table.remove(slot, keyHash, tatNanos, EVICTED);
+        }
+    }
+
+    // A TAT in the past is indistinguishable from a new one
+    private static boolean isIdle(long tatNanos, long nowNanos) {
+        return tatNanos <= nowNanos;
+    }
+
+    private static final class Tat {
+
+        private static final VarHandle NANOS;
+
+        static {
+            try {
+                NANOS = MethodHandles.lookup().findVarHandle(Tat.class, "nanos", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        volatile long nanos;
+
+        Tat(long nanos) {
+            this.nanos = nanos;
+        }
+
+        boolean compareAndSet(long expectedNanos, long nanos) {
+            return NANOS.compareAndSet(this, expectedNanos, nanos);
+        }
+
+    }
+
+    private final class TatHandle implements Handle {
+
+        private final String resource;
+        private volatile Tat tat;
+
+        TatHandle(String resource, Tat tat) {
+            this.resource = resource;
+            this.tat = tat;
+        }
+
+        // O(1)
+        @Override
+        public boolean tryAcquire(long permits) {
+            if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+            long nowNanos = watch.currentTimeNanos();
+            sweep(nowNanos);
+            Tat tat = this.tat;
+            if (tat.nanos == EVICTED) {
+                this.tat = tat = tat(resource, nowNanos);
+            }
+            return GcraRateLimiter.this.tryAcquire(resource, tat, permits, nowNanos) == 0;
+        }
+
+    }
+
+    private final class SlotHandle implements Handle {
+
+        private final long keyHash;
+        private volatile int slot;
+
+        SlotHandle(long keyHash, int slot) {
+            this.keyHash = keyHash;
+            this.slot = slot;
+        }
+
+        // O(1)
+        @Override
+        public boolean tryAcquire(long permits) {
+            if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+            long nowNanos = watch.currentTimeNanos();
+            sweep(nowNanos);
+            int slot = this.slot;
+            if (slot == LongStateTable.NO_SLOT || table.state(slot) == EVICTED || !table.holds(slot, keyHash)) {
+                this.slot = slot = table.claim(keyHash, nowNanos);
+            }
+            return GcraRateLimiter.this.tryAcquire(keyHash, slot, permits, nowNanos) == 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,318 @@
+package io.github.tech0ver.ratelimiter.bucket;
+
+import io.github.tech0ver.ratelimiter.BatchDecisions;
+import io.github.tech0ver.ratelimiter.IdleResourceSweeper;
+import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.MyWatch;
+import io.github.tech0ver.ratelimiter.bucket.CompositeRateLimiter.Limit;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Nested quotas, e.g. a user inside a tenant inside a global cap: the resource is the path of its keys,
+ * outermost first, separated by {@code '/'}, e.g. {@code "tenant/user"}; the innermost key may contain {@code '/'}.
+ * Every level is a token bucket as in {@link TokenBucketRateLimiter}, one per key prefix, plus a single global one.
+ * <p>
+ * The permits are taken from the innermost level outwards, the global one last, each by CAS;
+ * a level denying them gives the permits back to the levels already taken from. So a denial costs nothing,
+ * though a racing decision may be denied by permits about to be given back; none is ever overadmitted.
+ * <p>
+ * The global bucket is split into stripes, each with its share of the capacity and the rate, so that threads
+ * don't contend on a single word: a thread takes from its own stripe first, and borrows from the others
+ * once it's drained, so the stripes rebalance on demand and the whole capacity stays available.
+ * Whole tokens are taken from each stripe though, so the fraction of a token refilled in each may be unused
+ * for a while: up to a token per stripe is denied early.
+ */
+public class HierarchicalRateLimiter implements MyRateLimiter {
+
+    // Never a real moment, a bucket with it was removed from its level
+    private static final long EVICTED = Long.MIN_VALUE;
+    private static final char SEPARATOR = '/';
+    private static final int MAX_STRIPES = 16;
+    // A stripe per 128 bytes, so that stripes don't share a cache line, nor an adjacent one
+    private static final int STRIPE_PADDING = 16;
+
+    // Outermost first
+    private final Level[] levels;
+    private final MyWatch watch;
+    // Per stripe, the moment it was (or would have been) empty
+    private final AtomicLongArray stripeEmptyNanos;
+    private final long[] stripeFillNanos;
+    private final long stripeNanosPerToken;
+    private final int stripes;
+    private final long globalCapacity;
+
+    public HierarchicalRateLimiter(Limit global, List<Limit> levels) {
+        this(global, levels, MyWatch.SYSTEM_NANO_TIME);
+    }
+
+    public HierarchicalRateLimiter(Limit global, List<Limit> levels, MyWatch watch) {
+        this(global, levels, watch, Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param levels outermost first, e.g. the tenant limit then the user limit
+     * @param stripes number of stripes of the global bucket, fewer if it holds fewer tokens
+     */
+    public HierarchicalRateLimiter(Limit global, List<Limit> levels, MyWatch watch, int stripes) {
+        Objects.requireNonNull(global, "No global");
+        Objects.requireNonNull(levels, "No levels");
+        if (levels.isEmpty()) throw new IllegalArgumentException("levels must not be empty");
+        Objects.requireNonNull(watch, "No watch");
+        if (stripes <= 0) throw new IllegalArgumentException("stripes must be > 0");
+        this.watch = watch;
+        this.levels = new Level[levels.size()];
+        for (int i = 0; i < levels.size(); i++) {
+            this.levels[i] = new Level(Objects.requireNonNull(levels.get(i), "No level"));
+        }
+        long globalNanosPerToken = global.nanosPerToken();
+        this.globalCapacity = global.limit();
+        // At least a token per stripe
+        this.stripes = (int) Math.min(stripes, globalCapacity);
+        // Every stripe refills at its share of the rate, it fits as the global capacity does
+        this.stripeNanosPerToken = globalNanosPerToken * this.stripes;
+        this.stripeFillNanos = new long[this.stripes];
+        this.stripeEmptyNanos = new AtomicLongArray(this.stripes * STRIPE_PADDING);
+        long nowNanos = watch.currentTimeNanos();
+        for (int stripe = 0; stripe < this.stripes; stripe++) {
+            // The remainder of the capacity goes to the first stripes
+            long capacity = globalCapacity / this.stripes + (stripe < globalCapacity % this.stripes ? 1 : 0);
+            // Up to a token per stripe above the global fill, well within the room kept for the arithmetic
+            stripeFillNanos[stripe] = capacity * stripeNanosPerToken;
+            stripeEmptyNanos.set(stripe * STRIPE_PADDING, nowNanos - stripeFillNanos[stripe]);
+        }
+    }
+
+    // O(L + P) where L is the number of levels, P is the length of the path; O(L + S) when borrowing from S stripes
+    @Override
+    public boolean isAllowed(String resource, long permits) {
+        Objects.requireNonNull(resource, "No resource");
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+        String[] keys = keys(resource);
+        long nowNanos = watch.currentTimeNanos();
+        sweep(nowNanos);
+        return isAllowed(keys, permits, nowNanos);
+    }
+
+    /**
+     * Every path is checked before any decision, a malformed one takes no permits from the others.
+     */
+    // O(R * (L + P)) where R is the number of resources
+    @Override
+    public void isAllowed(String[] resources, BitSet allowed) {
+        Objects.requireNonNull(resources, "No resources");
+        for (String resource : resources) {
+            keys(Objects.requireNonNull(resource, "No resource"));
+        }
+        BatchDecisions.isAllowed(resources, allowed, watch, this::sweep, this::isAllowed);
+    }
+
+    private boolean isAllowed(String resource, long permits, long nowNanos) {
+        return isAllowed(keys(resource), permits, nowNanos);
+    }
+
+    // O(L + P) once swept
+    private boolean isAllowed(String[] keys, long permits, long nowNanos) {
+        // Would never fit into the global bucket
+        if (permits > globalCapacity) {
+            return false;
+        }
+        // Innermost first, it's the most likely to deny
+        for (int i = levels.length - 1; i >= 0; i--) {
+            if (!levels[i].take(keys[i], permits, nowNanos)) {
+                giveBack(keys, i + 1, permits);
+                return false;
+            }
+        }
+        if (!takeGlobal(permits, nowNanos)) {
+            giveBack(keys, 0, permits);
+            return false;
+        }
+        return true;
+    }
+
+    private void sweep(long nowNanos) {
+        for (Level level : levels) {
+            level.sweeper.sweep(nowNanos);
+        }
+    }
+
+    @Override
+    public int numberOfResources() {
+        int resources = 0;
+        for (Level level : levels) {
+            resources += level.bucketByKey.size();
+        }
+        return resources;
+    }
+
+    // Each key is the prefix of the path up to its level, so that nested keys are told apart by their parents
+    private String[] keys(String resource) {
+        String[] keys = new String[levels.length];
+        int end = -1;
+        for (int i = 0; i < levels.length - 1; i++) {
+            end = resource.indexOf(SEPARATOR, end + 1);
+            if (end < 0) throw new IllegalArgumentException("resource must have " + levels.length + " keys");
+            keys[i] = resource.substring(0, end);
+        }
+        keys[levels.length - 1] = resource;
+        return keys;
+    }
+
+    private void giveBack(String[] keys, int fromLevel, long permits) {
+        for (int i = fromLevel; i < levels.length; i++) {
+            levels[i].giveBack(keys[i], permits);
+        }
+    }
+
+    // O(1), O(S) when borrowing from S stripes
+    private boolean takeGlobal(long permits, long nowNanos) {
+        int home = (int) (Thread.currentThread().getId() % stripes);
+        long taken = takeFromStripe(home, permits, nowNanos);
+        if (taken == permits) {
+            return true;
+        }
+        // Borrow from the other stripes, giving all back if they can't make up the rest
+        long[] takenByStripe = new long[stripes];
+        takenByStripe[home] = taken;
+        for (int i = 1; i < stripes && taken < permits; i++) {
+            int stripe = (home + i) % stripes;
+            takenByStripe[stripe] = takeFromStripe(stripe, permits - taken, nowNanos);
+            taken += takenByStripe[stripe];
+        }
+        if (taken == permits) {
+            return true;
+        }
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            if (takenByStripe[stripe] > 0) {
+                stripeEmptyNanos.addAndGet(stripe * STRIPE_PADDING, -takenByStripe[stripe] * stripeNanosPerToken);
+            }
+        }
+        return false;
+    }
+
+    // O(1), returns the whole tokens taken, at most the permits
+    private long takeFromStripe(int stripe, long permits, long nowNanos) {
+        int index = stripe * STRIPE_PADDING;
+        while (true) {
+            long emptyNanos = stripeEmptyNanos.get(index);
+            // Refill, never above the capacity of the stripe
+            long refilledEmptyNanos = Math.max(emptyNanos, nowNanos - stripeFillNanos[stripe]);
+            long taken = Math.min(permits, (nowNanos - refilledEmptyNanos) / stripeNanosPerToken);
+            if (taken <= 0) {
+                return 0;
+            }
+            if (stripeEmptyNanos.compareAndSet(index, emptyNanos, refilledEmptyNanos + taken * stripeNanosPerToken)) {
+                return taken;
+            }
+        }
+    }
+
+    /**
+     * Buckets of a level by key, lock-free like {@link TokenBucketRateLimiter}'s.
+     */
+    private static final class Level {
+
+        // O(N) where N is the number of recently active keys of the level
+        final Map<String, Bucket> bucketByKey;
+        final IdleResourceSweeper<Bucket> sweeper;
+        final long nanosPerToken;
+        final long fillNanos;
+
+        Level(Limit limit) {
+            this.nanosPerToken = limit.nanosPerToken();
+            // Checked by the limit, it fits
+            this.fillNanos = limit.limit() * nanosPerToken;
+            this.bucketByKey = new ConcurrentHashMap<>();
+            this.sweeper = new IdleResourceSweeper<>(bucketByKey, this::evictIfIdle);
+        }
+
+        // O(1)
+        boolean take(String key, long permits, long nowNanos) {
+            // Would never fit into the bucket
+            if (permits > fillNanos / nanosPerToken) {
+                return false;
+            }
+            long permitsNanos = permits * nanosPerToken;
+            Bucket bucket = bucket(key, nowNanos);
+            while (true) {
+                long emptyNanos = bucket.emptyNanos;
+                // Evicted in the meantime?
+                if (emptyNanos == EVICTED) {
+                    bucket = bucket(key, nowNanos);
+                    continue;
+                }
+                // Refill, never above the capacity
+                long nextEmptyNanos = Math.max(emptyNanos, nowNanos - fillNanos) + permitsNanos;
+                if (nextEmptyNanos > nowNanos) {
+                    return false;
+                }
+                if (bucket.compareAndSet(emptyNanos, nextEmptyNanos)) {
+                    return true;
+                }
+            }
+        }
+
+        // O(1)
+        void giveBack(String key, long permits) {
+            Bucket bucket = bucketByKey.get(key);
+            // Evicted, i.e. full already
+            if (bucket == null) return;
+            long permitsNanos = permits * nanosPerToken;
+            while (true) {
+                long emptyNanos = bucket.emptyNanos;
+                // Above the capacity at worst, capped on the next take
+                if (emptyNanos == EVICTED || bucket.compareAndSet(emptyNanos, emptyNanos - permitsNanos)) {
+                    return;
+                }
+            }
+        }
+
+        // Get or create bucket
+        private Bucket bucket(String key, long nowNanos) {
+            return bucketByKey.computeIfAbsent(key, k -> new Bucket(nowNanos - fillNanos));
+        }
+
+        private void evictIfIdle(String key, Bucket bucket, long nowNanos) {
+            long emptyNanos = bucket.emptyNanos;
+            // A full bucket is indistinguishable from a new one
+            if (emptyNanos != EVICTED && nowNanos - emptyNanos >= fillNanos
+                    && bucket.compareAndSet(emptyNanos, EVICTED)) {
+                bucketByKey.remove(key, bucket);
+            }
+        }
+
+    }
+
+    private static final class Bucket {
+
+        private static final VarHandle EMPTY_NANOS;
+
+        static {
+            try {
+                EMPTY_NANOS = MethodHandles.lookup().findVarHandle(Bucket.class, "emptyNanos", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        volatile long emptyNanos;
+
+        Bucket(long emptyNanos) {
+            this.emptyNanos = emptyNanos;
+        }
+
+        boolean compareAndSet(long expectedEmptyNanos, long emptyNanos) {
+            return EMPTY_NANOS.compareAndSet(this, expectedEmptyNanos, emptyNanos);
+        }
+
+    }
+
+}
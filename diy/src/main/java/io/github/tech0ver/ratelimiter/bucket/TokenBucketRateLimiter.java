@@ -1,20 +1,63 @@
 package io.github.tech0ver.ratelimiter.bucket;
 
-import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.BatchDecisions;
+import io.github.tech0ver.ratelimiter.IdleResourceSweeper;
+import io.github.tech0ver.ratelimiter.LongStateTable;
 import io.github.tech0ver.ratelimiter.MyWatch;
+import io.github.tech0ver.ratelimiter.SnapshotReader;
+import io.github.tech0ver.ratelimiter.SnapshotWriter;
+import io.github.tech0ver.ratelimiter.SnapshottableRateLimiter;
+import io.github.tech0ver.ratelimiter.TimerWheel;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.BitSet;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
-public class TokenBucketRateLimiter implements MyRateLimiter {
+/**
+ * Lock-free, the whole state of a bucket is a single word updated by CAS:
+ * the moment the bucket was (or would have been) empty, so that
+ * {@code tokens = min(capacity, (now - emptyNanos) / nanosPerToken)}.
+ * It carries both the fractional tokens and the last refill, and a refill needs no write at all.
+ * While permits are reserved by {@link #acquire(String, long, Duration)} it is in the future,
+ * i.e. the bucket is in debt until then.
+ * <p>
+ * Being a single word, it can be kept in a {@link LongStateTable} instead of a map of buckets.
+ */
+public class TokenBucketRateLimiter implements SnapshottableRateLimiter {
 
-    // O(N) where N is the number of active resources
+    // Never a real moment, a bucket with it was removed from the map
+    private static final long EVICTED = Long.MIN_VALUE;
+    // Keep room for the arithmetic on nanos, it is ~73 years anyway
+    private static final long MAX_NANOS = Long.MAX_VALUE >> 2;
+    private static final Duration TIMER_TICK = Duration.ofMillis(1);
+    // A second of ticks per round
+    private static final int TIMER_WHEEL_SIZE = 1024;
+    private static final String SNAPSHOT = "TokenBucket";
+
+    // O(N) where N is the number of recently active resources, unless kept in the table
     private final Map<String, Bucket> bucketByResource;
+    private final IdleResourceSweeper<Bucket> sweeper;
+    private final LongStateTable table;
+    private final LongStateTable.Evictor evictor;
     private final MyWatch watch;
     private final long capacity;
-    private final double tokensPerNano;
+    // Rounded up to whole nanos: exact for usual rates, slightly stricter otherwise
+    private final long nanosPerToken;
+    // Time to refill an empty bucket up to the capacity
+    private final long fillNanos;
+    // Created on the first asynchronous acquire
+    private volatile TimerWheel timerWheel;
 
     public TokenBucketRateLimiter(long capacity, Duration refillPeriod) {
         this(capacity, refillPeriod, MyWatch.SYSTEM_NANO_TIME);
@@ -25,48 +68,439 @@ public class TokenBucketRateLimiter implements MyRateLimiter {
     }
 
     public TokenBucketRateLimiter(long capacity, long refillTokens, Duration refillPeriod, MyWatch watch) {
+        this(null, capacity, refillTokens, refillPeriod, watch);
+    }
+
+    /**
+     * Keeps the buckets in the table, which must not be shared with another limiter.
+     * A resource the full table has no slot for is denied, see {@link LongStateTable#NO_SLOT}.
+     */
+    public TokenBucketRateLimiter(long capacity, long refillTokens, Duration refillPeriod, MyWatch watch,
+                                  LongStateTable table) {
+        this(Objects.requireNonNull(table, "No table"), capacity, refillTokens, refillPeriod, watch);
+    }
+
+    private TokenBucketRateLimiter(LongStateTable table, long capacity, long refillTokens, Duration refillPeriod,
+                                   MyWatch watch) {
         if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
         if (refillTokens <= 0) throw new IllegalArgumentException("refillTokens must be > 0");
         Objects.requireNonNull(refillPeriod, "No refillPeriod");
         Objects.requireNonNull(watch, "No watch");
         this.watch = watch;
+        long refillNanos = refillPeriod.toNanos();
+        // At most a token per nano, whole nanos per token
+        if (refillTokens > refillNanos) {
+            throw new IllegalArgumentException("refillTokens must be <= refillPeriod nanos");
+        }
+        this.nanosPerToken = refillNanos / refillTokens + (refillNanos % refillTokens != 0 ? 1 : 0);
+        if (capacity > MAX_NANOS / nanosPerToken) {
+            throw new IllegalArgumentException("capacity must be refilled within ~73 years");
+        }
+        this.fillNanos = capacity * nanosPerToken;
         this.capacity = capacity;
-        this.tokensPerNano = refillTokens / (double) refillPeriod.toNanos();
         this.bucketByResource = new ConcurrentHashMap<>();
+        this.sweeper = new IdleResourceSweeper<>(bucketByResource, this::evictIfIdle);
+        this.table = table;
+        this.evictor = this::evictIfIdle;
     }
 
     // O(1)
     @Override
-    public boolean isAllowed(String resource) {
+    public boolean isAllowed(String resource, long permits) {
+        Objects.requireNonNull(resource, "No resource");
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+        long nowNanos = watch.currentTimeNanos();
+        sweep(nowNanos);
+        return isAllowed(resource, permits, nowNanos);
+    }
+
+    // O(R) where R is the number of resources
+    @Override
+    public void isAllowed(String[] resources, BitSet allowed) {
+        BatchDecisions.isAllowed(resources, allowed, watch, this::sweep, this::isAllowed);
+    }
+
+    /**
+     * By the hash of the characters when kept in the table, no {@link String} is built.
+     */
+    // O(L) where L is the length of the resource
+    @Override
+    public boolean isAllowed(CharSequence resource, long permits) {
+        if (table == null) return SnapshottableRateLimiter.super.isAllowed(resource, permits);
+        return isAllowed(table.hash(resource), permits);
+    }
+
+    /**
+     * By the hash of the bytes when kept in the table, nothing is decoded.
+     */
+    // O(L) where L is the length of the resource
+    @Override
+    public boolean isAllowed(byte[] resource, int offset, int length, long permits) {
+        if (table == null) return SnapshottableRateLimiter.super.isAllowed(resource, offset, length, permits);
+        return isAllowed(table.hash(resource, offset, length), permits);
+    }
+
+    /**
+     * By the hash of the remaining bytes when kept in the table, nothing is decoded.
+     */
+    // O(L) where L is the length of the resource
+    @Override
+    public boolean isAllowed(ByteBuffer resource, long permits) {
+        if (table == null) return SnapshottableRateLimiter.super.isAllowed(resource, permits);
+        return isAllowed(table.hash(resource), permits);
+    }
+
+    // O(1), same as isAllowed(String, long) of a resource in the table
+    private boolean isAllowed(long keyHash, long permits) {
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+        long nowNanos = watch.currentTimeNanos();
+        sweep(nowNanos);
+        return reserve(keyHash, table.slot(keyHash, nowNanos - fillNanos), permits, 0, nowNanos) == 0;
+    }
+
+    /**
+     * Binds the bucket of the resource, a stale one is looked up again once evicted.
+     */
+    @Override
+    public Handle handle(String resource) {
         Objects.requireNonNull(resource, "No resource");
         long nowNanos = watch.currentTimeNanos();
-        Bucket bucket = bucketByResource.computeIfAbsent(
-                resource, k -> new Bucket(nowNanos)
+        if (table != null) {
+            long keyHash = table.hash(resource);
+            return new SlotHandle(keyHash, table.slot(keyHash, nowNanos - fillNanos));
+        }
+        return new BucketHandle(resource, bucket(resource, nowNanos));
+    }
+
+    /**
+     * Writes the moment each bucket is empty, leaving out the full ones.
+     */
+    // O(N) where N is the number of recently active resources, or the slots of the table
+    @Override
+    public void snapshot(OutputStream out) throws IOException {
+        Objects.requireNonNull(out, "No out");
+        long nowNanos = watch.currentTimeNanos();
+        SnapshotWriter writer = new SnapshotWriter(
+                out, SNAPSHOT, configuration(), table != null ? table.seed() : 0, nowNanos
         );
-        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-        synchronized (bucket) {
-            if (nowNanos > bucket.lastRefillNanos) {
-                long elapsedSinceLastRefillNanos = nowNanos - bucket.lastRefillNanos;
-                double refilledTokens = elapsedSinceLastRefillNanos * tokensPerNano;
-                bucket.tokens = Math.min(capacity, bucket.tokens + refilledTokens);
-                bucket.lastRefillNanos = nowNanos;
-            }
-            if (bucket.tokens >= 1.0) {
-                bucket.tokens -= 1.0;
-                return true;
+        if (table != null) {
+            for (int slot = 0; slot < table.slots(); slot++) {
+                long keyHash = table.keyHash(slot);
+                long emptyNanos = table.state(slot);
+                // Freed or claimed for another key in the meantime?
+                if (keyHash == 0 || emptyNanos == EVICTED || !table.holds(slot, keyHash)) continue;
+                if (!isIdle(emptyNanos, nowNanos)) {
+                    writer.keyHash(keyHash);
+                    writer.writeNanos(emptyNanos);
+                }
             }
+        } else {
+            for (Map.Entry<String, Bucket> entry : bucketByResource.entrySet()) {
+                long emptyNanos = entry.getValue().emptyNanos;
+                if (emptyNanos != EVICTED && !isIdle(emptyNanos, nowNanos)) {
+                    writer.resource(entry.getKey());
+                    writer.writeNanos(emptyNanos);
+                }
+            }
+        }
+        writer.finish();
+    }
+
+    // O(S) where S is the number of resources in the snapshot
+    @Override
+    public void restore(InputStream in) throws IOException {
+        Objects.requireNonNull(in, "No in");
+        SnapshotReader reader = new SnapshotReader(in, SNAPSHOT, configuration(), watch.currentTimeNanos());
+        while (reader.next()) {
+            long emptyNanos = reader.readNanos();
+            if (table != null) {
+                table.put(reader.keyHash(table.seed()), emptyNanos, EVICTED);
+            } else {
+                Bucket replaced = bucketByResource.put(reader.requireResource(), new Bucket(emptyNanos));
+                // Threads and handles holding it look the resource up again
+                if (replaced != null) {
+                    replaced.emptyNanos = EVICTED;
+                }
+            }
+        }
+    }
+
+    // Checked on restore, states are only meaningful to a limiter configured alike
+    private long[] configuration() {
+        return new long[]{capacity, nanosPerToken};
+    }
+
+    /**
+     * Reserves the permits and waits until the bucket has refilled them, unless it takes longer than the timeout.
+     * Nothing is reserved then, so a caller giving up doesn't delay the others.
+     * <p>
+     * Waiting holds no monitor and ignores interrupts, the reserved permits would be lost otherwise;
+     * the interrupt status is kept.
+     */
+    // O(1) plus the wait
+    public boolean acquire(String resource, long permits, Duration timeout) {
+        Objects.requireNonNull(resource, "No resource");
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+        Objects.requireNonNull(timeout, "No timeout");
+        long timeoutNanos = timeout.isNegative() ? 0
+                : timeout.compareTo(Duration.ofNanos(MAX_NANOS)) > 0 ? MAX_NANOS
+                : timeout.toNanos();
+        long nowNanos = watch.currentTimeNanos();
+        sweep(nowNanos);
+        long waitNanos = reserve(resource, permits, timeoutNanos, nowNanos);
+        if (waitNanos < 0) {
             return false;
         }
+        parkUntil(nowNanos + waitNanos);
+        return true;
+    }
+
+    /**
+     * Same as {@link #acquireAsync(String, long, Executor)} completing on the limiter's single timer thread,
+     * so dependent stages run there too, delaying every later grant of the limiter: they must be short,
+     * must not block, and anything else should go through an executor.
+     */
+    // O(1)
+    public CompletableFuture<Boolean> acquireAsync(String resource, long permits) {
+        return acquireAsync(resource, permits, Runnable::run);
+    }
+
+    /**
+     * Reserves the permits at once and completes through the executor once the bucket has refilled them,
+     * so the reservations of a resource are granted in order, unless the executor reorders them.
+     * Completes with {@code false} at once where {@link #acquire(String, long, Duration)} would deny
+     * without waiting, e.g. for more permits than the capacity, and exceptionally if the executor rejects it.
+     * The reserved permits are lost if the returned future is cancelled.
+     */
+    // O(1)
+    public CompletableFuture<Boolean> acquireAsync(String resource, long permits, Executor executor) {
+        Objects.requireNonNull(resource, "No resource");
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+        Objects.requireNonNull(executor, "No executor");
+        long nowNanos = watch.currentTimeNanos();
+        sweep(nowNanos);
+        long waitNanos = reserve(resource, permits, MAX_NANOS, nowNanos);
+        if (waitNanos <= 0) {
+            return CompletableFuture.completedFuture(waitNanos == 0);
+        }
+        CompletableFuture<Boolean> acquired = new CompletableFuture<>();
+        timerWheel().schedule(nowNanos + waitNanos, () -> {
+            // The timer thread must not throw
+            try {
+                executor.execute(() -> acquired.complete(true));
+            } catch (RejectedExecutionException e) {
+                acquired.completeExceptionally(e);
+            }
+        });
+        return acquired;
+    }
+
+    private TimerWheel timerWheel() {
+        TimerWheel timerWheel = this.timerWheel;
+        if (timerWheel == null) {
+            synchronized (this) {
+                timerWheel = this.timerWheel;
+                if (timerWheel == null) {
+                    this.timerWheel = timerWheel = new TimerWheel(watch, TIMER_TICK, TIMER_WHEEL_SIZE);
+                }
+            }
+        }
+        return timerWheel;
+    }
+
+    private boolean isAllowed(String resource, long permits, long nowNanos) {
+        return reserve(resource, permits, 0, nowNanos) == 0;
+    }
+
+    private long reserve(String resource, long permits, long timeoutNanos, long nowNanos) {
+        if (table != null) {
+            long keyHash = table.hash(resource);
+            return reserve(keyHash, table.slot(keyHash, nowNanos - fillNanos), permits, timeoutNanos, nowNanos);
+        }
+        return reserve(resource, bucket(resource, nowNanos), permits, timeoutNanos, nowNanos);
+    }
+
+    // O(1), returns the nanos until the reserved permits are refilled or -1 if that's longer than the timeout
+    private long reserve(String resource, Bucket bucket, long permits, long timeoutNanos, long nowNanos) {
+        // Would never fit into the bucket
+        if (permits > capacity) {
+            return -1;
+        }
+        long permitsNanos = permits * nanosPerToken;
+        while (true) {
+            long emptyNanos = bucket.emptyNanos;
+            // Evicted in the meantime?
+            if (emptyNanos == EVICTED) {
+                bucket = bucket(resource, nowNanos);
+                continue;
+            }
+            long nextEmptyNanos = nextEmptyNanos(emptyNanos, permitsNanos, nowNanos);
+            long waitNanos = Math.max(0, nextEmptyNanos - nowNanos);
+            if (waitNanos > timeoutNanos) {
+                return -1;
+            }
+            if (bucket.compareAndSet(emptyNanos, nextEmptyNanos)) {
+                return waitNanos;
+            }
+        }
+    }
+
+    // O(1), same for a slot of the table
+    private long reserve(long keyHash, int slot, long permits, long timeoutNanos, long nowNanos) {
+        // Would never fit into the bucket
+        if (permits > capacity) {
+            return -1;
+        }
+        long permitsNanos = permits * nanosPerToken;
+        while (true) {
+            // No slot in the full table
+            if (slot == LongStateTable.NO_SLOT) {
+                return -1;
+            }
+            long emptyNanos = table.state(slot);
+            // Evicted in the meantime?
+            if (emptyNanos == EVICTED || !table.holds(slot, keyHash)) {
+                slot = table.claim(keyHash, nowNanos - fillNanos);
+                continue;
+            }
+            long nextEmptyNanos = nextEmptyNanos(emptyNanos, permitsNanos, nowNanos);
+            long waitNanos = Math.max(0, nextEmptyNanos - nowNanos);
+            if (waitNanos > timeoutNanos) {
+                return -1;
+            }
+            if (table.compareAndSet(slot, emptyNanos, nextEmptyNanos)) {
+                return waitNanos;
+            }
+        }
     }
 
-    private class Bucket {
+    private long nextEmptyNanos(long emptyNanos, long permitsNanos, long nowNanos) {
+        // Refill, never above the capacity; while in debt, the permits are queued after the reserved ones
+        return Math.max(emptyNanos, nowNanos - fillNanos) + permitsNanos;
+    }
+
+    private void sweep(long nowNanos) {
+        if (table != null) {
+            table.sweep(nowNanos, evictor);
+        } else {
+            sweeper.sweep(nowNanos);
+        }
+    }
+
+    private void parkUntil(long deadlineNanos) {
+        boolean interrupted = false;
+        try {
+            long remainingNanos;
+            while ((remainingNanos = deadlineNanos - watch.currentTimeNanos()) > 0) {
+                watch.parkNanos(remainingNanos);
+                // Clear it, parking would return at once otherwise
+                interrupted |= Thread.interrupted();
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Get or create bucket
+    private Bucket bucket(String resource, long nowNanos) {
+        return bucketByResource.computeIfAbsent(resource, k -> new Bucket(nowNanos - fillNanos));
+    }
+
+    @Override
+    public int numberOfResources() {
+        return table != null ? table.size() : bucketByResource.size();
+    }
 
-        double tokens;
-        long lastRefillNanos;
+    private void evictIfIdle(String resource, Bucket bucket, long nowNanos) {
+        long emptyNanos = bucket.emptyNanos;
+        if (emptyNanos != EVICTED && isIdle(emptyNanos, nowNanos) && bucket.compareAndSet(emptyNanos, EVICTED)) {
+            bucketByResource.remove(resource, bucket);
+        }
+    }
 
-        public Bucket(long lastRefillNanos) {
-            this.tokens = capacity;
-            this.lastRefillNanos = lastRefillNanos;
+    private void evictIfIdle(int slot, long keyHash, long emptyNanos, long nowNanos) {
+        if (emptyNanos != EVICTED && isIdle(emptyNanos, nowNanos)) {
+            table.remove(slot, keyHash, emptyNanos, EVICTED);
+        }
+    }
+
+    // A full bucket is indistinguishable from a new one
+    private boolean isIdle(long emptyNanos, long nowNanos) {
+        return nowNanos - emptyNanos >= fillNanos;
+    }
+
+    private static final class Bucket {
+
+        private static final VarHandle EMPTY_NANOS;
+
+        static {
+            try {
+                EMPTY_NANOS = MethodHandles.lookup().findVarHandle(Bucket.class, "emptyNanos", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        volatile long emptyNanos;
+
+        Bucket(long emptyNanos) {
+            this.emptyNanos = emptyNanos;
+        }
+
+        boolean compareAndSet(long expectedEmptyNanos, long emptyNanos) {
+            return EMPTY_NANOS.compareAndSet(this, expectedEmptyNanos, emptyNanos);
+        }
+
+    }
+
+    private final class BucketHandle implements Handle {
+
+        private final String resource;
+        private volatile Bucket bucket;
+
+        BucketHandle(String resource, Bucket bucket) {
+            this.resource = resource;
+            this.bucket = bucket;
+        }
+
+        // O(1)
+        @Override
+        public boolean tryAcquire(long permits) {
+            if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+            long nowNanos = watch.currentTimeNanos();
+            sweep(nowNanos);
+            Bucket bucket = this.bucket;
+            if (bucket.emptyNanos == EVICTED) {
+                this.bucket = bucket = bucket(resource, nowNanos);
+            }
+            return reserve(resource, bucket, permits, 0, nowNanos) == 0;
+        }
+
+    }
+
+    private final class SlotHandle implements Handle {
+
+        private final long keyHash;
+        private volatile int slot;
+
+        SlotHandle(long keyHash, int slot) {
+            this.keyHash = keyHash;
+            this.slot = slot;
+        }
+
+        // O(1)
+        @Override
+        public boolean tryAcquire(long permits) {
+            if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+            long nowNanos = watch.currentTimeNanos();
+            sweep(nowNanos);
+            int slot = this.slot;
+            if (slot == LongStateTable.NO_SLOT || table.state(slot) == EVICTED || !table.holds(slot, keyHash)) {
+                this.slot = slot = table.claim(keyHash, nowNanos - fillNanos);
+            }
+            return reserve(keyHash, slot, permits, 0, nowNanos) == 0;
         }
 
     }
@@ -0,0 +1,106 @@
+package io.github.tech0ver.ratelimiter.distributed;
+
+import io.github.tech0ver.ratelimiter.IdleResourceSweeper;
+import io.github.tech0ver.ratelimiter.MyWatch;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reference {@link TokenStore} in the same process, e.g. to simulate a cluster of nodes in tests:
+ * a token bucket per resource, as {@link io.github.tech0ver.ratelimiter.bucket.TokenBucketRateLimiter}
+ * would enforce on a single node, counting the calls a remote store would take as round trips.
+ */
+public class InMemoryTokenStore implements TokenStore {
+
+    // Keep room for the arithmetic on nanos, it is ~73 years anyway
+    private static final long MAX_NANOS = Long.MAX_VALUE >> 2;
+
+    // O(N) where N is the number of recently active resources
+    private final Map<String, Bucket> bucketByResource;
+    private final IdleResourceSweeper<Bucket> sweeper;
+    private final MyWatch watch;
+    private final LongAdder roundTrips;
+    // Rounded up to whole nanos like TokenBucketRateLimiter does
+    private final long nanosPerToken;
+    private final long fillNanos;
+
+    public InMemoryTokenStore(long capacity, long refillTokens, Duration refillPeriod, MyWatch watch) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+        if (refillTokens <= 0) throw new IllegalArgumentException("refillTokens must be > 0");
+        Objects.requireNonNull(refillPeriod, "No refillPeriod");
+        Objects.requireNonNull(watch, "No watch");
+        this.watch = watch;
+        long refillNanos = refillPeriod.toNanos();
+        // At most a token per nano, whole nanos per token
+        if (refillTokens > refillNanos) {
+            throw new IllegalArgumentException("refillTokens must be <= refillPeriod nanos");
+        }
+        this.nanosPerToken = refillNanos / refillTokens + (refillNanos % refillTokens != 0 ? 1 : 0);
+        if (capacity > MAX_NANOS / nanosPerToken) {
+            throw new IllegalArgumentException("capacity must be refilled within ~73 years");
+        }
+        this.fillNanos = capacity * nanosPerToken;
+        this.bucketByResource = new ConcurrentHashMap<>();
+        this.sweeper = new IdleResourceSweeper<>(bucketByResource, this::evictIfIdle);
+        this.roundTrips = new LongAdder();
+    }
+
+    // O(1)
+    @Override
+    public long lease(String resource, long tokens, long unused) {
+        Objects.requireNonNull(resource, "No resource");
+        if (tokens < 0) throw new IllegalArgumentException("tokens must be >= 0");
+        if (unused < 0) throw new IllegalArgumentException("unused must be >= 0");
+        roundTrips.increment();
+        long nowNanos = watch.currentTimeNanos();
+        sweeper.sweep(nowNanos);
+        while (true) {
+            Bucket bucket = bucketByResource.computeIfAbsent(resource, k -> new Bucket(nowNanos - fillNanos));
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (bucket) {
+                // Not evicted in the meantime?
+                if (!bucket.evicted) {
+                    // Given back, then refilled, never above the capacity
+                    long emptyNanos = Math.max(bucket.emptyNanos - unused * nanosPerToken, nowNanos - fillNanos);
+                    long granted = Math.min(tokens, (nowNanos - emptyNanos) / nanosPerToken);
+                    bucket.emptyNanos = emptyNanos + granted * nanosPerToken;
+                    return granted;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calls taken so far, each one a round trip to a remote store.
+     */
+    public long roundTrips() {
+        return roundTrips.sum();
+    }
+
+    private void evictIfIdle(String resource, Bucket bucket, long nowNanos) {
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (bucket) {
+            // A full bucket is indistinguishable from a new one
+            if (nowNanos - bucket.emptyNanos >= fillNanos) {
+                bucket.evicted = true;
+                bucketByResource.remove(resource, bucket);
+            }
+        }
+    }
+
+    private static final class Bucket {
+
+        long emptyNanos;
+        boolean evicted;
+
+        Bucket(long emptyNanos) {
+            this.emptyNanos = emptyNanos;
+        }
+
+    }
+
+}
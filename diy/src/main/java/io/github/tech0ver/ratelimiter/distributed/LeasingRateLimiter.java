@@ -0,0 +1,264 @@
+package io.github.tech0ver.ratelimiter.distributed;
+
+import io.github.tech0ver.ratelimiter.BatchDecisions;
+import io.github.tech0ver.ratelimiter.IdleResourceSweeper;
+import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.MyWatch;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A node's share of a limit enforced by a cluster: tokens are leased in blocks from a shared {@link TokenStore}
+ * and spent locally, a decision on a leased token is a CAS, with no round trip.
+ * <p>
+ * A lease lasts {@code leaseDuration}, its unused tokens are given back on the next lease.
+ * Those of a lease left to expire are set aside once the resource is evicted as idle, the sweeper makes no round trip:
+ * they ride on the next lease of the resource, or go back through {@link #giveBackUnused()}, to call periodically.
+ * Its size follows the rate the node spent the previous one at, i.e. enough tokens for a whole lease,
+ * up to {@code maxLeaseSize}: a busy node leases large blocks, a quiet one hoards few tokens.
+ * So there are O(rate / leaseSize) round trips per resource, at least one per lease.
+ * Once the store runs dry, the node denies locally until the lease expires, rather than asking on every decision.
+ * <p>
+ * Every token admitted was taken from the store at most {@code leaseDuration} before, so over any period {@code T}
+ * the cluster admits at most what the store would over {@code T + leaseDuration}; a bucket of capacity {@code C}
+ * and rate {@code R} admits at most {@code C + R * (T + leaseDuration)}.
+ * Tokens leased but not spent yet are unavailable to the other nodes meanwhile, which is the cost of leasing.
+ */
+public class LeasingRateLimiter implements MyRateLimiter {
+
+    private static final Lease NO_LEASE = new Lease(Long.MIN_VALUE, Long.MIN_VALUE, 0, 0, false);
+
+    // O(N) where N is the number of recently active resources
+    private final Map<String, Holder> holderByResource;
+    private final IdleResourceSweeper<Holder> sweeper;
+    // O(E) where E is the number of resources evicted with unused tokens since they were last given back
+    private final Map<String, Long> unusedByResource;
+    private final TokenStore store;
+    private final MyWatch watch;
+    private final long leaseNanos;
+    private final long maxLeaseSize;
+
+    public LeasingRateLimiter(TokenStore store, Duration leaseDuration, long maxLeaseSize) {
+        this(store, leaseDuration, maxLeaseSize, MyWatch.SYSTEM_NANO_TIME);
+    }
+
+    public LeasingRateLimiter(TokenStore store, Duration leaseDuration, long maxLeaseSize, MyWatch watch) {
+        Objects.requireNonNull(store, "No store");
+        Objects.requireNonNull(leaseDuration, "No leaseDuration");
+        if (leaseDuration.isNegative() || leaseDuration.isZero()) {
+            throw new IllegalArgumentException("leaseDuration must be > 0");
+        }
+        if (maxLeaseSize <= 0) throw new IllegalArgumentException("maxLeaseSize must be > 0");
+        Objects.requireNonNull(watch, "No watch");
+        this.store = store;
+        this.watch = watch;
+        this.leaseNanos = leaseDuration.toNanos();
+        this.maxLeaseSize = maxLeaseSize;
+        this.holderByResource = new ConcurrentHashMap<>();
+        this.unusedByResource = new ConcurrentHashMap<>();
+        this.sweeper = new IdleResourceSweeper<>(holderByResource, this::evictIfIdle);
+    }
+
+    // O(1), plus a round trip to the store once the lease is spent or expired
+    @Override
+    public boolean isAllowed(String resource, long permits) {
+        Objects.requireNonNull(resource, "No resource");
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+        long nowNanos = watch.currentTimeNanos();
+        sweeper.sweep(nowNanos);
+        return isAllowed(resource, permits, nowNanos);
+    }
+
+    /**
+     * Decides on every resource at a single moment, a round trip per resource whose lease is spent or expired.
+     */
+    // O(R) where R is the number of resources, plus the round trips
+    @Override
+    public void isAllowed(String[] resources, BitSet allowed) {
+        BatchDecisions.isAllowed(resources, allowed, watch, sweeper::sweep, this::isAllowed);
+    }
+
+    private boolean isAllowed(String resource, long permits, long nowNanos) {
+        Holder holder = holder(resource);
+        Lease lease = holder.lease;
+        if (nowNanos < lease.expiresNanos && lease.take(permits)) {
+            return true;
+        }
+        return renew(resource, holder, permits, nowNanos);
+    }
+
+    @Override
+    public int numberOfResources() {
+        return holderByResource.size();
+    }
+
+    /**
+     * Gives back the unused tokens of the leases evicted as idle, a round trip per resource, and returns them.
+     * Meant to be called periodically, e.g. by a scheduled task, without holding any lock of the limiter.
+     */
+    // O(E) round trips where E is the number of resources evicted with unused tokens
+    public long giveBackUnused() {
+        long givenBack = 0;
+        for (String resource : unusedByResource.keySet()) {
+            Long unused = unusedByResource.remove(resource);
+            if (unused != null) {
+                try {
+                    store.lease(resource, 0, unused);
+                } catch (RuntimeException e) {
+                    // Kept for the next try
+                    unusedByResource.merge(resource, unused, Long::sum);
+                    throw e;
+                }
+                givenBack += unused;
+            }
+        }
+        return givenBack;
+    }
+
+    // Single flight: one thread per resource makes the round trip, holding no monitor, the others wait for its lease
+    private boolean renew(String resource, Holder holder, long permits, long nowNanos) {
+        while (true) {
+            holder.renewal.lock();
+            try {
+                // Not evicted in the meantime?
+                if (!holder.evicted) {
+                    Lease lease = holder.lease;
+                    boolean expired = nowNanos >= lease.expiresNanos;
+                    // Renewed by another thread in the meantime?
+                    if (!expired && lease.take(permits)) {
+                        return true;
+                    }
+                    // The store ran dry, don't ask again before the lease expires
+                    if (!expired && lease.starved) {
+                        return false;
+                    }
+                    // Nobody spends the rest of it from now on
+                    long unused = lease.takeAll();
+                    long size = leaseSize(lease, unused, permits, nowNanos);
+                    // Along with the ones set aside once evicted
+                    Long evicted = unusedByResource.remove(resource);
+                    long granted;
+                    try {
+                        granted = store.lease(resource, size, evicted != null ? unused + evicted : unused);
+                    } catch (RuntimeException e) {
+                        // Still ours, the store took none of them
+                        if (unused > 0) {
+                            lease.giveBack(unused);
+                        }
+                        if (evicted != null) {
+                            unusedByResource.merge(resource, evicted, Long::sum);
+                        }
+                        throw e;
+                    }
+                    boolean allowed = granted >= permits;
+                    long tokens = allowed ? granted - permits : granted;
+                    holder.lease = new Lease(nowNanos, nowNanos + leaseNanos, granted, tokens, granted < size);
+                    return allowed;
+                }
+            } finally {
+                holder.renewal.unlock();
+            }
+            holder = holder(resource);
+        }
+    }
+
+    // Enough tokens for a whole lease at the rate the previous one was spent, at least the permits
+    private long leaseSize(Lease lease, long unused, long permits, long nowNanos) {
+        long spent = lease.granted - unused;
+        long elapsedNanos = Math.max(1, Math.min(nowNanos, lease.expiresNanos) - lease.startNanos);
+        double size = Math.ceil((double) spent * leaseNanos / elapsedNanos);
+        return Math.max(permits, (long) Math.min(maxLeaseSize, size));
+    }
+
+    // Get or create holder
+    private Holder holder(String resource) {
+        return holderByResource.computeIfAbsent(resource, k -> new Holder());
+    }
+
+    private void evictIfIdle(String resource, Holder holder, long nowNanos) {
+        // Being renewed, so not idle, no need to wait
+        if (!holder.renewal.tryLock()) return;
+        try {
+            Lease lease = holder.lease;
+            if (!holder.evicted && nowNanos >= lease.expiresNanos) {
+                long unused = lease.takeAll();
+                // No round trip from the sweeper, set aside for the next lease or giveBackUnused()
+                if (unused > 0) {
+                    unusedByResource.merge(resource, unused, Long::sum);
+                }
+                holder.evicted = true;
+                holderByResource.remove(resource, holder);
+            }
+        } finally {
+            holder.renewal.unlock();
+        }
+    }
+
+    private static final class Holder {
+
+        // Replaced under the renewal lock, spent without it
+        volatile Lease lease = NO_LEASE;
+        // Guarded by the renewal lock
+        boolean evicted;
+        final ReentrantLock renewal = new ReentrantLock();
+
+    }
+
+    private static final class Lease {
+
+        private static final VarHandle TOKENS;
+
+        static {
+            try {
+                TOKENS = MethodHandles.lookup().findVarHandle(Lease.class, "tokens", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        final long startNanos;
+        final long expiresNanos;
+        final long granted;
+        // Granted fewer tokens than asked for
+        final boolean starved;
+        volatile long tokens;
+
+        Lease(long startNanos, long expiresNanos, long granted, long tokens, boolean starved) {
+            this.startNanos = startNanos;
+            this.expiresNanos = expiresNanos;
+            this.granted = granted;
+            this.tokens = tokens;
+            this.starved = starved;
+        }
+
+        // O(1)
+        boolean take(long permits) {
+            while (true) {
+                long tokens = this.tokens;
+                if (tokens < permits) {
+                    return false;
+                }
+                if (TOKENS.compareAndSet(this, tokens, tokens - permits)) {
+                    return true;
+                }
+            }
+        }
+
+        long takeAll() {
+            return (long) TOKENS.getAndSet(this, 0L);
+        }
+
+        void giveBack(long tokens) {
+            TOKENS.getAndAdd(this, tokens);
+        }
+
+    }
+
+}
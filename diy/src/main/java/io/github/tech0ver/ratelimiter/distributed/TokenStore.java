@@ -0,0 +1,23 @@
+package io.github.tech0ver.ratelimiter.distributed;
+
+/**
+ * Shared state of a limit enforced by several nodes, e.g. a token bucket per resource in a remote store:
+ * nodes {@link LeasingRateLimiter lease} tokens from it in blocks and spend them locally.
+ * <p>
+ * Every call is meant to be a single round trip, so giving back unused tokens rides on the next lease.
+ * An implementation must be thread-safe, it's called by any thread deciding on a resource.
+ */
+@FunctionalInterface
+public interface TokenStore {
+
+    /**
+     * Gives back the unused tokens of a previous lease of the resource, then takes up to {@code tokens} more,
+     * fewer if the store doesn't hold that many at the moment.
+     *
+     * @param tokens tokens wanted, 0 to give back only
+     * @param unused tokens given back, 0 if none
+     * @return tokens granted, between 0 and {@code tokens}
+     */
+    long lease(String resource, long tokens, long unused);
+
+}
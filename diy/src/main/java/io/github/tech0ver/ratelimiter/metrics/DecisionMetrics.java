@@ -0,0 +1,56 @@
+package io.github.tech0ver.ratelimiter.metrics;
+
+/**
+ * Metrics of a limiter as of a report: the decisions since it was instrumented,
+ * the resources it keeps state for and the latency of the decisions timed since the previous report.
+ */
+public final class DecisionMetrics {
+
+    private final String name;
+    private final long allowed;
+    private final long denied;
+    private final int resources;
+    private final LatencyHistogram.Snapshot latency;
+
+    DecisionMetrics(String name, long allowed, long denied, int resources, LatencyHistogram.Snapshot latency) {
+        this.name = name;
+        this.allowed = allowed;
+        this.denied = denied;
+        this.resources = resources;
+        this.latency = latency;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public long allowed() {
+        return allowed;
+    }
+
+    public long denied() {
+        return denied;
+    }
+
+    /**
+     * Same as {@link io.github.tech0ver.ratelimiter.MyRateLimiter#numberOfResources()}, -1 unless it keeps track.
+     */
+    public int resources() {
+        return resources;
+    }
+
+    public LatencyHistogram.Snapshot latency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return name + " allowed=" + allowed + " denied=" + denied + " resources=" + resources
+                + " latency.count=" + latency.count()
+                + " latency.p50=" + latency.valueAtPercentile(50)
+                + " latency.p99=" + latency.valueAtPercentile(99)
+                + " latency.p999=" + latency.valueAtPercentile(99.9)
+                + " latency.max=" + latency.max();
+    }
+
+}
@@ -0,0 +1,247 @@
+package io.github.tech0ver.ratelimiter.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Most frequent resources of a stream, by the
+ * <a href="https://www.cs.ucsb.edu/sites/default/files/documents/2005-23.pdf">Space-Saving</a> sketch:
+ * a fixed number of counters, an unknown resource takes over the least counted one, inheriting its count as error.
+ * So every count is an upper bound off by at most its error, and a resource seen more than {@code N / counters}
+ * times out of {@code N} is always kept.
+ * <p>
+ * The counters are split into stripes by resource, each under its own monitor, so that threads adding
+ * different resources rarely contend; the guarantee holds per stripe, over the resources of the stripe.
+ * <p>
+ * Counts only grow unless {@link #decay() decayed}, which halves them, so that the top follows recent traffic.
+ */
+public final class HeavyHitters {
+
+    private static final int MAX_STRIPES = 16;
+    // Keep enough counters per stripe for its own heavy hitters
+    private static final int MIN_COUNTERS_PER_STRIPE = 8;
+
+    private final Stripe[] stripes;
+    private final int capacity;
+
+    public HeavyHitters(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+        int stripeCount = Integer.highestOneBit(
+                Math.max(1, Math.min(MAX_STRIPES, capacity / MIN_COUNTERS_PER_STRIPE))
+        );
+        int countersPerStripe = (capacity + stripeCount - 1) / stripeCount;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(countersPerStripe);
+        }
+        this.capacity = countersPerStripe * stripeCount;
+    }
+
+    // O(log C) where C is the number of counters per stripe
+    public void add(String resource) {
+        add(resource, 1);
+    }
+
+    /**
+     * Counts the resource {@code weight} times, e.g. a sample standing for as many occurrences.
+     */
+    // O(log C) where C is the number of counters per stripe
+    public void add(String resource, long weight) {
+        Objects.requireNonNull(resource, "No resource");
+        if (weight <= 0) throw new IllegalArgumentException("weight must be > 0");
+        int hash = resource.hashCode();
+        // Spread the high bits, String hashes of similar resources differ in the low ones mostly
+        Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (stripe) {
+            stripe.add(resource, weight);
+        }
+    }
+
+    /**
+     * Halves every count and error, the resources counted down to 0 free their counters.
+     * Called periodically, e.g. on every report, the counts weigh recent occurrences more, exponentially.
+     */
+    // O(C) where C is the number of counters
+    public void decay() {
+        for (Stripe stripe : stripes) {
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (stripe) {
+                stripe.decay();
+            }
+        }
+    }
+
+    /**
+     * Most counted resources first, at most {@code n} of them.
+     */
+    // O(C * log C) where C is the number of counters
+    public List<Entry> top(int n) {
+        if (n < 0) throw new IllegalArgumentException("n must be >= 0");
+        var entries = new ArrayList<Entry>(capacity);
+        for (Stripe stripe : stripes) {
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.size; i++) {
+                    Counter counter = stripe.heap[i];
+                    entries.add(new Entry(counter.resource, counter.count, counter.error));
+                }
+            }
+        }
+        entries.sort(Comparator.comparingLong(Entry::count).reversed());
+        return List.copyOf(entries.subList(0, Math.min(n, entries.size())));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private static final class Stripe {
+
+        // Min-heap by count, the root is the one to take over
+        final Counter[] heap;
+        final Map<String, Counter> counterByResource;
+        int size;
+
+        Stripe(int capacity) {
+            this.heap = new Counter[capacity];
+            this.counterByResource = new HashMap<>(capacity * 2);
+        }
+
+        void add(String resource, long weight) {
+            Counter counter = counterByResource.get(resource);
+            if (counter != null) {
+                counter.count += weight;
+                siftDown(counter.index);
+                return;
+            }
+            if (size < heap.length) {
+                counter = new Counter(resource, weight, 0);
+                counter.index = size;
+                heap[size++] = counter;
+                siftUp(counter.index);
+                counterByResource.put(resource, counter);
+                return;
+            }
+            // Take over the least counted one
+            counter = heap[0];
+            counterByResource.remove(counter.resource);
+            counter.resource = resource;
+            counter.error = counter.count;
+            counter.count += weight;
+            counterByResource.put(resource, counter);
+            siftDown(0);
+        }
+
+        // Halving keeps the order, so the heap stays one once the counted down ones are gone
+        void decay() {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                Counter counter = heap[i];
+                counter.count >>>= 1;
+                counter.error >>>= 1;
+                if (counter.count > 0) {
+                    counter.index = kept;
+                    heap[kept++] = counter;
+                } else {
+                    counterByResource.remove(counter.resource);
+                }
+            }
+            for (int i = kept; i < size; i++) {
+                heap[i] = null;
+            }
+            size = kept;
+            for (int i = (size >>> 1) - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        private void siftUp(int index) {
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (heap[parent].count <= heap[index].count) return;
+                swap(parent, index);
+                index = parent;
+            }
+        }
+
+        private void siftDown(int index) {
+            while (true) {
+                int smallest = index;
+                int left = 2 * index + 1;
+                int right = left + 1;
+                if (left < size && heap[left].count < heap[smallest].count) smallest = left;
+                if (right < size && heap[right].count < heap[smallest].count) smallest = right;
+                if (smallest == index) return;
+                swap(smallest, index);
+                index = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            Counter counter = heap[i];
+            heap[i] = heap[j];
+            heap[j] = counter;
+            heap[i].index = i;
+            heap[j].index = j;
+        }
+
+    }
+
+    private static final class Counter {
+
+        String resource;
+        long count;
+        long error;
+        int index;
+
+        Counter(String resource, long count, long error) {
+            this.resource = resource;
+            this.count = count;
+            this.error = error;
+        }
+
+    }
+
+    public static final class Entry {
+
+        private final String resource;
+        private final long count;
+        private final long error;
+
+        Entry(String resource, long count, long error) {
+            this.resource = resource;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String resource() {
+            return resource;
+        }
+
+        /**
+         * Upper bound of the actual count.
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * Overestimation at most, i.e. {@code count - error} is a lower bound of the actual count.
+         */
+        public long error() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return resource + "=" + count + " (error " + error + ")";
+        }
+
+    }
+
+}
@@ -0,0 +1,239 @@
+package io.github.tech0ver.ratelimiter.metrics;
+
+import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.MyWatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the decisions of any limiter, allowed and denied, and times a sample of them,
+ * to be exported by {@link #report(MetricsListener)} on the exporter's own schedule.
+ * <p>
+ * Counting is a {@link LongAdder} increment, which doesn't contend between threads.
+ * Timing reads the watch twice, about the cost of a decision on a resource in cache,
+ * so only 1 of 8 decisions is timed. The watch must be fine-grained,
+ * i.e. not a {@link io.github.tech0ver.ratelimiter.CachedWatch}.
+ * <p>
+ * Optionally, it tracks the {@link HeavyHitters} among the resources, by requests and by denials,
+ * to spot the ones responsible for the denials without scanning the limiter's state.
+ * Tracking takes a monitor, so only the same 1 of 8 decisions is tracked, weighing 8;
+ * the raw resources of those are decoded once, and decided on as the {@link String} they decode to.
+ * Every report decays the counts, so that the top is of the recent decisions.
+ */
+public class InstrumentedRateLimiter implements MyRateLimiter {
+
+    // Time and track 1 of 8 decisions only
+    private static final int SAMPLE_MASK = 7;
+    // Occurrences a tracked decision stands for
+    private static final long SAMPLE_WEIGHT = SAMPLE_MASK + 1;
+    // Never a real moment of a sampled decision
+    private static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private final String name;
+    private final MyRateLimiter limiter;
+    private final MyWatch watch;
+    private final LongAdder allowed;
+    private final LongAdder denied;
+    private final LatencyHistogram latency;
+    // Null unless tracked
+    private final HeavyHitters requestedResources;
+    private final HeavyHitters deniedResources;
+
+    public InstrumentedRateLimiter(String name, MyRateLimiter limiter) {
+        this(name, limiter, MyWatch.SYSTEM_NANO_TIME);
+    }
+
+    public InstrumentedRateLimiter(String name, MyRateLimiter limiter, MyWatch watch) {
+        this(name, limiter, watch, 0);
+    }
+
+    /**
+     * Tracks the heavy hitters with the number of counters each, none if 0.
+     */
+    public InstrumentedRateLimiter(String name, MyRateLimiter limiter, MyWatch watch, int heavyHitters) {
+        Objects.requireNonNull(name, "No name");
+        Objects.requireNonNull(limiter, "No limiter");
+        Objects.requireNonNull(watch, "No watch");
+        if (heavyHitters < 0) throw new IllegalArgumentException("heavyHitters must be >= 0");
+        this.name = name;
+        this.limiter = limiter;
+        this.watch = watch;
+        this.allowed = new LongAdder();
+        this.denied = new LongAdder();
+        this.latency = new LatencyHistogram();
+        this.requestedResources = heavyHitters > 0 ? new HeavyHitters(heavyHitters) : null;
+        this.deniedResources = heavyHitters > 0 ? new HeavyHitters(heavyHitters) : null;
+    }
+
+    // O(1) plus the decision
+    @Override
+    public boolean isAllowed(String resource, long permits) {
+        boolean sampled = sampled();
+        long startNanos = startNanos(sampled);
+        boolean allowed = count(limiter.isAllowed(resource, permits), startNanos);
+        if (sampled && requestedResources != null) {
+            track(resource, allowed);
+        }
+        return allowed;
+    }
+
+    @Override
+    public boolean isAllowed(CharSequence resource, long permits) {
+        boolean sampled = sampled();
+        if (!sampled || requestedResources == null) {
+            long startNanos = startNanos(sampled);
+            return count(limiter.isAllowed(resource, permits), startNanos);
+        }
+        Objects.requireNonNull(resource, "No resource");
+        return decideTracked(resource.toString(), permits);
+    }
+
+    @Override
+    public boolean isAllowed(byte[] resource, int offset, int length, long permits) {
+        boolean sampled = sampled();
+        if (!sampled || requestedResources == null) {
+            long startNanos = startNanos(sampled);
+            return count(limiter.isAllowed(resource, offset, length, permits), startNanos);
+        }
+        Objects.requireNonNull(resource, "No resource");
+        return decideTracked(new String(resource, offset, length, StandardCharsets.UTF_8), permits);
+    }
+
+    @Override
+    public boolean isAllowed(ByteBuffer resource, long permits) {
+        boolean sampled = sampled();
+        if (!sampled || requestedResources == null) {
+            long startNanos = startNanos(sampled);
+            return count(limiter.isAllowed(resource, permits), startNanos);
+        }
+        Objects.requireNonNull(resource, "No resource");
+        return decideTracked(StandardCharsets.UTF_8.decode(resource.duplicate()).toString(), permits);
+    }
+
+    /**
+     * Counts every decision, and times the whole batch as a single one.
+     */
+    // O(R) where R is the number of resources, plus the decisions
+    @Override
+    public void isAllowed(String[] resources, BitSet allowed) {
+        long startNanos = startNanos(sampled());
+        limiter.isAllowed(resources, allowed);
+        if (startNanos != NOT_SAMPLED) {
+            latency.record(watch.currentTimeNanos() - startNanos);
+        }
+        int allowedCount = 0;
+        for (int i = allowed.nextSetBit(0); i >= 0 && i < resources.length; i = allowed.nextSetBit(i + 1)) {
+            allowedCount++;
+        }
+        this.allowed.add(allowedCount);
+        this.denied.add(resources.length - allowedCount);
+        if (requestedResources != null) {
+            for (int i = 0; i < resources.length; i++) {
+                if (sampled()) {
+                    track(resources[i], allowed.get(i));
+                }
+            }
+        }
+    }
+
+    @Override
+    public Handle handle(String resource) {
+        Handle handle = limiter.handle(resource);
+        return permits -> {
+            boolean sampled = sampled();
+            long startNanos = startNanos(sampled);
+            boolean allowed = count(handle.tryAcquire(permits), startNanos);
+            if (sampled && requestedResources != null) {
+                track(resource, allowed);
+            }
+            return allowed;
+        };
+    }
+
+    @Override
+    public int numberOfResources() {
+        return limiter.numberOfResources();
+    }
+
+    /**
+     * Hands the metrics to the listener: the counts since the limiter was instrumented,
+     * and the latency since the previous report. Then halves the counts of the heavy hitters.
+     */
+    // O(B + C) where B is the number of buckets of the histogram and C the number of counters
+    public void report(MetricsListener listener) {
+        Objects.requireNonNull(listener, "No listener");
+        listener.onReport(new DecisionMetrics(
+                name, allowed.sum(), denied.sum(), limiter.numberOfResources(), latency.drain()
+        ));
+        if (requestedResources != null) {
+            requestedResources.decay();
+            deniedResources.decay();
+        }
+    }
+
+    /**
+     * Most requested resources first, approximately, see {@link HeavyHitters}.
+     * Counts are estimated from a sample, and halved by every report.
+     *
+     * @throws IllegalStateException unless heavy hitters are tracked
+     */
+    // O(C * log C) where C is the number of counters
+    public List<HeavyHitters.Entry> topRequested(int n) {
+        if (requestedResources == null) throw new IllegalStateException("No heavy hitters tracked");
+        return requestedResources.top(n);
+    }
+
+    /**
+     * Most denied resources first, approximately, see {@link HeavyHitters}.
+     * Counts are estimated from a sample, and halved by every report.
+     *
+     * @throws IllegalStateException unless heavy hitters are tracked
+     */
+    // O(C * log C) where C is the number of counters
+    public List<HeavyHitters.Entry> topDenied(int n) {
+        if (deniedResources == null) throw new IllegalStateException("No heavy hitters tracked");
+        return deniedResources.top(n);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    private static boolean sampled() {
+        return (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) == 0;
+    }
+
+    private long startNanos(boolean sampled) {
+        return sampled ? watch.currentTimeNanos() : NOT_SAMPLED;
+    }
+
+    // Decoded before the timing starts, the decision and the tracking share the String
+    private boolean decideTracked(String resource, long permits) {
+        long startNanos = startNanos(true);
+        boolean allowed = count(limiter.isAllowed(resource, permits), startNanos);
+        track(resource, allowed);
+        return allowed;
+    }
+
+    private void track(String resource, boolean allowed) {
+        requestedResources.add(resource, SAMPLE_WEIGHT);
+        if (!allowed) {
+            deniedResources.add(resource, SAMPLE_WEIGHT);
+        }
+    }
+
+    private boolean count(boolean allowed, long startNanos) {
+        if (startNanos != NOT_SAMPLED) {
+            latency.record(watch.currentTimeNanos() - startNanos);
+        }
+        (allowed ? this.allowed : this.denied).increment();
+        return allowed;
+    }
+
+}
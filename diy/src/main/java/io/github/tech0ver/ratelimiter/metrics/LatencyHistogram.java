@@ -0,0 +1,119 @@
+package io.github.tech0ver.ratelimiter.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of nanos, in the spirit of HdrHistogram:
+ * every power of two is split into 16 linear sub-buckets, so a value is reported at most 1/16 (6.25%) above itself,
+ * from a nanosecond up to ~292 years, in a fixed number of counters.
+ * <p>
+ * The counters are {@link LongAdder}s, so concurrent recording threads don't contend on a hot bucket.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Exact below SUB_BUCKETS, then SUB_BUCKETS per power of two up to 2^62
+    private static final int BUCKETS = (Long.SIZE - 1 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final LongAdder[] counts;
+    private final LongAccumulator max;
+
+    public LatencyHistogram() {
+        this.counts = new LongAdder[BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts[bucket] = new LongAdder();
+        }
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    // O(1)
+    public void record(long nanos) {
+        // A watch going backwards counts as no time
+        long value = Math.max(0, nanos);
+        counts[bucket(value)].increment();
+        max.accumulate(value);
+    }
+
+    /**
+     * Moves the recorded values into a snapshot, recording goes on from an empty histogram.
+     * A value recorded meanwhile lands in either the snapshot or the histogram, never in both.
+     */
+    // O(B) where B is the number of buckets
+    public Snapshot drain() {
+        long[] drained = new long[BUCKETS];
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            drained[bucket] = counts[bucket].sumThenReset();
+            count += drained[bucket];
+        }
+        return new Snapshot(drained, count, max.getThenReset());
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Highest value of the bucket
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowestValue = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowestValue + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Values recorded between two drains.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        /**
+         * Value that the percentage of the values are at or below, 0 if there are none.
+         */
+        // O(B) where B is the number of buckets
+        public long valueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be in [0, 100]");
+            }
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) {
+                    // Never above the highest value recorded
+                    return Math.min(highestValue(bucket), max);
+                }
+            }
+            return max;
+        }
+
+    }
+
+}
@@ -0,0 +1,12 @@
+package io.github.tech0ver.ratelimiter.metrics;
+
+/**
+ * Exports the metrics of a limiter, e.g. to a registry or a log,
+ * on every {@link InstrumentedRateLimiter#report(MetricsListener)}.
+ */
+@FunctionalInterface
+public interface MetricsListener {
+
+    void onReport(DecisionMetrics metrics);
+
+}
@@ -0,0 +1,221 @@
+package io.github.tech0ver.ratelimiter.window;
+
+import io.github.tech0ver.ratelimiter.BatchDecisions;
+import io.github.tech0ver.ratelimiter.LongStateTable;
+import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.MyWatch;
+import io.github.tech0ver.ratelimiter.ResourceHash;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate sliding window counter in fixed memory whatever the number of resources, e.g. for per-IP limits:
+ * the counts of the current and the previous window are kept in two
+ * <a href="https://en.wikipedia.org/wiki/Count%E2%80%93min_sketch">Count-Min Sketches</a>,
+ * and weighted like {@link SlidingWindowCounterRateLimiter#createLinearInterpolated(long, Duration)} does.
+ * <p>
+ * Each sketch is {@code depth} rows of {@code width} counters, a resource counts in one counter per row,
+ * and its count is the least of them. Resources sharing a counter only ever overcount each other:
+ * with {@code N} permits counted in a window, a count exceeds the actual one by more than {@code e / width * N}
+ * with a probability of at most {@code e^-depth}. So a resource may be denied early, never admitted beyond its limit.
+ * Resources are hashed with a random seed, so nobody can pick resources sharing the counters of a victim.
+ * <p>
+ * The sketches alternate between even and odd windows. Every counter carries its window, packed into the same word:
+ * <pre>
+ * | window (32 bits) | count (32 bits) |
+ * </pre>
+ * so a sketch is reset lazily, counter by counter, and there is no global reset.
+ * A decision counts the permits first, then takes them back if denied, all by CAS:
+ * racing decisions may deny each other, never overadmit.
+ * A thread lagging behind a counter already in a later window of the same sketch leaves it alone and is denied,
+ * and a saturated counter stays so for the rest of its window, as its actual count is unknown.
+ */
+public class CountMinSketchRateLimiter implements MyRateLimiter {
+
+    private static final long COUNT_MASK = 0xFFFF_FFFFL;
+    // Longer than any thread lags between reading the clock and counting, e.g. a GC pause
+    private static final long MAX_LAG_NANOS = Duration.ofSeconds(1).toNanos();
+
+    // O(D * W) where D is the depth, W is the width, whatever the number of resources
+    private final AtomicLongArray[] sketches;
+    private final MyWatch watch;
+    private final long limit;
+    private final long windowSizeNanos;
+    private final int width;
+    private final int depth;
+    private final long seed;
+    private final int maxLagWindows;
+
+    public CountMinSketchRateLimiter(long limit, Duration windowSize, int width, int depth) {
+        this(limit, windowSize, width, depth, MyWatch.SYSTEM_NANO_TIME);
+    }
+
+    public CountMinSketchRateLimiter(long limit, Duration windowSize, int width, int depth, MyWatch watch) {
+        if (limit <= 0) throw new IllegalArgumentException("limit must be > 0");
+        if (limit >= COUNT_MASK) throw new IllegalArgumentException("limit must be < " + COUNT_MASK);
+        Objects.requireNonNull(windowSize, "No windowSize");
+        if (width <= 0) throw new IllegalArgumentException("width must be > 0");
+        if (depth <= 0) throw new IllegalArgumentException("depth must be > 0");
+        if ((long) width * depth > Integer.MAX_VALUE) throw new IllegalArgumentException("width * depth is too large");
+        Objects.requireNonNull(watch, "No watch");
+        this.watch = watch;
+        this.limit = limit;
+        this.windowSizeNanos = windowSize.toNanos();
+        // A sketch holds every other window, so a counter of the caller's sketch is 2 windows ahead at least
+        this.maxLagWindows = (int) Math.min(1 << 30, Math.max(2, MAX_LAG_NANOS / windowSizeNanos));
+        this.width = width;
+        this.depth = depth;
+        this.seed = LongStateTable.randomSeed();
+        this.sketches = new AtomicLongArray[]{new AtomicLongArray(width * depth), new AtomicLongArray(width * depth)};
+        // Empty counters of a past window, not ahead of any window to come
+        long emptyCounter = (long) (int) (Math.floorDiv(watch.currentTimeNanos(), windowSizeNanos) - 2) << 32;
+        for (AtomicLongArray sketch : sketches) {
+            for (int index = 0; index < sketch.length(); index++) {
+                sketch.set(index, emptyCounter);
+            }
+        }
+    }
+
+    // O(D) where D is the depth
+    @Override
+    public boolean isAllowed(String resource, long permits) {
+        Objects.requireNonNull(resource, "No resource");
+        return isAllowed(ResourceHash.of(resource, seed), permits);
+    }
+
+    // O(L + D) where L is the length of the resource, D is the depth
+    @Override
+    public boolean isAllowed(CharSequence resource, long permits) {
+        return isAllowed(ResourceHash.of(resource, seed), permits);
+    }
+
+    // O(L + D) where L is the length of the resource, D is the depth
+    @Override
+    public boolean isAllowed(byte[] resource, int offset, int length, long permits) {
+        return isAllowed(ResourceHash.of(resource, offset, length, seed), permits);
+    }
+
+    // O(L + D) where L is the length of the resource, D is the depth
+    @Override
+    public boolean isAllowed(ByteBuffer resource, long permits) {
+        return isAllowed(ResourceHash.of(resource, seed), permits);
+    }
+
+    // O(R * D) where R is the number of resources, D is the depth
+    @Override
+    public void isAllowed(String[] resources, BitSet allowed) {
+        BatchDecisions.isAllowed(
+                resources, allowed, watch, nowNanos -> { },
+                (resource, permits, nowNanos) -> isAllowed(ResourceHash.of(resource, seed), permits, nowNanos)
+        );
+    }
+
+    /**
+     * Hashes the resource once, there is nothing else to bind.
+     */
+    @Override
+    public Handle handle(String resource) {
+        long keyHash = ResourceHash.of(resource, seed);
+        return permits -> isAllowed(keyHash, permits);
+    }
+
+    private boolean isAllowed(long keyHash, long permits) {
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+        return isAllowed(keyHash, permits, watch.currentTimeNanos());
+    }
+
+    // O(D) where D is the depth
+    private boolean isAllowed(long keyHash, long permits, long nowNanos) {
+        // Would never fit into a window
+        if (permits > limit) {
+            return false;
+        }
+        long currentWindow = Math.floorDiv(nowNanos, windowSizeNanos);
+        double currentWindowElapsedNanos = nowNanos - currentWindow * windowSizeNanos;
+        double previousWindowRatio = 1.0 - currentWindowElapsedNanos / windowSizeNanos;
+        AtomicLongArray current = sketches[(int) (currentWindow & 1)];
+        AtomicLongArray previous = sketches[(int) ((currentWindow - 1) & 1)];
+        int window = (int) currentWindow;
+        long currentCount = Long.MAX_VALUE;
+        long previousCount = Long.MAX_VALUE;
+        int counted = 0;
+        boolean lagging = false;
+        while (counted < depth && !lagging) {
+            int index = index(keyHash, counted);
+            long count = add(current, index, window, permits);
+            if (count >= 0) {
+                counted++;
+                currentCount = Math.min(currentCount, count);
+                long previousRowCount = count(previous, index, window - 1);
+                previousCount = Math.min(previousCount, previousRowCount);
+                lagging = previousRowCount < 0;
+            } else {
+                lagging = true;
+            }
+        }
+        double slidingCount = (previousCount * previousWindowRatio) + currentCount;
+        // Behind a counter in a later window, so denied; else room for the last permit, counted already?
+        if (!lagging && slidingCount - 1 < limit) {
+            return true;
+        }
+        // From the rows counted in only
+        for (int row = 0; row < counted; row++) {
+            add(current, index(keyHash, row), window, -permits);
+        }
+        return false;
+    }
+
+    // Row by row double hashing, as good as independent hashes for the sketch
+    private int index(long keyHash, int row) {
+        int hash = (int) keyHash + row * (int) (keyHash >>> 32);
+        return row * width + (hash & Integer.MAX_VALUE) % width;
+    }
+
+    // Adds to the count of the window, resetting a counter of a past one; returns the new count,
+    // or -1 if the counter is in a later window already
+    private long add(AtomicLongArray sketch, int index, int window, long permits) {
+        while (true) {
+            long counter = sketch.get(index);
+            int counterWindow = (int) (counter >>> 32);
+            boolean sameWindow = counterWindow == window;
+            if (!sameWindow && isAhead(counterWindow, window)) {
+                return -1;
+            }
+            long count = sameWindow ? counter & COUNT_MASK : 0;
+            // Taking back permits from a counter reset in the meantime?
+            if (permits < 0 && !sameWindow) {
+                return 0;
+            }
+            // Saturated, its actual count is unknown, so nothing to take back
+            if (permits < 0 && count == COUNT_MASK) {
+                return count;
+            }
+            // Saturated, rather than overflowing into the window
+            long nextCount = Math.max(0, Math.min(COUNT_MASK, count + permits));
+            if (sketch.compareAndSet(index, counter, ((long) window << 32) | nextCount)) {
+                return nextCount;
+            }
+        }
+    }
+
+    // Further ahead than any thread lags, the counter wrapped around
+    private boolean isAhead(int counterWindow, int window) {
+        int ahead = counterWindow - window;
+        return ahead > 0 && ahead <= maxLagWindows;
+    }
+
+    // Returns -1 if the counter is in a later window already
+    private long count(AtomicLongArray sketch, int index, int window) {
+        long counter = sketch.get(index);
+        int counterWindow = (int) (counter >>> 32);
+        if (counterWindow == window) {
+            return counter & COUNT_MASK;
+        }
+        return isAhead(counterWindow, window) ? -1 : 0;
+    }
+
+}
@@ -1,57 +1,389 @@
 package io.github.tech0ver.ratelimiter.window;
 
-import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.BatchDecisions;
+import io.github.tech0ver.ratelimiter.IdleResourceSweeper;
+import io.github.tech0ver.ratelimiter.LongStateTable;
 import io.github.tech0ver.ratelimiter.MyWatch;
+import io.github.tech0ver.ratelimiter.SnapshotReader;
+import io.github.tech0ver.ratelimiter.SnapshotWriter;
+import io.github.tech0ver.ratelimiter.SnapshottableRateLimiter;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.BitSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
-public class FixedWindowCounterRateLimiter implements MyRateLimiter {
+/**
+ * Every counter carries the window it counts, packed into the same word:
+ * <pre>
+ * | window (32 bits) | count (32 bits) |
+ * </pre>
+ * so a counter of a past window is reset lazily, atomically with the first increment in a new window,
+ * and there is no global reset. Being a single word, it can be kept in a {@link LongStateTable}.
+ * The window wraps around every 2^32 windows: a counter seemingly ahead of the clock by more than a thread
+ * ever lags behind it, a second, is in the past, wrapped around, and counts afresh.
+ */
+public class FixedWindowCounterRateLimiter implements SnapshottableRateLimiter {
 
-    // O(N) where N is the number of active resources in the current window
+    private static final long COUNT_MASK = 0xFFFF_FFFFL;
+    // Never a real state, the count never exceeds the limit
+    private static final long EVICTED = -1L;
+    private static final long DENIED = -1L;
+    private static final String SNAPSHOT = "FixedWindowCounter";
+    // Longest a thread may take between reading the clock and updating the counter
+    private static final long MAX_LAG_NANOS = Duration.ofSeconds(1).toNanos();
+
+    // O(N) where N is the number of recently active resources, unless kept in the table
     private final Map<String, AtomicLong> counterByResource;
+    private final IdleResourceSweeper<AtomicLong> sweeper;
+    private final LongStateTable table;
+    private final LongStateTable.Evictor evictor;
     private final MyWatch watch;
     private final long limit;
     private final long windowSizeNanos;
-    private volatile long windowStartNanos;
+    private final int maxLagWindows;
 
     public FixedWindowCounterRateLimiter(long limit, Duration windowSize) {
         this(limit, windowSize, MyWatch.SYSTEM_NANO_TIME);
     }
 
     public FixedWindowCounterRateLimiter(long limit, Duration windowSize, MyWatch watch) {
+        this(null, limit, windowSize, watch);
+    }
+
+    /**
+     * Keeps the counters in the table, which must not be shared with another limiter.
+     * A resource the full table has no slot for is denied, see {@link LongStateTable#NO_SLOT}.
+     */
+    public FixedWindowCounterRateLimiter(long limit, Duration windowSize, MyWatch watch, LongStateTable table) {
+        this(Objects.requireNonNull(table, "No table"), limit, windowSize, watch);
+    }
+
+    private FixedWindowCounterRateLimiter(LongStateTable table, long limit, Duration windowSize, MyWatch watch) {
         if (limit <= 0) throw new IllegalArgumentException("limit must be > 0");
+        if (limit >= COUNT_MASK) throw new IllegalArgumentException("limit must be < " + COUNT_MASK);
         Objects.requireNonNull(windowSize, "No windowSize");
         Objects.requireNonNull(watch, "No watch");
         this.watch = watch;
         this.limit = limit;
         this.windowSizeNanos = windowSize.toNanos();
-        this.windowStartNanos = watch.currentTimeNanos();
+        this.maxLagWindows = (int) Math.min(1 << 30, Math.max(1, MAX_LAG_NANOS / windowSizeNanos));
         this.counterByResource = new ConcurrentHashMap<>();
+        this.sweeper = new IdleResourceSweeper<>(counterByResource, this::evictIfIdle);
+        this.table = table;
+        this.evictor = this::evictIfIdle;
     }
 
     // O(1)
     @Override
-    public boolean isAllowed(String resource) {
+    public boolean isAllowed(String resource, long permits) {
         Objects.requireNonNull(resource, "No resource");
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
         long nowNanos = watch.currentTimeNanos();
-        // Has the current window expired?
-        if (nowNanos - windowStartNanos >= windowSizeNanos) {
-            synchronized (this) {
-                // Double-checked locking
-                if (nowNanos - windowStartNanos >= windowSizeNanos) {
-                    // Reset state
-                    counterByResource.clear();
-                    windowStartNanos = nowNanos;
+        sweep(nowNanos);
+        return isAllowed(resource, permits, nowNanos);
+    }
+
+    // O(R) where R is the number of resources
+    @Override
+    public void isAllowed(String[] resources, BitSet allowed) {
+        BatchDecisions.isAllowed(resources, allowed, watch, this::sweep, this::isAllowed);
+    }
+
+    /**
+     * By the hash of the characters when kept in the table, no {@link String} is built.
+     */
+    // O(L) where L is the length of the resource
+    @Override
+    public boolean isAllowed(CharSequence resource, long permits) {
+        if (table == null) return SnapshottableRateLimiter.super.isAllowed(resource, permits);
+        return isAllowed(table.hash(resource), permits);
+    }
+
+    /**
+     * By the hash of the bytes when kept in the table, nothing is decoded.
+     */
+    // O(L) where L is the length of the resource
+    @Override
+    public boolean isAllowed(byte[] resource, int offset, int length, long permits) {
+        if (table == null) return SnapshottableRateLimiter.super.isAllowed(resource, offset, length, permits);
+        return isAllowed(table.hash(resource, offset, length), permits);
+    }
+
+    /**
+     * By the hash of the remaining bytes when kept in the table, nothing is decoded.
+     */
+    // O(L) where L is the length of the resource
+    @Override
+    public boolean isAllowed(ByteBuffer resource, long permits) {
+        if (table == null) return SnapshottableRateLimiter.super.isAllowed(resource, permits);
+        return isAllowed(table.hash(resource), permits);
+    }
+
+    // O(1), same as isAllowed(String, long) of a resource in the table
+    private boolean isAllowed(long keyHash, long permits) {
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+        long nowNanos = watch.currentTimeNanos();
+        sweep(nowNanos);
+        return isAllowed(keyHash, table.slot(keyHash, pack(window(nowNanos), 0)), permits, nowNanos);
+    }
+
+    /**
+     * Binds the counter of the resource, a stale one is looked up again once evicted.
+     */
+    @Override
+    public Handle handle(String resource) {
+        Objects.requireNonNull(resource, "No resource");
+        long nowNanos = watch.currentTimeNanos();
+        if (table != null) {
+            long keyHash = table.hash(resource);
+            return new SlotHandle(keyHash, table.slot(keyHash, pack(window(nowNanos), 0)));
+        }
+        return new CounterHandle(resource, counter(resource, nowNanos));
+    }
+
+    /**
+     * Writes the count of each counter with its window relative to the current one, leaving out the expired ones.
+     * Windows are aligned to the watch, so a restored count lasts for as long as the restoring limiter's window.
+     */
+    // O(N) where N is the number of recently active resources, or the slots of the table
+    @Override
+    public void snapshot(OutputStream out) throws IOException {
+        Objects.requireNonNull(out, "No out");
+        long nowNanos = watch.currentTimeNanos();
+        SnapshotWriter writer = new SnapshotWriter(
+                out, SNAPSHOT, configuration(), table != null ? table.seed() : 0, nowNanos
+        );
+        if (table != null) {
+            for (int slot = 0; slot < table.slots(); slot++) {
+                long keyHash = table.keyHash(slot);
+                long state = table.state(slot);
+                // Freed or claimed for another key in the meantime?
+                if (keyHash == 0 || !table.holds(slot, keyHash)) continue;
+                if (isCounting(state, nowNanos)) {
+                    writer.keyHash(keyHash);
+                    write(writer, state, nowNanos);
                 }
             }
+        } else {
+            for (Map.Entry<String, AtomicLong> entry : counterByResource.entrySet()) {
+                long state = entry.getValue().get();
+                if (isCounting(state, nowNanos)) {
+                    writer.resource(entry.getKey());
+                    write(writer, state, nowNanos);
+                }
+            }
+        }
+        writer.finish();
+    }
+
+    // O(S) where S is the number of resources in the snapshot
+    @Override
+    public void restore(InputStream in) throws IOException {
+        Objects.requireNonNull(in, "No in");
+        long nowNanos = watch.currentTimeNanos();
+        SnapshotReader reader = new SnapshotReader(in, SNAPSHOT, configuration(), nowNanos);
+        while (reader.next()) {
+            int window = window(nowNanos) + (int) reader.readLong();
+            long state = pack(window, Math.min(limit, reader.readLong()));
+            if (table != null) {
+                table.put(reader.keyHash(table.seed()), state, EVICTED);
+            } else {
+                AtomicLong replaced = counterByResource.put(reader.requireResource(), new AtomicLong(state));
+                // Threads and handles holding it look the resource up again
+                if (replaced != null) {
+                    replaced.set(EVICTED);
+                }
+            }
+        }
+    }
+
+    // Checked on restore, states are only meaningful to a limiter configured alike
+    private long[] configuration() {
+        return new long[]{limit, windowSizeNanos};
+    }
+
+    private boolean isCounting(long state, long nowNanos) {
+        return state != EVICTED && !isIdle(state, nowNanos) && (state & COUNT_MASK) != 0;
+    }
+
+    private void write(SnapshotWriter writer, long state, long nowNanos) throws IOException {
+        writer.writeLong((int) (state >>> 32) - window(nowNanos));
+        writer.writeLong(state & COUNT_MASK);
+    }
+
+    private boolean isAllowed(String resource, long permits, long nowNanos) {
+        if (table != null) {
+            long keyHash = table.hash(resource);
+            return isAllowed(keyHash, table.slot(keyHash, pack(window(nowNanos), 0)), permits, nowNanos);
         }
-        // Get or create counter
-        AtomicLong counter = counterByResource.computeIfAbsent(resource, k -> new AtomicLong(0));
-        return counter.incrementAndGet() <= limit;
+        return isAllowed(resource, counter(resource, nowNanos), permits, nowNanos);
+    }
+
+    // O(1)
+    private boolean isAllowed(String resource, AtomicLong counter, long permits, long nowNanos) {
+        int window = window(nowNanos);
+        while (true) {
+            long state = counter.get();
+            // Evicted in the meantime?
+            if (state == EVICTED) {
+                counter = counter(resource, nowNanos);
+                continue;
+            }
+            long nextState = nextState(state, permits, window);
+            if (nextState == DENIED) {
+                return false;
+            }
+            if (counter.compareAndSet(state, nextState)) {
+                return true;
+            }
+        }
+    }
+
+    // O(1), same for a slot of the table
+    private boolean isAllowed(long keyHash, int slot, long permits, long nowNanos) {
+        int window = window(nowNanos);
+        while (true) {
+            // No slot in the full table
+            if (slot == LongStateTable.NO_SLOT) {
+                return false;
+            }
+            long state = table.state(slot);
+            // Evicted in the meantime?
+            if (state == EVICTED || !table.holds(slot, keyHash)) {
+                slot = table.claim(keyHash, pack(window, 0));
+                continue;
+            }
+            long nextState = nextState(state, permits, window);
+            if (nextState == DENIED) {
+                return false;
+            }
+            if (table.compareAndSet(slot, state, nextState)) {
+                return true;
+            }
+        }
+    }
+
+    private long nextState(long state, long permits, int window) {
+        int counterWindow = (int) (state >>> 32);
+        // Count in the most recent window, even if this thread observed the clock a bit earlier
+        int currentWindow = isAhead(counterWindow, window) ? counterWindow : window;
+        // Has the counter's window expired?
+        long count = currentWindow == counterWindow ? state & COUNT_MASK : 0;
+        if (permits > limit - count) {
+            return DENIED;
+        }
+        return pack(currentWindow, count + permits);
+    }
+
+    // Get or create counter
+    private AtomicLong counter(String resource, long nowNanos) {
+        return counterByResource.computeIfAbsent(resource, k -> new AtomicLong(pack(window(nowNanos), 0)));
+    }
+
+    private void sweep(long nowNanos) {
+        if (table != null) {
+            table.sweep(nowNanos, evictor);
+        } else {
+            sweeper.sweep(nowNanos);
+        }
+    }
+
+    @Override
+    public int numberOfResources() {
+        return table != null ? table.size() : counterByResource.size();
+    }
+
+    // Wraps around every 2^32 windows
+    private int window(long nowNanos) {
+        return (int) Math.floorDiv(nowNanos, windowSizeNanos);
+    }
+
+    private static long pack(int window, long count) {
+        return ((long) window << 32) | count;
+    }
+
+    private void evictIfIdle(String resource, AtomicLong counter, long nowNanos) {
+        long state = counter.get();
+        if (isIdle(state, nowNanos) && counter.compareAndSet(state, EVICTED)) {
+            counterByResource.remove(resource, counter);
+        }
+    }
+
+    private void evictIfIdle(int slot, long keyHash, long state, long nowNanos) {
+        if (isIdle(state, nowNanos)) {
+            table.remove(slot, keyHash, state, EVICTED);
+        }
+    }
+
+    // A counter of a past window is indistinguishable from a new one
+    private boolean isIdle(long state, long nowNanos) {
+        if (state == EVICTED) return false;
+        int counterWindow = (int) (state >>> 32);
+        int window = window(nowNanos);
+        return counterWindow != window && !isAhead(counterWindow, window);
+    }
+
+    // Further ahead than any thread lags, the counter wrapped around
+    private boolean isAhead(int counterWindow, int window) {
+        int ahead = counterWindow - window;
+        return ahead > 0 && ahead <= maxLagWindows;
+    }
+
+    private final class CounterHandle implements Handle {
+
+        private final String resource;
+        private volatile AtomicLong counter;
+
+        CounterHandle(String resource, AtomicLong counter) {
+            this.resource = resource;
+            this.counter = counter;
+        }
+
+        // O(1)
+        @Override
+        public boolean tryAcquire(long permits) {
+            if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+            long nowNanos = watch.currentTimeNanos();
+            sweep(nowNanos);
+            AtomicLong counter = this.counter;
+            if (counter.get() == EVICTED) {
+                this.counter = counter = counter(resource, nowNanos);
+            }
+            return isAllowed(resource, counter, permits, nowNanos);
+        }
+
+    }
+
+    private final class SlotHandle implements Handle {
+
+        private final long keyHash;
+        private volatile int slot;
+
+        SlotHandle(long keyHash, int slot) {
+            this.keyHash = keyHash;
+            this.slot = slot;
+        }
+
+        // O(1)
+        @Override
+        public boolean tryAcquire(long permits) {
+            if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+            long nowNanos = watch.currentTimeNanos();
+            sweep(nowNanos);
+            int slot = this.slot;
+            if (slot == LongStateTable.NO_SLOT || table.state(slot) == EVICTED || !table.holds(slot, keyHash)) {
+                this.slot = slot = table.claim(keyHash, pack(window(nowNanos), 0));
+            }
+            return isAllowed(keyHash, slot, permits, nowNanos);
+        }
+
     }
 
 }
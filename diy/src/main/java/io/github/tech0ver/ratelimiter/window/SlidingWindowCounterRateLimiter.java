@@ -1,14 +1,27 @@
 package io.github.tech0ver.ratelimiter.window;
 
-import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.BatchDecisions;
+import io.github.tech0ver.ratelimiter.IdleResourceSweeper;
+import io.github.tech0ver.ratelimiter.LongStateTable;
 import io.github.tech0ver.ratelimiter.MyWatch;
+import io.github.tech0ver.ratelimiter.SnapshotReader;
+import io.github.tech0ver.ratelimiter.SnapshotWriter;
+import io.github.tech0ver.ratelimiter.SnapshottableRateLimiter;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 
-public abstract class SlidingWindowCounterRateLimiter implements MyRateLimiter {
+public abstract class SlidingWindowCounterRateLimiter implements SnapshottableRateLimiter {
 
     protected final MyWatch watch;
     protected final long limit;
@@ -23,6 +36,11 @@ public abstract class SlidingWindowCounterRateLimiter implements MyRateLimiter {
         this.windowSizeNanos = windowSize.toNanos();
     }
 
+    // Checked on restore, states are only meaningful to a limiter configured alike
+    long[] configuration() {
+        return new long[]{limit, windowSizeNanos};
+    }
+
     public static SlidingWindowCounterRateLimiter createBucketed(
             long limit, Duration windowSize, int numberOfBuckets
     ) {
@@ -47,16 +65,62 @@ public abstract class SlidingWindowCounterRateLimiter implements MyRateLimiter {
         return new LinearInterpolatedCounter(limit, windowSize, watch);
     }
 
+    public static SlidingWindowCounterRateLimiter createLockFreeLinearInterpolated(
+            long limit, Duration windowSize
+    ) {
+        return createLockFreeLinearInterpolated(limit, windowSize, MyWatch.SYSTEM_NANO_TIME);
+    }
+
+    public static SlidingWindowCounterRateLimiter createLockFreeLinearInterpolated(
+            long limit, Duration windowSize, MyWatch watch
+    ) {
+        return new LockFreeLinearInterpolatedCounter(limit, windowSize, watch, null);
+    }
+
+    /**
+     * Keeps the windows in the table, which must not be shared with another limiter.
+     * A resource the full table has no slot for is denied, see {@link LongStateTable#NO_SLOT}.
+     */
+    public static SlidingWindowCounterRateLimiter createLockFreeLinearInterpolated(
+            long limit, Duration windowSize, MyWatch watch, LongStateTable table
+    ) {
+        Objects.requireNonNull(table, "No table");
+        return new LockFreeLinearInterpolatedCounter(limit, windowSize, watch, table);
+    }
+
+    // O(1) amortized, plus O(min(P, B)) for the bucketed counter, see its slide
     @Override
-    public abstract boolean isAllowed(String resource);
+    public boolean isAllowed(String resource, long permits) {
+        Objects.requireNonNull(resource, "No resource");
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+        long nowNanos = watch.currentTimeNanos();
+        sweep(nowNanos);
+        return isAllowed(resource, permits, nowNanos);
+    }
+
+    // O(R) decisions where R is the number of resources
+    @Override
+    public void isAllowed(String[] resources, BitSet allowed) {
+        BatchDecisions.isAllowed(resources, allowed, watch, this::sweep, this::isAllowed);
+    }
+
+    abstract boolean isAllowed(String resource, long permits, long nowNanos);
+
+    abstract void sweep(long nowNanos);
+
+    @Override
+    public abstract int numberOfResources();
 
     /**
      * Based on buckets.
      */
     private static class BucketedCounter extends SlidingWindowCounterRateLimiter {
 
-        // O(N * B) where N is the number of active resources, B is the number of buckets
+        private static final String SNAPSHOT = "BucketedSlidingWindowCounter";
+
+        // O(N * B) where N is the number of recently active resources, B is the number of buckets
         private final Map<String, BucketedWindow> windowByResource;
+        private final IdleResourceSweeper<BucketedWindow> sweeper;
         private final int numberOfBuckets;
         private final long bucketSizeNanos;
 
@@ -66,47 +130,199 @@ public abstract class SlidingWindowCounterRateLimiter implements MyRateLimiter {
             this.numberOfBuckets = numberOfBuckets;
             this.bucketSizeNanos = windowSizeNanos / numberOfBuckets;
             this.windowByResource = new ConcurrentHashMap<>();
+            this.sweeper = new IdleResourceSweeper<>(windowByResource, this::evictIfIdle);
+        }
+
+        @Override
+        long[] configuration() {
+            return new long[]{limit, windowSizeNanos, numberOfBuckets};
         }
 
-        // O(B) where B is the number of buckets
+        /**
+         * Binds the window of the resource, a stale one is looked up again once evicted.
+         */
         @Override
-        public boolean isAllowed(String resource) {
+        public Handle handle(String resource) {
             Objects.requireNonNull(resource, "No resource");
+            return new BucketedWindowHandle(resource, window(resource, watch.currentTimeNanos()));
+        }
+
+        /**
+         * Writes the buckets of each window from the oldest one, the current one relative to now.
+         */
+        // O(N * B) where N is the number of recently active resources, B is the number of buckets
+        @Override
+        public void snapshot(OutputStream out) throws IOException {
+            Objects.requireNonNull(out, "No out");
             long nowNanos = watch.currentTimeNanos();
-            // Get or create bucket
-            BucketedWindow window = windowByResource.computeIfAbsent(resource, k -> new BucketedWindow());
-            //noinspection SynchronizationOnLocalVariableOrMethodParameter
-            synchronized (window) {
-                int bucketIndex = (int) ((nowNanos / bucketSizeNanos) % numberOfBuckets);
-                long bucketStartNanos = nowNanos - (nowNanos % bucketSizeNanos);
-                // Has the bucket expired?
-                if (nowNanos - window.timestamps[bucketIndex] >= bucketSizeNanos) {
-                    window.counts[bucketIndex] = 0;
-                    window.timestamps[bucketIndex] = bucketStartNanos;
+            long bucket = Math.floorDiv(nowNanos, bucketSizeNanos);
+            SnapshotWriter writer = new SnapshotWriter(out, SNAPSHOT, configuration(), nowNanos);
+            // Copied out of the monitor, so that a slow stream doesn't hold decisions on the resource
+            long[] counts = new long[numberOfBuckets];
+            for (Map.Entry<String, BucketedWindow> entry : windowByResource.entrySet()) {
+                BucketedWindow window = entry.getValue();
+                long currentBucket;
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized (window) {
+                    if (window.evicted) continue;
+                    slide(window, bucket);
+                    if (window.totalCount == 0) continue;
+                    currentBucket = window.currentBucket;
+                    for (int i = 0; i < numberOfBuckets; i++) {
+                        counts[i] = window.counts[bucketIndex(currentBucket - numberOfBuckets + 1 + i)];
+                    }
+                }
+                writer.resource(entry.getKey());
+                writer.writeLong(currentBucket - bucket);
+                for (long count : counts) {
+                    writer.writeLong(count);
                 }
-                long totalCount = 0;
+            }
+            writer.finish();
+        }
+
+        // O(S * B) where S is the number of resources in the snapshot, B is the number of buckets
+        @Override
+        public void restore(InputStream in) throws IOException {
+            Objects.requireNonNull(in, "No in");
+            long nowNanos = watch.currentTimeNanos();
+            long bucket = Math.floorDiv(nowNanos, bucketSizeNanos);
+            SnapshotReader reader = new SnapshotReader(in, SNAPSHOT, configuration(), nowNanos);
+            while (reader.next()) {
+                String resource = reader.requireResource();
+                BucketedWindow window = new BucketedWindow(bucket + reader.readLong());
+                // As many as the buckets, the configuration matched
                 for (int i = 0; i < numberOfBuckets; i++) {
-                    // Is a bucket in the current window?
-                    if (nowNanos - window.timestamps[i] < windowSizeNanos) {
-                        totalCount += window.counts[i];
+                    long count = reader.readLong();
+                    window.counts[bucketIndex(window.currentBucket - numberOfBuckets + 1 + i)] = count;
+                    window.totalCount += count;
+                }
+                BucketedWindow replaced = windowByResource.put(resource, window);
+                if (replaced != null) {
+                    //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                    synchronized (replaced) {
+                        // Threads and handles holding it look the resource up again
+                        replaced.evicted = true;
                     }
                 }
-                if (totalCount < limit) {
-                    window.counts[bucketIndex]++;
-                    return true;
+            }
+        }
+
+        @Override
+        boolean isAllowed(String resource, long permits, long nowNanos) {
+            return isAllowed(resource, window(resource, nowNanos), permits, nowNanos);
+        }
+
+        // O(min(P, B)), see slide: O(1) while the resource is decided on every bucket, O(B) after an idle gap
+        private boolean isAllowed(String resource, BucketedWindow window, long permits, long nowNanos) {
+            long bucket = Math.floorDiv(nowNanos, bucketSizeNanos);
+            while (true) {
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized (window) {
+                    // Not evicted in the meantime?
+                    if (!window.evicted) {
+                        slide(window, bucket);
+                        if (permits <= limit - window.totalCount) {
+                            // Count in the most recent bucket, even if this thread observed the clock a bit earlier
+                            window.counts[bucketIndex(window.currentBucket)] += permits;
+                            window.totalCount += permits;
+                            return true;
+                        }
+                        return false;
+                    }
+                }
+                window = window(resource, nowNanos);
+            }
+        }
+
+        // Get or create window
+        private BucketedWindow window(String resource, long nowNanos) {
+            return windowByResource.computeIfAbsent(
+                    resource, k -> new BucketedWindow(Math.floorDiv(nowNanos, bucketSizeNanos))
+            );
+        }
+
+        @Override
+        void sweep(long nowNanos) {
+            sweeper.sweep(nowNanos);
+        }
+
+        @Override
+        public int numberOfResources() {
+            return windowByResource.size();
+        }
+
+        // O(min(P, B)) where P is the number of buckets passed since the last call, B is the number of buckets
+        private void slide(BucketedWindow window, long bucket) {
+            long bucketsPassed = bucket - window.currentBucket;
+            if (bucketsPassed <= 0) return;
+            if (bucketsPassed >= numberOfBuckets) {
+                // The whole window has expired, the ring is cleared at once rather than bucket by bucket
+                Arrays.fill(window.counts, 0);
+                window.totalCount = 0;
+            } else {
+                // Expire the buckets which left the window
+                for (long passed = 1; passed <= bucketsPassed; passed++) {
+                    int bucketIndex = bucketIndex(window.currentBucket + passed);
+                    window.totalCount -= window.counts[bucketIndex];
+                    window.counts[bucketIndex] = 0;
+                }
+            }
+            window.currentBucket = bucket;
+        }
+
+        private int bucketIndex(long bucket) {
+            return (int) Math.floorMod(bucket, (long) numberOfBuckets);
+        }
+
+        private void evictIfIdle(String resource, BucketedWindow window, long nowNanos) {
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (window) {
+                slide(window, Math.floorDiv(nowNanos, bucketSizeNanos));
+                // No requests in the window, nothing to remember
+                if (window.totalCount == 0) {
+                    window.evicted = true;
+                    windowByResource.remove(resource, window);
                 }
-                return false;
             }
         }
 
         private final class BucketedWindow {
 
             long[] counts;
-            long[] timestamps;
+            // Sum of the counts, maintained as buckets are expired
+            long totalCount;
+            long currentBucket;
+            volatile boolean evicted;
 
-            private BucketedWindow() {
+            private BucketedWindow(long currentBucket) {
                 this.counts = new long[numberOfBuckets];
-                this.timestamps = new long[numberOfBuckets];
+                this.currentBucket = currentBucket;
+            }
+
+        }
+
+        private final class BucketedWindowHandle implements Handle {
+
+            private final String resource;
+            private volatile BucketedWindow window;
+
+            BucketedWindowHandle(String resource, BucketedWindow window) {
+                this.resource = resource;
+                this.window = window;
+            }
+
+            // O(min(P, B)), same as isAllowed
+            @Override
+            public boolean tryAcquire(long permits) {
+                if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+                long nowNanos = watch.currentTimeNanos();
+                sweep(nowNanos);
+                BucketedWindow window = this.window;
+                if (window.evicted) {
+                    this.window = window = window(resource, nowNanos);
+                }
+                return isAllowed(resource, window, permits, nowNanos);
             }
 
         }
@@ -120,40 +336,154 @@ public abstract class SlidingWindowCounterRateLimiter implements MyRateLimiter {
      */
     private static class LinearInterpolatedCounter extends SlidingWindowCounterRateLimiter {
 
-        // O(N) where N is the number of active resources
+        private static final String SNAPSHOT = "LinearInterpolatedSlidingWindowCounter";
+
+        // O(N) where N is the number of recently active resources
         private final Map<String, Window> windowByResource;
+        private final IdleResourceSweeper<Window> sweeper;
 
         LinearInterpolatedCounter(long limit, Duration windowSize, MyWatch watch) {
             super(limit, windowSize, watch);
             this.windowByResource = new ConcurrentHashMap<>();
+            this.sweeper = new IdleResourceSweeper<>(windowByResource, this::evictIfIdle);
         }
 
-        // O(1)
+        /**
+         * Binds the window of the resource, a stale one is looked up again once evicted.
+         */
         @Override
-        public boolean isAllowed(String resource) {
+        public Handle handle(String resource) {
             Objects.requireNonNull(resource, "No resource");
+            return new WindowHandle(resource, window(resource, watch.currentTimeNanos()));
+        }
+
+        /**
+         * Writes the counts of each window, the window relative to the current one.
+         */
+        // O(N) where N is the number of recently active resources
+        @Override
+        public void snapshot(OutputStream out) throws IOException {
+            Objects.requireNonNull(out, "No out");
+            long nowNanos = watch.currentTimeNanos();
+            long currentWindowStartNanos = nowNanos - (nowNanos % windowSizeNanos);
+            SnapshotWriter writer = new SnapshotWriter(out, SNAPSHOT, configuration(), nowNanos);
+            for (Map.Entry<String, Window> entry : windowByResource.entrySet()) {
+                Window window = entry.getValue();
+                long startNanos;
+                long previousCount;
+                long currentCount;
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized (window) {
+                    if (window.evicted) continue;
+                    // Never shift back, the window may have been moved by a more recent decision
+                    if (currentWindowStartNanos > window.startNanos) {
+                        shift(window, currentWindowStartNanos);
+                    }
+                    startNanos = window.startNanos;
+                    previousCount = window.previousCount;
+                    currentCount = window.currentCount;
+                }
+                if (previousCount == 0 && currentCount == 0) continue;
+                writer.resource(entry.getKey());
+                writer.writeLong((startNanos - currentWindowStartNanos) / windowSizeNanos);
+                writer.writeLong(previousCount);
+                writer.writeLong(currentCount);
+            }
+            writer.finish();
+        }
+
+        // O(S) where S is the number of resources in the snapshot
+        @Override
+        public void restore(InputStream in) throws IOException {
+            Objects.requireNonNull(in, "No in");
             long nowNanos = watch.currentTimeNanos();
             long currentWindowStartNanos = nowNanos - (nowNanos % windowSizeNanos);
-            // Get or create window
-            Window window = windowByResource.computeIfAbsent(resource, k -> new Window(currentWindowStartNanos));
+            SnapshotReader reader = new SnapshotReader(in, SNAPSHOT, configuration(), nowNanos);
+            while (reader.next()) {
+                String resource = reader.requireResource();
+                Window window = new Window(currentWindowStartNanos + reader.readLong() * windowSizeNanos);
+                window.previousCount = reader.readLong();
+                window.currentCount = reader.readLong();
+                Window replaced = windowByResource.put(resource, window);
+                if (replaced != null) {
+                    //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                    synchronized (replaced) {
+                        // Threads and handles holding it look the resource up again
+                        replaced.evicted = true;
+                    }
+                }
+            }
+        }
+
+        @Override
+        boolean isAllowed(String resource, long permits, long nowNanos) {
+            return isAllowed(resource, window(resource, nowNanos), permits, nowNanos);
+        }
+
+        // O(1)
+        private boolean isAllowed(String resource, Window window, long permits, long nowNanos) {
+            long currentWindowStartNanos = nowNanos - (nowNanos % windowSizeNanos);
+            while (true) {
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized (window) {
+                    // Not evicted in the meantime?
+                    if (!window.evicted) {
+                        // Different windows?
+                        if (currentWindowStartNanos != window.startNanos) {
+                            shift(window, currentWindowStartNanos);
+                        }
+                        double currentWindowElapsedNanos = nowNanos - currentWindowStartNanos;
+                        double previousWindowRatio = 1.0 - currentWindowElapsedNanos / windowSizeNanos;
+                        double slidingCount = (window.previousCount * previousWindowRatio) + window.currentCount;
+                        // Is there room for the last permit?
+                        if (slidingCount + (permits - 1) < limit) {
+                            window.currentCount += permits;
+                            return true;
+                        }
+                        return false;
+                    }
+                }
+                window = window(resource, nowNanos);
+            }
+        }
+
+        // Get or create window
+        private Window window(String resource, long nowNanos) {
+            return windowByResource.computeIfAbsent(
+                    resource, k -> new Window(nowNanos - (nowNanos % windowSizeNanos))
+            );
+        }
+
+        @Override
+        void sweep(long nowNanos) {
+            sweeper.sweep(nowNanos);
+        }
+
+        @Override
+        public int numberOfResources() {
+            return windowByResource.size();
+        }
+
+        private void shift(Window window, long currentWindowStartNanos) {
+            long windowsPassed = (currentWindowStartNanos - window.startNanos) / windowSizeNanos;
+            window.previousCount = windowsPassed == 1 ? window.currentCount : 0;
+            window.currentCount = 0;
+            window.startNanos = currentWindowStartNanos;
+        }
+
+        private void evictIfIdle(String resource, Window window, long nowNanos) {
+            long currentWindowStartNanos = nowNanos - (nowNanos % windowSizeNanos);
             //noinspection SynchronizationOnLocalVariableOrMethodParameter
             synchronized (window) {
-                // Different windows?
-                if (currentWindowStartNanos != window.startNanos) {
-                    // Shift window
-                    long windowsPassed = (currentWindowStartNanos - window.startNanos) / windowSizeNanos;
-                    window.previousCount = windowsPassed == 1 ? window.currentCount : 0;
-                    window.currentCount = 0;
-                    window.startNanos = currentWindowStartNanos;
-                }
-                double currentWindowElapsedNanos = nowNanos - currentWindowStartNanos;
-                double previousWindowRatio = 1.0 - currentWindowElapsedNanos / windowSizeNanos;
-                double slidingCount = (window.previousCount * previousWindowRatio) + window.currentCount;
-                if (slidingCount < limit) {
-                    window.currentCount++;
-                    return true;
+                // Never shift back, the window may have been moved by a more recent decision
+                if (currentWindowStartNanos > window.startNanos) {
+                    shift(window, currentWindowStartNanos);
+                }
+                // Nothing in the previous and current windows, nothing to remember
+                if (window.previousCount == 0 && window.currentCount == 0) {
+                    window.evicted = true;
+                    windowByResource.remove(resource, window);
                 }
-                return false;
             }
         }
 
@@ -162,6 +492,7 @@ public abstract class SlidingWindowCounterRateLimiter implements MyRateLimiter {
             long previousCount;
             long currentCount;
             long startNanos;
+            volatile boolean evicted;
 
             public Window(long startNanos) {
                 this.startNanos = startNanos;
@@ -169,6 +500,409 @@ public abstract class SlidingWindowCounterRateLimiter implements MyRateLimiter {
 
         }
 
+        private final class WindowHandle implements Handle {
+
+            private final String resource;
+            private volatile Window window;
+
+            WindowHandle(String resource, Window window) {
+                this.resource = resource;
+                this.window = window;
+            }
+
+            // O(1)
+            @Override
+            public boolean tryAcquire(long permits) {
+                if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+                long nowNanos = watch.currentTimeNanos();
+                sweep(nowNanos);
+                Window window = this.window;
+                if (window.evicted) {
+                    this.window = window = window(resource, nowNanos);
+                }
+                return isAllowed(resource, window, permits, nowNanos);
+            }
+
+        }
+
+    }
+
+    /**
+     * {@link LinearInterpolatedCounter} without a monitor, the whole window is a single word updated by CAS:
+     * <pre>
+     * | window (24 bits) | previous count (20 bits) | current count (20 bits) |
+     * </pre>
+     * so the limit must be less than 2^20 - 1. Being a single word, it can be kept in a {@link LongStateTable}.
+     * The window wraps around every 2^24 windows: a state seemingly ahead of the clock by more than a thread
+     * ever lags behind it, a second, is in the past, wrapped around. So a resource idle for that long is counted
+     * afresh, unless it's idle for a multiple of 2^24 windows to within a second, then its counts last a second more.
+     */
+    private static class LockFreeLinearInterpolatedCounter extends SlidingWindowCounterRateLimiter {
+
+        private static final int COUNT_BITS = 20;
+        private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+        private static final int WINDOW_SHIFT = 2 * COUNT_BITS;
+        private static final long WINDOWS = 1L << (Long.SIZE - WINDOW_SHIFT);
+        // Longest a thread may take between reading the clock and updating the state
+        private static final long MAX_LAG_NANOS = Duration.ofSeconds(1).toNanos();
+        // Never a real state, the counts never exceed the limit
+        private static final long EVICTED = -1L;
+        private static final long DENIED = -1L;
+        private static final String SNAPSHOT = "LockFreeLinearInterpolatedSlidingWindowCounter";
+
+        // O(N) where N is the number of recently active resources, unless kept in the table
+        private final Map<String, Window> windowByResource;
+        private final IdleResourceSweeper<Window> sweeper;
+        private final LongStateTable table;
+        private final LongStateTable.Evictor evictor;
+        private final long maxLagWindows;
+
+        LockFreeLinearInterpolatedCounter(long limit, Duration windowSize, MyWatch watch, LongStateTable table) {
+            super(limit, windowSize, watch);
+            if (limit >= COUNT_MASK) throw new IllegalArgumentException("limit must be < " + COUNT_MASK);
+            this.windowByResource = new ConcurrentHashMap<>();
+            this.sweeper = new IdleResourceSweeper<>(windowByResource, this::evictIfIdle);
+            this.table = table;
+            this.evictor = this::evictIfIdle;
+            this.maxLagWindows = Math.min(WINDOWS / 4, Math.max(1, MAX_LAG_NANOS / windowSizeNanos));
+        }
+
+        /**
+         * Binds the window of the resource, a stale one is looked up again once evicted.
+         */
+        @Override
+        public Handle handle(String resource) {
+            Objects.requireNonNull(resource, "No resource");
+            long nowNanos = watch.currentTimeNanos();
+            if (table != null) {
+                long keyHash = table.hash(resource);
+                return new SlotHandle(keyHash, table.slot(keyHash, initialState(nowNanos)));
+            }
+            return new WindowHandle(resource, window(resource, nowNanos));
+        }
+
+        /**
+         * By the hash of the characters when kept in the table, no {@link String} is built.
+         */
+        // O(L) where L is the length of the resource
+        @Override
+        public boolean isAllowed(CharSequence resource, long permits) {
+            if (table == null) return super.isAllowed(resource, permits);
+            return isAllowed(table.hash(resource), permits);
+        }
+
+        /**
+         * By the hash of the bytes when kept in the table, nothing is decoded.
+         */
+        // O(L) where L is the length of the resource
+        @Override
+        public boolean isAllowed(byte[] resource, int offset, int length, long permits) {
+            if (table == null) return super.isAllowed(resource, offset, length, permits);
+            return isAllowed(table.hash(resource, offset, length), permits);
+        }
+
+        /**
+         * By the hash of the remaining bytes when kept in the table, nothing is decoded.
+         */
+        // O(L) where L is the length of the resource
+        @Override
+        public boolean isAllowed(ByteBuffer resource, long permits) {
+            if (table == null) return super.isAllowed(resource, permits);
+            return isAllowed(table.hash(resource), permits);
+        }
+
+        // O(1), same as isAllowed(String, long) of a resource in the table
+        private boolean isAllowed(long keyHash, long permits) {
+            if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+            long nowNanos = watch.currentTimeNanos();
+            sweep(nowNanos);
+            return isAllowed(keyHash, table.slot(keyHash, initialState(nowNanos)), permits, nowNanos);
+        }
+
+        /**
+         * Writes the counts of each window, the window relative to the current one.
+         */
+        // O(N) where N is the number of recently active resources, or the slots of the table
+        @Override
+        public void snapshot(OutputStream out) throws IOException {
+            Objects.requireNonNull(out, "No out");
+            long nowNanos = watch.currentTimeNanos();
+            SnapshotWriter writer = new SnapshotWriter(
+                    out, SNAPSHOT, configuration(), table != null ? table.seed() : 0, nowNanos
+            );
+            if (table != null) {
+                for (int slot = 0; slot < table.slots(); slot++) {
+                    long keyHash = table.keyHash(slot);
+                    long state = table.state(slot);
+                    // Freed or claimed for another key in the meantime?
+                    if (keyHash == 0 || !table.holds(slot, keyHash)) continue;
+                    if (state != EVICTED && !isIdle(state, nowNanos)) {
+                        writer.keyHash(keyHash);
+                        write(writer, state, nowNanos);
+                    }
+                }
+            } else {
+                for (Map.Entry<String, Window> entry : windowByResource.entrySet()) {
+                    long state = entry.getValue().state;
+                    if (state != EVICTED && !isIdle(state, nowNanos)) {
+                        writer.resource(entry.getKey());
+                        write(writer, state, nowNanos);
+                    }
+                }
+            }
+            writer.finish();
+        }
+
+        // O(S) where S is the number of resources in the snapshot
+        @Override
+        public void restore(InputStream in) throws IOException {
+            Objects.requireNonNull(in, "No in");
+            long nowNanos = watch.currentTimeNanos();
+            SnapshotReader reader = new SnapshotReader(in, SNAPSHOT, configuration(), nowNanos);
+            while (reader.next()) {
+                long window = Math.floorDiv(nowNanos, windowSizeNanos) + reader.readLong();
+                long previousCount = Math.min(limit, reader.readLong());
+                long currentCount = Math.min(limit, reader.readLong());
+                long state = pack(window, previousCount, currentCount);
+                if (table != null) {
+                    table.put(reader.keyHash(table.seed()), state, EVICTED);
+                } else {
+                    Window replaced = windowByResource.put(reader.requireResource(), new Window(state));
+                    // Threads and handles holding it look the resource up again
+                    if (replaced != null) {
+                        replaced.state = EVICTED;
+                    }
+                }
+            }
+        }
+
+        private void write(SnapshotWriter writer, long state, long nowNanos) throws IOException {
+            writer.writeLong(-windowsPassed(state, Math.floorDiv(nowNanos, windowSizeNanos)));
+            writer.writeLong((state >>> COUNT_BITS) & COUNT_MASK);
+            writer.writeLong(state & COUNT_MASK);
+        }
+
+        @Override
+        boolean isAllowed(String resource, long permits, long nowNanos) {
+            if (table != null) {
+                long keyHash = table.hash(resource);
+                return isAllowed(keyHash, table.slot(keyHash, initialState(nowNanos)), permits, nowNanos);
+            }
+            return isAllowed(resource, window(resource, nowNanos), permits, nowNanos);
+        }
+
+        // O(1)
+        private boolean isAllowed(String resource, Window window, long permits, long nowNanos) {
+            while (true) {
+                long state = window.state;
+                // Evicted in the meantime?
+                if (state == EVICTED) {
+                    window = window(resource, nowNanos);
+                    continue;
+                }
+                long nextState = nextState(state, permits, nowNanos);
+                if (nextState == DENIED) {
+                    return false;
+                }
+                if (window.compareAndSet(state, nextState)) {
+                    return true;
+                }
+            }
+        }
+
+        // O(1), same for a slot of the table
+        private boolean isAllowed(long keyHash, int slot, long permits, long nowNanos) {
+            while (true) {
+                // No slot in the full table
+                if (slot == LongStateTable.NO_SLOT) {
+                    return false;
+                }
+                long state = table.state(slot);
+                // Evicted in the meantime?
+                if (state == EVICTED || !table.holds(slot, keyHash)) {
+                    slot = table.claim(keyHash, initialState(nowNanos));
+                    continue;
+                }
+                long nextState = nextState(state, permits, nowNanos);
+                if (nextState == DENIED) {
+                    return false;
+                }
+                if (table.compareAndSet(slot, state, nextState)) {
+                    return true;
+                }
+            }
+        }
+
+        private long nextState(long state, long permits, long nowNanos) {
+            long currentWindow = Math.floorDiv(nowNanos, windowSizeNanos);
+            double currentWindowElapsedNanos = nowNanos - currentWindow * windowSizeNanos;
+            double previousWindowRatio = 1.0 - currentWindowElapsedNanos / windowSizeNanos;
+            long windowsPassed = windowsPassed(state, currentWindow);
+            long stateWindow = currentWindow;
+            long previousCount;
+            long currentCount;
+            double ratio = previousWindowRatio;
+            if (windowsPassed == 0) {
+                previousCount = (state >>> COUNT_BITS) & COUNT_MASK;
+                currentCount = state & COUNT_MASK;
+            } else if (windowsPassed == 1) {
+                // Shift window
+                previousCount = state & COUNT_MASK;
+                currentCount = 0;
+            } else if (windowsPassed > 1) {
+                previousCount = 0;
+                currentCount = 0;
+            } else {
+                // This thread observed the clock a bit earlier than a more recent decision,
+                // count in the more recent window weighting its previous one fully
+                previousCount = (state >>> COUNT_BITS) & COUNT_MASK;
+                currentCount = state & COUNT_MASK;
+                stateWindow = state >>> WINDOW_SHIFT;
+                ratio = 1.0;
+            }
+            double slidingCount = (previousCount * ratio) + currentCount;
+            // No room for the last permit?
+            if (slidingCount + (permits - 1) >= limit) {
+                return DENIED;
+            }
+            // Shift the window and count in a single step
+            return pack(stateWindow, previousCount, currentCount + permits);
+        }
+
+        // Get or create window
+        private Window window(String resource, long nowNanos) {
+            return windowByResource.computeIfAbsent(resource, k -> new Window(initialState(nowNanos)));
+        }
+
+        private long initialState(long nowNanos) {
+            return pack(Math.floorDiv(nowNanos, windowSizeNanos), 0, 0);
+        }
+
+        @Override
+        void sweep(long nowNanos) {
+            if (table != null) {
+                table.sweep(nowNanos, evictor);
+            } else {
+                sweeper.sweep(nowNanos);
+            }
+        }
+
+        @Override
+        public int numberOfResources() {
+            return table != null ? table.size() : windowByResource.size();
+        }
+
+        // Negative if a thread observed the clock a bit earlier than a more recent decision
+        private long windowsPassed(long state, long currentWindow) {
+            long stateWindow = state >>> WINDOW_SHIFT;
+            // Sign-extended 24-bit difference
+            long windowsPassed = ((currentWindow - stateWindow) << WINDOW_SHIFT) >> WINDOW_SHIFT;
+            // Further ahead than any thread lags, the state wrapped around
+            return windowsPassed < -maxLagWindows ? windowsPassed + WINDOWS : windowsPassed;
+        }
+
+        private static long pack(long window, long previousCount, long currentCount) {
+            return (window << WINDOW_SHIFT) | (previousCount << COUNT_BITS) | currentCount;
+        }
+
+        private void evictIfIdle(String resource, Window window, long nowNanos) {
+            long state = window.state;
+            if (isIdle(state, nowNanos) && window.compareAndSet(state, EVICTED)) {
+                windowByResource.remove(resource, window);
+            }
+        }
+
+        private void evictIfIdle(int slot, long keyHash, long state, long nowNanos) {
+            if (isIdle(state, nowNanos)) {
+                table.remove(slot, keyHash, state, EVICTED);
+            }
+        }
+
+        private boolean isIdle(long state, long nowNanos) {
+            if (state == EVICTED) return false;
+            long windowsPassed = windowsPassed(state, Math.floorDiv(nowNanos, windowSizeNanos));
+            long previousCount = (state >>> COUNT_BITS) & COUNT_MASK;
+            long currentCount = state & COUNT_MASK;
+            // Nothing in the previous and current windows, nothing to remember
+            return windowsPassed > 1
+                    || windowsPassed == 1 && currentCount == 0
+                    || windowsPassed == 0 && previousCount == 0 && currentCount == 0;
+        }
+
+        private static final class Window {
+
+            private static final VarHandle STATE;
+
+            static {
+                try {
+                    STATE = MethodHandles.lookup().findVarHandle(Window.class, "state", long.class);
+                } catch (ReflectiveOperationException e) {
+                    throw new ExceptionInInitializerError(e);
+                }
+            }
+
+            volatile long state;
+
+            Window(long state) {
+                this.state = state;
+            }
+
+            boolean compareAndSet(long expectedState, long state) {
+                return STATE.compareAndSet(this, expectedState, state);
+            }
+
+        }
+
+        private final class WindowHandle implements Handle {
+
+            private final String resource;
+            private volatile Window window;
+
+            WindowHandle(String resource, Window window) {
+                this.resource = resource;
+                this.window = window;
+            }
+
+            // O(1)
+            @Override
+            public boolean tryAcquire(long permits) {
+                if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+                long nowNanos = watch.currentTimeNanos();
+                sweep(nowNanos);
+                Window window = this.window;
+                if (window.state == EVICTED) {
+                    this.window = window = window(resource, nowNanos);
+                }
+                return isAllowed(resource, window, permits, nowNanos);
+            }
+
+        }
+
+        private final class SlotHandle implements Handle {
+
+            private final long keyHash;
+            private volatile int slot;
+
+            SlotHandle(long keyHash, int slot) {
+                this.keyHash = keyHash;
+                this.slot = slot;
+            }
+
+            // O(1)
+            @Override
+            public boolean tryAcquire(long permits) {
+                if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+                long nowNanos = watch.currentTimeNanos();
+                sweep(nowNanos);
+                int slot = this.slot;
+                if (slot == LongStateTable.NO_SLOT || table.state(slot) == EVICTED || !table.holds(slot, keyHash)) {
+                    this.slot = slot = table.claim(keyHash, initialState(nowNanos));
+                }
+                return isAllowed(keyHash, slot, permits, nowNanos);
+            }
+
+        }
+
     }
 
 }
@@ -1,19 +1,28 @@
 package io.github.tech0ver.ratelimiter.window;
 
-import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.BatchDecisions;
+import io.github.tech0ver.ratelimiter.IdleResourceSweeper;
 import io.github.tech0ver.ratelimiter.MyWatch;
+import io.github.tech0ver.ratelimiter.SnapshotReader;
+import io.github.tech0ver.ratelimiter.SnapshotWriter;
+import io.github.tech0ver.ratelimiter.SnapshottableRateLimiter;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.time.Duration;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.BitSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 
-public class SlidingWindowLogRateLimiter implements MyRateLimiter {
+public class SlidingWindowLogRateLimiter implements SnapshottableRateLimiter {
 
-    // O(N * L) where N is the number of active resources, L is the limit
-    private final Map<String, Deque<Long>> logsByResource;
+    private static final String SNAPSHOT = "SlidingWindowLog";
+
+    // O(N * L) where N is the number of recently active resources, L is the limit
+    private final Map<String, Log> logsByResource;
+    private final IdleResourceSweeper<Log> sweeper;
     private final MyWatch watch;
     private final int limit;
     private final long windowSizeNanos;
@@ -30,28 +39,243 @@ public class SlidingWindowLogRateLimiter implements MyRateLimiter {
         this.limit = limit;
         this.windowSizeNanos = windowSize.toNanos();
         this.logsByResource = new ConcurrentHashMap<>();
+        this.sweeper = new IdleResourceSweeper<>(logsByResource, this::evictIfIdle);
     }
 
-    // O(L) where L is the limit
+    // O(log L + P) where L is the limit, P is the number of permits
     @Override
-    public boolean isAllowed(String resource) {
+    public boolean isAllowed(String resource, long permits) {
         Objects.requireNonNull(resource, "No resource");
+        if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
         long nowNanos = watch.currentTimeNanos();
-        // Get or create logs
-        Deque<Long> logs = logsByResource.computeIfAbsent(resource, k -> new ArrayDeque<>());
-        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-        synchronized (logs) {
+        sweeper.sweep(nowNanos);
+        return isAllowed(resource, permits, nowNanos);
+    }
+
+    // O(R * log L) where R is the number of resources
+    @Override
+    public void isAllowed(String[] resources, BitSet allowed) {
+        BatchDecisions.isAllowed(resources, allowed, watch, sweeper::sweep, this::isAllowed);
+    }
+
+    /**
+     * Binds the logs of the resource, stale ones are looked up again once evicted.
+     */
+    @Override
+    public Handle handle(String resource) {
+        Objects.requireNonNull(resource, "No resource");
+        return new LogHandle(resource, log(resource));
+    }
+
+    /**
+     * Writes the timestamps of each log within the window, the first one relative to now and the others as deltas.
+     */
+    // O(N * L) where N is the number of recently active resources, L is the limit
+    @Override
+    public void snapshot(OutputStream out) throws IOException {
+        Objects.requireNonNull(out, "No out");
+        long nowNanos = watch.currentTimeNanos();
+        SnapshotWriter writer = new SnapshotWriter(out, SNAPSHOT, configuration(), nowNanos);
+        // Copied out of the monitor, so that a slow stream doesn't hold decisions on the resource
+        long[] timestamps = new long[Math.min(Log.INITIAL_CAPACITY, limit)];
+        for (Map.Entry<String, Log> entry : logsByResource.entrySet()) {
+            Log log = entry.getValue();
+            int size;
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (log) {
+                if (log.evicted) continue;
+                expire(log, nowNanos);
+                size = log.size;
+                if (size > timestamps.length) {
+                    timestamps = new long[log.timestamps.length];
+                }
+                for (int i = 0; i < size; i++) {
+                    timestamps[i] = log.get(i);
+                }
+            }
+            if (size == 0) continue;
+            writer.resource(entry.getKey());
+            writer.writeLong(size);
+            writer.writeNanos(timestamps[0]);
+            for (int i = 1; i < size; i++) {
+                writer.writeLong(timestamps[i] - timestamps[i - 1]);
+            }
+        }
+        writer.finish();
+    }
+
+    // O(S * L) where S is the number of resources in the snapshot, L is the limit
+    @Override
+    public void restore(InputStream in) throws IOException {
+        Objects.requireNonNull(in, "No in");
+        SnapshotReader reader = new SnapshotReader(in, SNAPSHOT, configuration(), watch.currentTimeNanos());
+        while (reader.next()) {
+            String resource = reader.requireResource();
+            long size = reader.readLong();
+            Log log = new Log();
+            long timestampNanos = reader.readNanos();
+            for (long i = 0; i < size; i++) {
+                if (i > 0) {
+                    timestampNanos += reader.readLong();
+                }
+                // Only the most recent ones fit
+                if (i >= size - limit) {
+                    log.addLast(timestampNanos);
+                }
+            }
+            Log replaced = logsByResource.put(resource, log);
+            if (replaced != null) {
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized (replaced) {
+                    // Threads and handles holding it look the resource up again
+                    replaced.evicted = true;
+                }
+            }
+        }
+    }
+
+    private boolean isAllowed(String resource, long permits, long nowNanos) {
+        return isAllowed(resource, log(resource), permits, nowNanos);
+    }
+
+    // O(log L + P) where L is the limit, P is the number of permits
+    private boolean isAllowed(String resource, Log log, long permits, long nowNanos) {
+        while (true) {
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (log) {
+                // Not evicted in the meantime?
+                if (!log.evicted) {
+                    expire(log, nowNanos);
+                    // Room for all the permits?
+                    if (permits <= limit - log.size) {
+                        for (long permit = 0; permit < permits; permit++) {
+                            log.addLast(nowNanos);
+                        }
+                        return true;
+                    }
+                    return false;
+                }
+            }
+            log = log(resource);
+        }
+    }
+
+    // Get or create logs
+    private Log log(String resource) {
+        return logsByResource.computeIfAbsent(resource, k -> new Log());
+    }
+
+    // Checked on restore, states are only meaningful to a limiter configured alike
+    private long[] configuration() {
+        return new long[]{limit, windowSizeNanos};
+    }
+
+    @Override
+    public int numberOfResources() {
+        return logsByResource.size();
+    }
+
+    // O(log L) where L is the limit
+    private void expire(Log log, long nowNanos) {
+        // Binary search for the first log which has not expired
+        int low = 0;
+        int high = log.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
             // Has the log expired?
-            while (!logs.isEmpty() && nowNanos - logs.getFirst() >= windowSizeNanos) {
-                logs.removeFirst();
+            if (nowNanos - log.get(middle) >= windowSizeNanos) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        log.removeFirst(low);
+    }
+
+    private void evictIfIdle(String resource, Log log, long nowNanos) {
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (log) {
+            expire(log, nowNanos);
+            // No logs in the window, nothing to remember
+            if (log.size == 0) {
+                log.evicted = true;
+                logsByResource.remove(resource, log);
+            }
+        }
+    }
+
+    /**
+     * Ring buffer of timestamps in ascending order, 8 bytes per log.
+     * Grows by doubling up to the limit, so a resource with a few requests does not pay for the whole limit.
+     */
+    private final class Log {
+
+        private static final int INITIAL_CAPACITY = 8;
+
+        long[] timestamps;
+        int head;
+        int size;
+        volatile boolean evicted;
+
+        private Log() {
+            this.timestamps = new long[Math.min(INITIAL_CAPACITY, limit)];
+        }
+
+        long get(int index) {
+            return timestamps[(head + index) % timestamps.length];
+        }
+
+        void removeFirst(int count) {
+            head = (head + count) % timestamps.length;
+            size -= count;
+        }
+
+        void addLast(long timestampNanos) {
+            if (size == timestamps.length) {
+                grow();
             }
-            // Logs not filled?
-            if (logs.size() < limit) {
-                logs.addLast(nowNanos);
-                return true;
+            // Keep ascending order even if a thread observed the clock a bit earlier than the previous one
+            if (size > 0 && timestampNanos - get(size - 1) < 0) {
+                timestampNanos = get(size - 1);
             }
-            return false;
+            timestamps[(head + size) % timestamps.length] = timestampNanos;
+            size++;
         }
+
+        private void grow() {
+            long[] grown = new long[(int) Math.min((long) timestamps.length << 1, limit)];
+            for (int i = 0; i < size; i++) {
+                grown[i] = get(i);
+            }
+            timestamps = grown;
+            head = 0;
+        }
+
+    }
+
+    private final class LogHandle implements Handle {
+
+        private final String resource;
+        private volatile Log log;
+
+        LogHandle(String resource, Log log) {
+            this.resource = resource;
+            this.log = log;
+        }
+
+        // O(log L + P) where L is the limit, P is the number of permits
+        @Override
+        public boolean tryAcquire(long permits) {
+            if (permits <= 0) throw new IllegalArgumentException("permits must be > 0");
+            long nowNanos = watch.currentTimeNanos();
+            sweeper.sweep(nowNanos);
+            Log log = this.log;
+            if (log.evicted) {
+                this.log = log = log(resource);
+            }
+            return isAllowed(resource, log, permits, nowNanos);
+        }
+
     }
 
 }
@@ -0,0 +1,38 @@
+package io.github.tech0ver.ratelimiter;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CachedWatchTest {
+
+    @Test
+    void should_publish_source_time_every_tick() {
+        var source = new MockWatch();
+        var watch = new CachedWatch(source, Duration.ofMillis(1));
+        try (watch) {
+            assertEquals(0, watch.currentTimeNanos());
+            source.advance(42);
+            assertEquals(42, awaitTimeNanos(watch, 42));
+        }
+        // Closed, so no more ticks
+        source.advance(42);
+        // The ticker may have been in the middle of a tick
+        LockSupport.parkNanos(Duration.ofMillis(10).toNanos());
+        long timeNanos = watch.currentTimeNanos();
+        LockSupport.parkNanos(Duration.ofMillis(10).toNanos());
+        assertEquals(timeNanos, watch.currentTimeNanos());
+    }
+
+    private static long awaitTimeNanos(MyWatch watch, long timeNanos) {
+        long deadlineNanos = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (watch.currentTimeNanos() != timeNanos && System.nanoTime() < deadlineNanos) {
+            LockSupport.parkNanos(Duration.ofMillis(1).toNanos());
+        }
+        return watch.currentTimeNanos();
+    }
+
+}
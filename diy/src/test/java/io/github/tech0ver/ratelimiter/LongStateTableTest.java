@@ -0,0 +1,110 @@
+package io.github.tech0ver.ratelimiter;
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongStateTableTest {
+
+    @Nested
+    class OffHeapLongStateTableTest {
+
+        LongStateTable create(int slots) {
+            return new OffHeapLongStateTable(slots);
+        }
+
+        @Test
+        void should_claim_free_slots_only() {
+            var table = create(3);
+            assertEquals(4, table.slots());
+            // Same home slot, probed linearly
+            int slot4 = table.slot(4, 14);
+            int slot8 = table.slot(8, 18);
+            int slot12 = table.slot(12, 22);
+            assertEquals(slot4, table.slot(4, -1));
+            assertEquals(14, table.state(slot4));
+            assertTrue(table.compareAndSet(slot8, 18, 19));
+            assertFalse(table.compareAndSet(slot8, 18, 20));
+            assertEquals(19, table.state(table.slot(8, -1)));
+            assertEquals(3, table.size());
+            assertFalse(table.remove(slot8, 8, 18, -1));
+            assertTrue(table.remove(slot8, 8, 19, -1));
+            assertFalse(table.holds(slot8, 8));
+            assertEquals(-1, table.state(slot8));
+            assertEquals(2, table.size());
+            // Freed, but still on the way to 12
+            assertEquals(slot12, table.slot(12, -1));
+            // The tombstone is reused
+            assertEquals(slot8, table.slot(16, 26));
+            assertEquals(26, table.state(slot8));
+            table.slot(20, 30);
+            assertEquals(LongStateTable.NO_SLOT, table.slot(24, 34));
+            assertEquals(LongStateTable.NO_SLOT, table.claim(24, 34));
+            assertFalse(table.put(24, 34, -1));
+            assertEquals(4, table.size());
+            assertThrows(IllegalArgumentException.class, () -> create(0));
+        }
+
+        @Test
+        void should_put_and_list_keys() {
+            var table = create(4);
+            table.put(4, 14, -1);
+            table.put(4, 15, -1);
+            int slot4 = table.slot(4, -1);
+            assertEquals(15, table.state(slot4));
+            assertEquals(4, table.keyHash(slot4));
+            // Hashes equal to the key words are remapped, to the same slot either way
+            table.put(0, 10, -1);
+            int slot0 = table.slot(0, -1);
+            assertEquals(slot0, table.slot(table.keyHash(slot0), -1));
+            assertTrue(table.remove(slot4, 4, 15, -1));
+            assertEquals(0, table.keyHash(slot4));
+            // A removed slot is claimed again
+            table.put(4, 16, -1);
+            assertEquals(16, table.state(table.slot(4, -1)));
+            assertEquals(2, table.size());
+        }
+
+        @Test
+        void should_bound_probes_under_churn() {
+            var table = create(1024);
+            var random = new Random(42);
+            long[] live = new long[256];
+            int[] slots = new int[live.length];
+            for (int i = 0; i < live.length; i++) {
+                live[i] = random.nextLong();
+                slots[i] = table.slot(live[i], 0);
+            }
+            // Every slot is used and freed many times over, no empty slot is left to stop a lookup
+            for (int i = 0; i < 1_000_000; i++) {
+                int oldest = i % live.length;
+                assertTrue(table.remove(slots[oldest], live[oldest], 0, -1));
+                live[oldest] = random.nextLong();
+                slots[oldest] = table.slot(live[oldest], 0);
+            }
+            assertEquals(live.length, table.size());
+            assertTrue(table.maxDisplacement() <= 32, "maxDisplacement=" + table.maxDisplacement());
+            for (int i = 0; i < live.length; i++) {
+                assertEquals(slots[i], table.slot(live[i], -1));
+            }
+        }
+
+    }
+
+    @Nested
+    class HeapLongStateTableTest extends OffHeapLongStateTableTest {
+
+        @Override
+        LongStateTable create(int slots) {
+            return new HeapLongStateTable(slots);
+        }
+
+    }
+
+}
@@ -0,0 +1,130 @@
+package io.github.tech0ver.ratelimiter;
+
+import io.github.tech0ver.ratelimiter.bucket.TokenBucketRateLimiter;
+import io.github.tech0ver.ratelimiter.window.FixedWindowCounterRateLimiter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedLongStateTableTest {
+
+    private static final int LIMIT = 1_000;
+    private static final int SLOTS = 1_024;
+
+    /**
+     * Every worker JVM would admit up to the limit on its own.
+     */
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void should_share_limits_between_processes(@TempDir Path directory) throws Exception {
+        int workers = 4;
+        var processes = new ArrayList<Process>();
+        for (int worker = 0; worker < workers; worker++) {
+            processes.add(new ProcessBuilder(
+                    ProcessHandle.current().info().command().orElseThrow(),
+                    "-cp", System.getProperty("java.class.path"),
+                    Worker.class.getName(),
+                    directory.toString()
+            ).redirectErrorStream(true).start());
+        }
+        long fixedWindowAllowed = 0;
+        long tokenBucketAllowed = 0;
+        for (Process process : processes) {
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+            assertEquals(0, process.waitFor(), output);
+            String[] allowed = output.split(" ");
+            fixedWindowAllowed += Long.parseLong(allowed[0]);
+            tokenBucketAllowed += Long.parseLong(allowed[1]);
+        }
+        assertEquals(LIMIT, fixedWindowAllowed);
+        assertEquals(LIMIT, tokenBucketAllowed);
+    }
+
+    @Test
+    void should_reject_a_different_table(@TempDir Path directory) throws IOException {
+        var table = new MappedLongStateTable(directory.resolve("table"), SLOTS);
+        // Seeded by whoever comes first
+        assertEquals(table.seed(), new MappedLongStateTable(directory.resolve("table"), SLOTS).seed());
+        assertThrows(
+                IllegalArgumentException.class, () -> new MappedLongStateTable(directory.resolve("table"), 2 * SLOTS)
+        );
+        Files.write(directory.resolve("other"), new byte[]{1, 2, 3});
+        assertThrows(IllegalArgumentException.class, () -> new MappedLongStateTable(directory.resolve("other"), SLOTS));
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void should_take_over_locks_of_a_dead_process(@TempDir Path directory) throws Exception {
+        var process = new ProcessBuilder(
+                ProcessHandle.current().info().command().orElseThrow(),
+                "-cp", System.getProperty("java.class.path"),
+                Crasher.class.getName(),
+                directory.toString()
+        ).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+        assertEquals(1, process.waitFor(), output);
+        var table = new MappedLongStateTable(directory.resolve("table"), SLOTS);
+        assertNotEquals(0, table.getLong(LongStateTable.FIRST_LOCK));
+        int slot = table.slot(42, 7);
+        assertEquals(7, table.state(slot));
+        assertTrue(table.remove(slot, 42, 7, -1));
+        // A live owner holding them for longer than the lease
+        long heldSince = System.currentTimeMillis() / 1000 - LongStateTable.LOCK_LEASE_SECONDS - 1;
+        for (int stripe = 0; stripe < LongStateTable.LOCK_STRIPES; stripe++) {
+            table.setLong(LongStateTable.FIRST_LOCK + stripe, LongStateTable.owner(ProcessHandle.current().pid(), heldSince));
+        }
+        assertEquals(8, table.state(table.slot(43, 8)));
+    }
+
+    /**
+     * Takes every lock stripe, then dies without releasing them.
+     */
+    static class Crasher {
+
+        public static void main(String[] args) throws IOException {
+            var table = new MappedLongStateTable(Path.of(args[0]).resolve("table"), SLOTS);
+            for (int stripe = 0; stripe < LongStateTable.LOCK_STRIPES; stripe++) {
+                table.lock(LongStateTable.FIRST_LOCK + stripe);
+            }
+            Runtime.getRuntime().halt(1);
+        }
+
+    }
+
+    /**
+     * Prints the number of allowed requests of each limiter, offering each one the limit.
+     */
+    static class Worker {
+
+        public static void main(String[] args) throws IOException {
+            Path directory = Path.of(args[0]);
+            var window = Duration.ofDays(1);
+            var fixedWindowTable = new MappedLongStateTable(directory.resolve("fixed-window"), SLOTS);
+            var fixedWindow = new FixedWindowCounterRateLimiter(LIMIT, window, MyWatch.SYSTEM_NANO_TIME, fixedWindowTable);
+            var tokenBucketTable = new MappedLongStateTable(directory.resolve("token-bucket"), SLOTS);
+            var tokenBucket = new TokenBucketRateLimiter(LIMIT, 1, window, MyWatch.SYSTEM_NANO_TIME, tokenBucketTable);
+            int fixedWindowAllowed = 0;
+            int tokenBucketAllowed = 0;
+            for (int request = 0; request < LIMIT; request++) {
+                if (fixedWindow.isAllowed("r1")) fixedWindowAllowed++;
+                if (tokenBucket.isAllowed("r1")) tokenBucketAllowed++;
+            }
+            System.out.println(fixedWindowAllowed + " " + tokenBucketAllowed);
+        }
+
+    }
+
+}
@@ -19,4 +19,10 @@ public class MockWatch implements MyWatch {
         return timeNanos.get();
     }
 
+    // Time flies while parked
+    @Override
+    public void parkNanos(long nanos) {
+        advance(nanos);
+    }
+
 }
@@ -0,0 +1,133 @@
+package io.github.tech0ver.ratelimiter;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Behaviour every limiter shares, whatever its algorithm: a limiter admits {@code limit} permits per window
+ * and forgets a resource {@link #idleNanos(Duration)} after it was last used.
+ */
+public abstract class MyRateLimiterTest {
+
+    protected abstract MyRateLimiter create(long limit, Duration window, MockWatch watch);
+
+    /**
+     * Time until a resource used up to the limit no longer affects a decision, so it may be evicted.
+     */
+    protected long idleNanos(Duration window) {
+        return window.toNanos();
+    }
+
+    @Test
+    void should_take_all_permits_or_none() {
+        var window = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = create(5, window, watch);
+        assertTrue(limiter.isAllowed("r1", 3));
+        assertFalse(limiter.isAllowed("r1", 3));
+        assertTrue(limiter.isAllowed("r1", 2));
+        assertFalse(limiter.isAllowed("r1"));
+        watch.advance(idleNanos(window));
+        assertFalse(limiter.isAllowed("r1", 6));
+        assertTrue(limiter.isAllowed("r1", 5));
+        assertThrows(IllegalArgumentException.class, () -> limiter.isAllowed("r1", 0));
+    }
+
+    @Test
+    void should_decide_on_every_resource_at_once() {
+        var limiter = create(1, Duration.ofSeconds(1), new MockWatch());
+        var allowed = new BitSet();
+        // Stale bits are cleared
+        allowed.set(2);
+        limiter.isAllowed(new String[]{"r1", "r2", "r1", "r3"}, allowed);
+        assertEquals(BitSet.valueOf(new long[]{0b1011}), allowed);
+    }
+
+    @Test
+    void should_decide_on_raw_resources() {
+        var limiter = create(3, Duration.ofSeconds(1), new MockWatch());
+        byte[] bytes = "GET /r\u00e9sum\u00e9".getBytes(StandardCharsets.UTF_8);
+        // Same resource whatever its form
+        assertTrue(limiter.isAllowed(bytes, 4, bytes.length - 4, 1));
+        assertTrue(limiter.isAllowed(ByteBuffer.wrap(bytes, 4, bytes.length - 4), 1));
+        assertTrue(limiter.isAllowed(new StringBuilder("/r\u00e9sum\u00e9"), 1));
+        assertFalse(limiter.isAllowed("/r\u00e9sum\u00e9"));
+        assertThrows(IllegalArgumentException.class, () -> limiter.isAllowed(bytes, 0, bytes.length, 0));
+        assertThrows(IndexOutOfBoundsException.class, () -> limiter.isAllowed(bytes, 4, bytes.length, 1));
+    }
+
+    @Test
+    void should_evict_idle_resources() {
+        var window = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = create(3, window, watch);
+        for (int resource = 0; resource < 1_000; resource++) {
+            assertTrue(limiter.isAllowed("r" + resource));
+        }
+        assertEquals(1_000, limiter.numberOfResources());
+        watch.advance(idleNanos(window));
+        // Every resource is idle, decisions sweep them incrementally
+        for (int request = 0; request < 10_000; request++) {
+            limiter.isAllowed("r0");
+        }
+        assertEquals(1, limiter.numberOfResources());
+        assertFalse(limiter.isAllowed("r0"));
+    }
+
+    @Test
+    void should_bind_resource_with_handle() {
+        var window = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = create(3, window, watch);
+        var handle = limiter.handle("r1");
+        assertTrue(handle.tryAcquire(2));
+        // The handle and the resource share their state
+        assertFalse(limiter.isAllowed("r1", 2));
+        assertTrue(limiter.isAllowed("r1"));
+        assertFalse(handle.tryAcquire());
+        watch.advance(idleNanos(window));
+        // r1 is idle, decisions evict it
+        for (int request = 0; request < 10_000; request++) {
+            limiter.isAllowed("r2");
+        }
+        assertEquals(1, limiter.numberOfResources());
+        // A stale handle looks the resource up again
+        assertTrue(handle.tryAcquire(3));
+        assertFalse(limiter.isAllowed("r1"));
+        assertEquals(2, limiter.numberOfResources());
+        assertThrows(IllegalArgumentException.class, () -> handle.tryAcquire(0));
+    }
+
+    @Test
+    void should_not_overadmit_concurrent_requests_to_hotResource() throws InterruptedException {
+        int limit = 1_000;
+        var limiter = create(limit, Duration.ofDays(1), new MockWatch());
+        var allowed = new AtomicInteger();
+        var threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int request = 0; request < limit; request++) {
+                    if (limiter.isAllowed("r1")) {
+                        allowed.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(limit, allowed.get());
+    }
+
+}
@@ -0,0 +1,98 @@
+package io.github.tech0ver.ratelimiter;
+
+import io.github.tech0ver.ratelimiter.bucket.CompositeRateLimiter;
+import io.github.tech0ver.ratelimiter.bucket.GcraRateLimiter;
+import io.github.tech0ver.ratelimiter.bucket.TokenBucketRateLimiter;
+import io.github.tech0ver.ratelimiter.window.CountMinSketchRateLimiter;
+import io.github.tech0ver.ratelimiter.window.FixedWindowCounterRateLimiter;
+import io.github.tech0ver.ratelimiter.window.SlidingWindowCounterRateLimiter;
+import io.github.tech0ver.ratelimiter.window.SlidingWindowLogRateLimiter;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RawResourceTest {
+
+    private static final Duration WINDOW = Duration.ofSeconds(1);
+
+    // 1, 2, 3 and 4 bytes per code point
+    private static final String[] RESOURCES = {"r1", "caf\u00e9", "\u20ac100", "\ud83d\ude00!"};
+
+    private static final Map<String, Function<MyWatch, MyRateLimiter>> LIMITERS = Map.ofEntries(
+            Map.entry("TokenBucket", watch -> new TokenBucketRateLimiter(5, WINDOW, watch)),
+            Map.entry("TokenBucket in table", watch -> new TokenBucketRateLimiter(
+                    5, 5, WINDOW, watch, new HeapLongStateTable(64)
+            )),
+            Map.entry("Gcra", watch -> new GcraRateLimiter(5, WINDOW, watch)),
+            Map.entry("Gcra in table", watch -> new GcraRateLimiter(
+                    5, 5, WINDOW, watch, new HeapLongStateTable(64)
+            )),
+            Map.entry("Composite", watch -> new CompositeRateLimiter(
+                    List.of(CompositeRateLimiter.Limit.of(5, WINDOW)), watch
+            )),
+            Map.entry("FixedWindow", watch -> new FixedWindowCounterRateLimiter(5, WINDOW, watch)),
+            Map.entry("FixedWindow in table", watch -> new FixedWindowCounterRateLimiter(
+                    5, WINDOW, watch, new OffHeapLongStateTable(64)
+            )),
+            Map.entry("Bucketed", watch -> SlidingWindowCounterRateLimiter.createBucketed(5, WINDOW, 5, watch)),
+            Map.entry("LinearInterpolated", watch -> SlidingWindowCounterRateLimiter.createLinearInterpolated(
+                    5, WINDOW, watch
+            )),
+            Map.entry("LockFree", watch -> SlidingWindowCounterRateLimiter.createLockFreeLinearInterpolated(
+                    5, WINDOW, watch
+            )),
+            Map.entry("LockFree in table", watch -> SlidingWindowCounterRateLimiter.createLockFreeLinearInterpolated(
+                    5, WINDOW, watch, new HeapLongStateTable(64)
+            )),
+            Map.entry("SlidingWindowLog", watch -> new SlidingWindowLogRateLimiter(5, WINDOW, watch)),
+            Map.entry("CountMinSketch", watch -> new CountMinSketchRateLimiter(5, WINDOW, 1024, 4, watch))
+    );
+
+    @Test
+    void should_decide_alike_on_every_overload() {
+        LIMITERS.forEach((name, factory) -> {
+            var watch = new MockWatch();
+            // Decides on the strings
+            var expected = factory.apply(watch);
+            var limiter = factory.apply(watch);
+            var random = new Random(42);
+            for (int request = 0; request < 2_000; request++) {
+                String resource = RESOURCES[random.nextInt(RESOURCES.length)];
+                long permits = 1 + random.nextInt(2);
+                assertEquals(
+                        expected.isAllowed(resource, permits),
+                        isAllowed(limiter, resource, permits, request % 5),
+                        name + " Request #" + request
+                );
+                watch.advance(random.nextInt(100_000_000));
+            }
+        });
+    }
+
+    private static boolean isAllowed(MyRateLimiter limiter, String resource, long permits, int overload) {
+        byte[] bytes = resource.getBytes(StandardCharsets.UTF_8);
+        byte[] padded = new byte[bytes.length + 4];
+        System.arraycopy(bytes, 0, padded, 2, bytes.length);
+        switch (overload) {
+            case 0:
+                return limiter.isAllowed(resource, permits);
+            case 1:
+                return limiter.isAllowed(new StringBuilder(resource), permits);
+            case 2:
+                return limiter.isAllowed(padded, 2, bytes.length, permits);
+            case 3:
+                return limiter.isAllowed(ByteBuffer.wrap(padded, 2, bytes.length), permits);
+            default:
+                return limiter.isAllowed(ByteBuffer.allocateDirect(bytes.length).put(bytes).flip(), permits);
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package io.github.tech0ver.ratelimiter;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ResourceHashTest {
+
+    @Test
+    void should_hash_characters_as_their_utf8_bytes() {
+        // 1, 2, 3 and 4 bytes per code point, then a malformed surrogate
+        for (String resource : new String[]{"", "r1", "caf\u00e9", "\u20ac100", "\ud83d\ude00!", "x\ud83dy"}) {
+            byte[] bytes = resource.getBytes(StandardCharsets.UTF_8);
+            long hash = ResourceHash.of(resource);
+            assertEquals(hash, ResourceHash.of(new StringBuilder(resource)), resource);
+            byte[] padded = new byte[bytes.length + 4];
+            System.arraycopy(bytes, 0, padded, 2, bytes.length);
+            assertEquals(hash, ResourceHash.of(padded, 2, bytes.length), resource);
+            var buffer = ByteBuffer.wrap(padded, 2, bytes.length);
+            assertEquals(hash, ResourceHash.of(buffer), resource);
+            assertEquals(2, buffer.position());
+            assertEquals(hash, ResourceHash.of(ByteBuffer.allocateDirect(bytes.length).put(bytes).flip()), resource);
+        }
+        assertNotEquals(ResourceHash.of("r1"), ResourceHash.of("r2"));
+        // Padded with zeros
+        assertNotEquals(ResourceHash.of("r1"), ResourceHash.of("\u0000r1"));
+        assertThrows(IndexOutOfBoundsException.class, () -> ResourceHash.of(new byte[2], 1, 2));
+    }
+
+    @Test
+    void should_hash_with_seed() {
+        byte[] bytes = "caf\u00e9".getBytes(StandardCharsets.UTF_8);
+        long hash = ResourceHash.of("caf\u00e9", 42);
+        assertEquals(hash, ResourceHash.of(bytes, 0, bytes.length, 42));
+        assertEquals(hash, ResourceHash.of(ByteBuffer.wrap(bytes), 42));
+        assertNotEquals(hash, ResourceHash.of("caf\u00e9", 43));
+        assertNotEquals(hash, ResourceHash.of("caf\u00e9"));
+        // Equal sums of bytes, different polynomials
+        assertNotEquals(ResourceHash.of("ab", 42), ResourceHash.of("ba", 42));
+        // Long enough to wrap modulo the prime many times
+        String resource = "r".repeat(10_000);
+        assertEquals(ResourceHash.of(resource, 42), ResourceHash.of(new StringBuilder(resource), 42));
+        assertNotEquals(ResourceHash.of(resource, 42), ResourceHash.of(resource + "r", 42));
+    }
+
+}
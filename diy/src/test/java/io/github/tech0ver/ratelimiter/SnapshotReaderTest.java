@@ -0,0 +1,75 @@
+package io.github.tech0ver.ratelimiter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotReaderTest {
+
+    private static final long[] CONFIGURATION = {3, 1_000_000_000};
+
+    @Test
+    void should_read_records_of_the_same_configuration() throws IOException {
+        var out = new ByteArrayOutputStream();
+        var writer = new SnapshotWriter(out, "Limiter", CONFIGURATION, 42, 1_000);
+        writer.resource("r1");
+        writer.writeNanos(900);
+        writer.keyHash(7);
+        writer.writeLong(-5);
+        writer.finish();
+        var reader = new SnapshotReader(new ByteArrayInputStream(out.toByteArray()), "Limiter", CONFIGURATION, 5_000);
+        assertTrue(reader.next());
+        assertEquals("r1", reader.resource());
+        assertEquals(ResourceHash.of("r1", 43), reader.keyHash(43));
+        assertEquals(4_900, reader.readNanos());
+        assertTrue(reader.next());
+        assertEquals(7, reader.keyHash(42));
+        assertThrows(IllegalArgumentException.class, () -> reader.keyHash(43));
+        assertEquals(-5, reader.readLong());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    void should_reject_another_configuration() throws IOException {
+        var out = new ByteArrayOutputStream();
+        new SnapshotWriter(out, "Limiter", CONFIGURATION, 1_000).finish();
+        byte[] snapshot = out.toByteArray();
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new SnapshotReader(new ByteArrayInputStream(snapshot), "Other", CONFIGURATION, 0)
+        );
+        for (long[] configuration : new long[][]{{3, 500_000_000}, {4, 1_000_000_000}, {3}, {}}) {
+            assertThrows(
+                    IllegalArgumentException.class,
+                    () -> new SnapshotReader(new ByteArrayInputStream(snapshot), "Limiter", configuration, 0),
+                    Arrays.toString(configuration)
+            );
+        }
+    }
+
+    @Test
+    void should_reject_oversized_strings() throws IOException {
+        var writer = new SnapshotWriter(new ByteArrayOutputStream(), "Limiter", CONFIGURATION, 1_000);
+        String oversized = "r".repeat(SnapshotWriter.MAX_STRING_BYTES + 1);
+        assertThrows(IllegalArgumentException.class, () -> writer.resource(oversized));
+        var out = new ByteArrayOutputStream();
+        new SnapshotWriter(out, "Limiter", CONFIGURATION, 1_000).finish();
+        byte[] header = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+        // A resource record claiming 2^31 - 1 bytes, not to be allocated
+        byte[] record = {SnapshotWriter.RESOURCE, (byte) 0xFE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+        byte[] snapshot = Arrays.copyOf(header, header.length + record.length);
+        System.arraycopy(record, 0, snapshot, header.length, record.length);
+        var reader = new SnapshotReader(new ByteArrayInputStream(snapshot), "Limiter", CONFIGURATION, 0);
+        assertThrows(StreamCorruptedException.class, reader::next);
+    }
+
+}
@@ -0,0 +1,125 @@
+package io.github.tech0ver.ratelimiter.bucket;
+
+import io.github.tech0ver.ratelimiter.MockWatch;
+import io.github.tech0ver.ratelimiter.bucket.CompositeRateLimiter.Limit;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompositeRateLimiterTest {
+
+    @Test
+    void should_enforce_every_limit() {
+        var watch = new MockWatch();
+        var limiter = new CompositeRateLimiter(
+                List.of(Limit.of(2, Duration.ofSeconds(1)), Limit.of(3, Duration.ofMinutes(1))), watch
+        );
+        // Per second
+        assertTrue(limiter.isAllowed("r1"));
+        assertTrue(limiter.isAllowed("r1"));
+        assertFalse(limiter.isAllowed("r1"));
+        // Per minute
+        watch.advance(Duration.ofSeconds(1).toNanos());
+        assertTrue(limiter.isAllowed("r1"));
+        assertFalse(limiter.isAllowed("r1"));
+        // A token per 20 seconds
+        watch.advance(Duration.ofSeconds(20).toNanos());
+        assertTrue(limiter.isAllowed("r1"));
+        assertFalse(limiter.isAllowed("r1"));
+        // Other resources have their own limits
+        assertTrue(limiter.isAllowed("r2", 2));
+        assertEquals(2, limiter.numberOfResources());
+    }
+
+    @Test
+    void should_take_permits_from_all_limits_or_none() {
+        var watch = new MockWatch();
+        var limiter = new CompositeRateLimiter(
+                List.of(Limit.of(4, Duration.ofSeconds(1)), Limit.of(3, Duration.ofMinutes(1))), watch
+        );
+        assertTrue(limiter.isAllowed("r1", 2));
+        // Fits per second, not per minute
+        assertFalse(limiter.isAllowed("r1", 2));
+        // So the per second limit still has 2 permits
+        assertTrue(limiter.isAllowed("r1"));
+        assertFalse(limiter.isAllowed("r1"));
+        // More than the smallest limit
+        assertFalse(limiter.isAllowed("r2", 4));
+        assertTrue(limiter.isAllowed("r2", 3));
+    }
+
+    @Test
+    void should_decide_by_handle_and_batch() {
+        var watch = new MockWatch();
+        var limiter = new CompositeRateLimiter(
+                List.of(Limit.of(2, Duration.ofSeconds(1)), Limit.of(10, Duration.ofHours(1))), watch
+        );
+        var handle = limiter.handle("r1");
+        assertTrue(handle.tryAcquire());
+        var allowed = new BitSet();
+        limiter.isAllowed(new String[]{"r1", "r1", "r2"}, allowed);
+        assertTrue(allowed.get(0));
+        assertFalse(allowed.get(1));
+        assertTrue(allowed.get(2));
+        // Evicted once full again, the handle looks the resource up again
+        watch.advance(Duration.ofHours(1).toNanos());
+        for (int i = 0; i < 100; i++) {
+            limiter.isAllowed("r3");
+            watch.advance(Duration.ofHours(1).toNanos());
+        }
+        assertEquals(1, limiter.numberOfResources());
+        assertTrue(handle.tryAcquire(2));
+        assertFalse(handle.tryAcquire());
+    }
+
+    @Test
+    void should_restore_snapshot() throws IOException {
+        var limits = List.of(Limit.of(2, Duration.ofSeconds(1)), Limit.of(3, Duration.ofMinutes(1)));
+        var watch = new MockWatch();
+        var limiter = new CompositeRateLimiter(limits, watch);
+        assertTrue(limiter.isAllowed("r1", 2));
+        assertTrue(limiter.isAllowed("r2"));
+        watch.advance(Duration.ofSeconds(1).toNanos());
+        var snapshot = new ByteArrayOutputStream();
+        limiter.snapshot(snapshot);
+        // Another process, its watch has another origin
+        var otherWatch = new MockWatch();
+        otherWatch.advance(12_345_678_901L);
+        var restored = new CompositeRateLimiter(limits, otherWatch);
+        restored.restore(new ByteArrayInputStream(snapshot.toByteArray()));
+        assertEquals(2, restored.numberOfResources());
+        assertTrue(restored.isAllowed("r1"));
+        assertFalse(restored.isAllowed("r1"));
+        assertTrue(restored.isAllowed("r2", 2));
+        assertFalse(restored.isAllowed("r2"));
+        // Not the same limits
+        var other = new CompositeRateLimiter(List.of(Limit.of(2, Duration.ofSeconds(1))), new MockWatch());
+        assertThrows(
+                IllegalArgumentException.class, () -> other.restore(new ByteArrayInputStream(snapshot.toByteArray()))
+        );
+    }
+
+    @Test
+    void should_reject_invalid_limits() {
+        assertThrows(IllegalArgumentException.class, () -> new CompositeRateLimiter(List.of()));
+        assertThrows(IllegalArgumentException.class, () -> Limit.of(0, Duration.ofSeconds(1)));
+        assertThrows(IllegalArgumentException.class, () -> Limit.of(1, Duration.ZERO));
+        assertThrows(NullPointerException.class, () -> Limit.of(1, null));
+        // Up to a token per nano, and refilled within ~73 years
+        assertThrows(IllegalArgumentException.class, () -> Limit.of(2, Duration.ofNanos(1)));
+        assertThrows(IllegalArgumentException.class, () -> Limit.of(1, Duration.ofDays(365L * 100)));
+        assertTrue(new CompositeRateLimiter(List.of(Limit.of(1L << 40, Duration.ofNanos(1L << 40))))
+                .isAllowed("r1", 1L << 40));
+    }
+
+}
@@ -0,0 +1,142 @@
+package io.github.tech0ver.ratelimiter.bucket;
+
+import io.github.tech0ver.ratelimiter.HeapLongStateTable;
+import io.github.tech0ver.ratelimiter.MockWatch;
+import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.MyRateLimiterTest;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GcraRateLimiterTest extends MyRateLimiterTest {
+
+    @Override
+    protected MyRateLimiter create(long limit, Duration window, MockWatch watch) {
+        return new GcraRateLimiter(limit, 1, window.dividedBy(limit), watch);
+    }
+
+    @Test
+    void should_allow_burst_then_tell_retry_after() {
+        var refillPeriod = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new GcraRateLimiter(3, refillPeriod, watch);
+        assertEquals(0, limiter.tryAcquire("r1", 3));
+        assertEquals(refillPeriod.toNanos(), limiter.tryAcquire("r1", 1));
+        assertEquals(2 * refillPeriod.toNanos(), limiter.tryAcquire("r1", 2));
+        // Never fits into the burst
+        assertEquals(Long.MAX_VALUE, limiter.tryAcquire("r1", 4));
+        watch.advance(refillPeriod.toNanos() * 4 / 10);
+        assertEquals(refillPeriod.toNanos() * 6 / 10, limiter.tryAcquire("r1", 1));
+        watch.advance(refillPeriod.toNanos() * 6 / 10);
+        assertTrue(limiter.isAllowed("r1"));
+        assertFalse(limiter.isAllowed("r1"));
+        // Other resources have their own burst
+        assertTrue(limiter.isAllowed("r2", 3));
+        assertEquals(2, limiter.numberOfResources());
+        assertThrows(IllegalArgumentException.class, () -> limiter.tryAcquire("r1", 0));
+    }
+
+    @Test
+    void should_decide_as_token_bucket() {
+        var refillPeriod = Duration.ofMillis(100);
+        var watch = new MockWatch();
+        var gcra = new GcraRateLimiter(5, 2, refillPeriod, watch);
+        var gcraInTable = new GcraRateLimiter(5, 2, refillPeriod, watch, new HeapLongStateTable(64));
+        var tokenBucket = new TokenBucketRateLimiter(5, 2, refillPeriod, watch);
+        var random = new Random(42);
+        for (int request = 0; request < 10_000; request++) {
+            String resource = "r" + random.nextInt(4);
+            long permits = 1 + random.nextInt(3);
+            boolean allowed = tokenBucket.isAllowed(resource, permits);
+            assertEquals(allowed, gcra.isAllowed(resource, permits), "Request #" + request);
+            assertEquals(allowed, gcraInTable.isAllowed(resource, permits), "Request #" + request);
+            watch.advance(random.nextInt(30_000_000));
+        }
+    }
+
+    @Test
+    void should_decide_on_raw_resources_in_table() {
+        var watch = new MockWatch();
+        var table = new HeapLongStateTable(64);
+        var limiter = new GcraRateLimiter(4, 1, Duration.ofSeconds(1), watch, table);
+        byte[] bytes = "xr1x".getBytes(StandardCharsets.UTF_8);
+        assertTrue(limiter.isAllowed("r1"));
+        assertTrue(limiter.isAllowed(new StringBuilder("r1"), 1));
+        assertTrue(limiter.isAllowed(bytes, 1, 2, 1));
+        assertTrue(limiter.isAllowed(ByteBuffer.wrap(bytes, 1, 2), 1));
+        assertFalse(limiter.isAllowed("r1"));
+        assertEquals(Duration.ofSeconds(1).toNanos(), limiter.tryAcquire("r1", 1));
+        assertEquals(1, table.size());
+        // Evicted once back to full burst
+        watch.advance(Duration.ofSeconds(4).toNanos());
+        for (int i = 0; i < 1_000; i++) {
+            limiter.isAllowed("r2");
+            watch.advance(Duration.ofSeconds(1).toNanos());
+        }
+        assertEquals(1, limiter.numberOfResources());
+    }
+
+    @Test
+    void should_reject_unrepresentable_rates() {
+        var watch = new MockWatch();
+        var fastest = new GcraRateLimiter(1L << 40, 1, Duration.ofNanos(1), watch);
+        assertTrue(fastest.isAllowed("r1", 1L << 40));
+        assertThrows(IllegalArgumentException.class, () -> new GcraRateLimiter(1, 2, Duration.ofNanos(1), watch));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new GcraRateLimiter(Long.MAX_VALUE / 2, 1, Duration.ofNanos(4), watch)
+        );
+    }
+
+    @Test
+    void should_restore_snapshot() throws IOException {
+        var refillPeriod = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new GcraRateLimiter(3, refillPeriod, watch);
+        assertTrue(limiter.isAllowed("r1", 3));
+        assertTrue(limiter.isAllowed("r2", 1));
+        watch.advance(refillPeriod.toNanos());
+        var snapshot = new ByteArrayOutputStream();
+        limiter.snapshot(snapshot);
+        // Another process, its watch has another origin
+        var otherWatch = new MockWatch();
+        otherWatch.advance(12_345_678_901L);
+        var table = new HeapLongStateTable(64);
+        var restored = new GcraRateLimiter(3, 1, refillPeriod, otherWatch, table);
+        restored.restore(new ByteArrayInputStream(snapshot.toByteArray()));
+        // r2 was at full burst again
+        assertEquals(1, table.size());
+        assertTrue(restored.isAllowed("r1"));
+        assertEquals(refillPeriod.toNanos(), restored.tryAcquire("r1", 1));
+        assertTrue(restored.isAllowed("r2", 3));
+        // Not a snapshot of GCRA
+        var tokenBucket = new TokenBucketRateLimiter(3, refillPeriod, watch);
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> tokenBucket.restore(new ByteArrayInputStream(snapshot.toByteArray()))
+        );
+    }
+
+    @Nested
+    class HeapGcraRateLimiterTest extends MyRateLimiterTest {
+
+        @Override
+        protected MyRateLimiter create(long limit, Duration window, MockWatch watch) {
+            return new GcraRateLimiter(limit, 1, window.dividedBy(limit), watch, new HeapLongStateTable(2_048));
+        }
+
+    }
+
+}
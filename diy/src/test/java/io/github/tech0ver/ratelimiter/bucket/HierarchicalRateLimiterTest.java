@@ -0,0 +1,140 @@
+package io.github.tech0ver.ratelimiter.bucket;
+
+import io.github.tech0ver.ratelimiter.MockWatch;
+import io.github.tech0ver.ratelimiter.MyWatch;
+import io.github.tech0ver.ratelimiter.bucket.CompositeRateLimiter.Limit;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HierarchicalRateLimiterTest {
+
+    @Test
+    void should_enforce_every_level() {
+        var second = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new HierarchicalRateLimiter(
+                Limit.of(100, second), List.of(Limit.of(5, second), Limit.of(3, second)), watch, 1
+        );
+        // Per user
+        assertTrue(limiter.isAllowed("t1/u1", 3));
+        assertFalse(limiter.isAllowed("t1/u1"));
+        // Per tenant
+        assertTrue(limiter.isAllowed("t1/u2", 2));
+        assertFalse(limiter.isAllowed("t1/u2"));
+        // Same user name, another tenant
+        assertTrue(limiter.isAllowed("t2/u1", 3));
+        assertEquals(5, limiter.numberOfResources());
+    }
+
+    @Test
+    void should_give_back_permits_on_denial() {
+        var second = Duration.ofSeconds(1);
+        var minute = Duration.ofMinutes(1);
+        var watch = new MockWatch();
+        var limiter = new HierarchicalRateLimiter(
+                Limit.of(4, second), List.of(Limit.of(5, second), Limit.of(1, minute)), watch, 1
+        );
+        assertTrue(limiter.isAllowed("t1/u1"));
+        assertTrue(limiter.isAllowed("t1/u2"));
+        assertTrue(limiter.isAllowed("t2/u1"));
+        assertTrue(limiter.isAllowed("t2/u2"));
+        // Denied globally, the permit of the user and the tenant is given back
+        assertFalse(limiter.isAllowed("t1/u3"));
+        watch.advance(second.toNanos() / 4);
+        assertTrue(limiter.isAllowed("t1/u3"));
+        // Denied by the tenant, the permit of the user is given back
+        var tenantLimiter = new HierarchicalRateLimiter(
+                Limit.of(100, second), List.of(Limit.of(2, second), Limit.of(1, minute)), watch, 1
+        );
+        assertTrue(tenantLimiter.isAllowed("t1/u1"));
+        assertTrue(tenantLimiter.isAllowed("t1/u2"));
+        assertFalse(tenantLimiter.isAllowed("t1/u3"));
+        watch.advance(second.toNanos());
+        assertTrue(tenantLimiter.isAllowed("t1/u3"));
+    }
+
+    @Test
+    void should_borrow_from_other_stripes() throws InterruptedException, ExecutionException {
+        var second = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new HierarchicalRateLimiter(
+                Limit.of(8, second), List.of(Limit.of(100, second), Limit.of(100, second)), watch, 4
+        );
+        // The whole capacity, whatever the stripe of the thread
+        assertTrue(limiter.isAllowed("t1/u1", 8));
+        assertFalse(limiter.isAllowed("t1/u1"));
+        watch.advance(second.toNanos());
+        var allowed = new AtomicInteger();
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var futures = new ArrayList<Future<?>>();
+            for (int thread = 0; thread < 4; thread++) {
+                int t = thread;
+                futures.add(executor.submit(() -> {
+                    for (int request = 0; request < 100; request++) {
+                        if (limiter.isAllowed("t" + t + "/u" + request)) {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(8, allowed.get());
+    }
+
+    @Test
+    void should_reject_invalid_resources() {
+        var second = Duration.ofSeconds(1);
+        var limiter = new HierarchicalRateLimiter(
+                Limit.of(10, second), List.of(Limit.of(5, second), Limit.of(3, second)), new MockWatch()
+        );
+        assertThrows(IllegalArgumentException.class, () -> limiter.isAllowed("t1"));
+        assertThrows(IllegalArgumentException.class, () -> limiter.isAllowed("t1/u1", 0));
+        // The innermost key may contain the separator
+        assertTrue(limiter.isAllowed("t1/u1/x", 3));
+        assertFalse(limiter.isAllowed("t1/u1/x"));
+        assertTrue(limiter.isAllowed("t1/u1"));
+        assertThrows(IllegalArgumentException.class, () -> new HierarchicalRateLimiter(Limit.of(1, second), List.of()));
+    }
+
+    @Test
+    void should_decide_on_every_resource_at_once() {
+        var second = Duration.ofSeconds(1);
+        // A second passes on every read, enough to refill any bucket
+        var nanos = new AtomicLong();
+        MyWatch ticking = () -> nanos.getAndAdd(second.toNanos());
+        var limiter = new HierarchicalRateLimiter(
+                Limit.of(10, second), List.of(Limit.of(5, second), Limit.of(1, second)), ticking, 1
+        );
+        var allowed = new BitSet();
+        limiter.isAllowed(new String[]{"t1/u1", "t1/u1", "t2/u2/x"}, allowed);
+        assertEquals(BitSet.valueOf(new long[]{0b101}), allowed);
+        // A malformed path takes no permits for the others
+        var watch = new MockWatch();
+        var other = new HierarchicalRateLimiter(
+                Limit.of(10, second), List.of(Limit.of(5, second), Limit.of(1, second)), watch, 1
+        );
+        assertThrows(IllegalArgumentException.class, () -> other.isAllowed(new String[]{"t1/u1", "t1"}, allowed));
+        assertTrue(other.isAllowed("t1/u1"));
+    }
+
+}
@@ -1,14 +1,45 @@
 package io.github.tech0ver.ratelimiter.bucket;
 
 import io.github.tech0ver.ratelimiter.MockWatch;
+import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.MyRateLimiterTest;
+import io.github.tech0ver.ratelimiter.OffHeapLongStateTable;
+import io.github.tech0ver.ratelimiter.window.FixedWindowCounterRateLimiter;
+import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
-class TokenBucketRateLimiterTest {
+class TokenBucketRateLimiterTest extends MyRateLimiterTest {
+
+    // Full again after a window, a token is refilled every window / limit rounded down
+    @Override
+    protected MyRateLimiter create(long limit, Duration window, MockWatch watch) {
+        return new TokenBucketRateLimiter(limit, 1, window.dividedBy(limit), watch);
+    }
 
     /**
      * <pre>
@@ -74,4 +105,273 @@ class TokenBucketRateLimiterTest {
         // 2.500 ...
     }
 
+    @Test
+    void should_wait_for_reserved_permits() {
+        var refillPeriod = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new TokenBucketRateLimiter(2, refillPeriod, watch);
+        assertTrue(limiter.acquire("r1", 2, Duration.ZERO));
+        assertEquals(0, watch.currentTimeNanos());
+        // Fails fast without reserving anything
+        assertFalse(limiter.acquire("r1", 1, refillPeriod.minusNanos(1)));
+        assertEquals(0, watch.currentTimeNanos());
+        assertTrue(limiter.acquire("r1", 1, refillPeriod));
+        assertEquals(refillPeriod.toNanos(), watch.currentTimeNanos());
+        assertTrue(limiter.acquire("r1", 2, Duration.ofDays(1)));
+        assertEquals(3 * refillPeriod.toNanos(), watch.currentTimeNanos());
+        // Would never fit into the bucket
+        assertFalse(limiter.acquire("r1", 3, Duration.ofDays(1)));
+        assertThrows(IllegalArgumentException.class, () -> limiter.acquire("r1", 0, Duration.ZERO));
+    }
+
+    @Test
+    void should_not_admit_while_permits_are_reserved() throws InterruptedException {
+        var refillPeriod = Duration.ofSeconds(1);
+        var parked = new CountDownLatch(1);
+        var watch = new MockWatch() {
+            // Stay parked until the test advances the time
+            @Override
+            public void parkNanos(long nanos) {
+                parked.countDown();
+                LockSupport.parkNanos(1_000_000);
+            }
+        };
+        var limiter = new TokenBucketRateLimiter(1, refillPeriod, watch);
+        assertTrue(limiter.isAllowed("r1"));
+        var acquired = new AtomicBoolean();
+        var waiter = new Thread(() -> acquired.set(limiter.acquire("r1", 1, refillPeriod)));
+        waiter.start();
+        parked.await();
+        watch.advance(refillPeriod.toNanos());
+        // The refilled token belongs to the waiter
+        assertFalse(limiter.isAllowed("r1"));
+        waiter.join();
+        assertTrue(acquired.get());
+        watch.advance(refillPeriod.toNanos());
+        assertTrue(limiter.isAllowed("r1"));
+    }
+
+    @Test
+    void should_grant_reserved_permits_asynchronously_in_order() {
+        int waiters = 100_000;
+        var refillPeriod = Duration.ofMillis(1);
+        var scheduled = new CountDownLatch(1);
+        var watch = new MockWatch() {
+            // Keep the time still until every waiter is scheduled
+            @Override
+            public void parkNanos(long nanos) {
+                try {
+                    scheduled.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                super.parkNanos(nanos);
+            }
+        };
+        var limiter = new TokenBucketRateLimiter(1, refillPeriod, watch);
+        assertTrue(limiter.acquireAsync("r1", 1).isDone());
+        // Completed on the timer thread one by one
+        List<Integer> granted = new ArrayList<>();
+        var acquired = new CompletableFuture<?>[waiters];
+        for (int waiter = 0; waiter < waiters; waiter++) {
+            int id = waiter;
+            acquired[waiter] = limiter.acquireAsync("r1", 1).thenRun(() -> granted.add(id));
+        }
+        scheduled.countDown();
+        CompletableFuture.allOf(acquired).join();
+        assertTrue(watch.currentTimeNanos() >= waiters * refillPeriod.toNanos());
+        for (int waiter = 0; waiter < waiters; waiter++) {
+            assertEquals(waiter, granted.get(waiter));
+        }
+        // Would never fit into the bucket, denied as acquire() would
+        assertFalse(limiter.acquireAsync("r1", 2).join());
+        assertThrows(IllegalArgumentException.class, () -> limiter.acquireAsync("r1", 0));
+    }
+
+    @Test
+    void should_complete_asynchronous_acquires_through_the_executor() throws InterruptedException {
+        var refillPeriod = Duration.ofMillis(1);
+        var limiter = new TokenBucketRateLimiter(1, refillPeriod, new MockWatch());
+        assertTrue(limiter.acquireAsync("r1", 1).join());
+        var executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "completer"));
+        try {
+            var completer = new AtomicReference<String>();
+            Executor recording = command -> executor.execute(() -> {
+                completer.set(Thread.currentThread().getName());
+                command.run();
+            });
+            assertTrue(limiter.acquireAsync("r1", 1, recording).join());
+            assertEquals("completer", completer.get());
+            // Not scheduled, completed at once on the caller's thread
+            assertFalse(limiter.acquireAsync("r1", 2, executor).join());
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+            // Rejected by the executor
+            var rejected = limiter.acquireAsync("r1", 1, executor);
+            assertThrows(CompletionException.class, rejected::join);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void should_keep_buckets_off_heap() {
+        var refillPeriod = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new TokenBucketRateLimiter(3, 1, refillPeriod, watch, new OffHeapLongStateTable(2_048));
+        var handle = limiter.handle("r0");
+        for (int resource = 0; resource < 1_000; resource++) {
+            assertTrue(limiter.isAllowed("r" + resource, 3));
+            assertFalse(limiter.isAllowed("r" + resource));
+        }
+        assertEquals(1_000, limiter.numberOfResources());
+        watch.advance(3 * refillPeriod.toNanos());
+        // Every bucket is full again, decisions sweep them incrementally and free their slots
+        for (int request = 0; request < 10_000; request++) {
+            limiter.isAllowed("r1");
+        }
+        assertEquals(1, limiter.numberOfResources());
+        // A stale handle claims a slot again
+        assertTrue(handle.tryAcquire(3));
+        assertFalse(limiter.isAllowed("r0"));
+        assertEquals(2, limiter.numberOfResources());
+    }
+
+    @Test
+    void should_deny_resources_the_full_table_has_no_slot_for() {
+        var refillPeriod = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new TokenBucketRateLimiter(3, 1, refillPeriod, watch, new OffHeapLongStateTable(4));
+        for (int resource = 0; resource < 4; resource++) {
+            assertTrue(limiter.isAllowed("r" + resource));
+        }
+        var handle = limiter.handle("r4");
+        assertFalse(limiter.isAllowed("r4"));
+        assertFalse(handle.tryAcquire(1));
+        assertEquals(4, limiter.numberOfResources());
+        // Slots freed once idle
+        watch.advance(refillPeriod.toNanos());
+        for (int request = 0; request < 1_000; request++) {
+            limiter.isAllowed("r0");
+        }
+        assertEquals(1, limiter.numberOfResources());
+        assertTrue(limiter.isAllowed("r4"));
+        assertTrue(handle.tryAcquire(2));
+        assertFalse(handle.tryAcquire(1));
+    }
+
+    @Test
+    void should_not_allocate_on_raw_resources_in_table() {
+        var threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return;
+        Function<Runnable, Long> allocatedBytes = decisions -> {
+            long threadId = Thread.currentThread().getId();
+            long before = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId);
+            decisions.run();
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId) - before;
+        };
+        var limiter = new TokenBucketRateLimiter(
+                1_000, 1, Duration.ofSeconds(1), new MockWatch(), new OffHeapLongStateTable(2_048)
+        );
+        byte[] bytes = "resource".getBytes(StandardCharsets.UTF_8);
+        var buffer = ByteBuffer.wrap(bytes);
+        Runnable decisions = () -> {
+            for (int request = 0; request < 10_000; request++) {
+                limiter.isAllowed(bytes, 0, bytes.length, 1);
+                limiter.isAllowed(buffer, 1);
+            }
+        };
+        // Warm up, the first run may load classes
+        allocatedBytes.apply(decisions);
+        // Next to nothing, rather than a String per decision
+        assertTrue(allocatedBytes.apply(decisions) < 10_000);
+    }
+
+    @Test
+    void should_reject_unrepresentable_rates() {
+        var watch = new MockWatch();
+        // Up to a token per nano, and a capacity refilled within ~73 years, exactly
+        var fastest = new TokenBucketRateLimiter(1L << 40, 1, Duration.ofNanos(1), watch);
+        assertTrue(fastest.isAllowed("r1", 1L << 40));
+        assertThrows(
+                IllegalArgumentException.class, () -> new TokenBucketRateLimiter(1, 2, Duration.ofNanos(1), watch)
+        );
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucketRateLimiter(1, 1, Duration.ZERO, watch));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new TokenBucketRateLimiter(Long.MAX_VALUE / 2, 1, Duration.ofNanos(4), watch)
+        );
+    }
+
+    @Test
+    void should_restore_snapshot() throws IOException {
+        var refillPeriod = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new TokenBucketRateLimiter(3, refillPeriod, watch);
+        assertTrue(limiter.isAllowed("r1", 3));
+        assertTrue(limiter.isAllowed("r2", 2));
+        assertTrue(limiter.isAllowed("r3"));
+        watch.advance(refillPeriod.toNanos());
+        var snapshot = new ByteArrayOutputStream();
+        limiter.snapshot(snapshot);
+        // Another process, its watch has another origin
+        var otherWatch = new MockWatch();
+        otherWatch.advance(12_345_678_901L);
+        var table = new OffHeapLongStateTable(2_048, 42);
+        var restored = new TokenBucketRateLimiter(3, 1, refillPeriod, otherWatch, table);
+        restored.restore(new ByteArrayInputStream(snapshot.toByteArray()));
+        // r3 was full again
+        assertEquals(2, table.size());
+        assertTrue(restored.isAllowed("r1"));
+        assertFalse(restored.isAllowed("r1"));
+        assertFalse(restored.isAllowed("r2", 3));
+        assertTrue(restored.isAllowed("r2", 2));
+        assertTrue(restored.isAllowed("r3", 3));
+        // Same from the table back to the map, by key hash
+        var tableSnapshot = new ByteArrayOutputStream();
+        restored.snapshot(tableSnapshot);
+        var map = new TokenBucketRateLimiter(3, refillPeriod, new MockWatch());
+        assertThrows(
+                IllegalArgumentException.class, () -> map.restore(new ByteArrayInputStream(tableSnapshot.toByteArray()))
+        );
+        // Key hashes are only meaningful with the same seed
+        var otherSeed = new TokenBucketRateLimiter(
+                3, 1, refillPeriod, new MockWatch(), new OffHeapLongStateTable(2_048)
+        );
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> otherSeed.restore(new ByteArrayInputStream(tableSnapshot.toByteArray()))
+        );
+        var otherTable = new TokenBucketRateLimiter(
+                3, 1, refillPeriod, new MockWatch(), new OffHeapLongStateTable(2_048, 42)
+        );
+        otherTable.restore(new ByteArrayInputStream(tableSnapshot.toByteArray()));
+        assertFalse(otherTable.isAllowed("r1"));
+        assertFalse(otherTable.isAllowed("r2"));
+        assertTrue(otherTable.isAllowed("r4", 3));
+        // Counted against another capacity
+        var otherCapacity = new TokenBucketRateLimiter(4, refillPeriod, watch);
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> otherCapacity.restore(new ByteArrayInputStream(snapshot.toByteArray()))
+        );
+        // Not a snapshot of a token bucket
+        var fixedWindow = new FixedWindowCounterRateLimiter(3, refillPeriod, watch);
+        assertThrows(
+                IllegalArgumentException.class, () -> fixedWindow.restore(new ByteArrayInputStream(snapshot.toByteArray()))
+        );
+    }
+
+    @Nested
+    class OffHeapTokenBucketRateLimiterTest extends MyRateLimiterTest {
+
+        @Override
+        protected MyRateLimiter create(long limit, Duration window, MockWatch watch) {
+            return new TokenBucketRateLimiter(
+                    limit, 1, window.dividedBy(limit), watch, new OffHeapLongStateTable(2_048)
+            );
+        }
+
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,264 @@
+package io.github.tech0ver.ratelimiter.distributed;
+
+import io.github.tech0ver.ratelimiter.MockWatch;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LeasingRateLimiterTest {
+
+    private static final long TICK_NANOS = Duration.ofMillis(1).toNanos();
+
+    @Test
+    void should_spend_leased_tokens_locally() {
+        var watch = new MockWatch();
+        var store = new InMemoryTokenStore(100, 100, Duration.ofSeconds(1), watch);
+        var limiter = new LeasingRateLimiter(store, Duration.ofMillis(100), 10, watch);
+        // Leases just the permits the first time, nothing was spent yet
+        assertTrue(limiter.isAllowed("r1"));
+        assertEquals(1, store.roundTrips());
+        // Spent at once, so the next lease is as large as allowed
+        assertTrue(limiter.isAllowed("r1"));
+        assertEquals(2, store.roundTrips());
+        for (int request = 0; request < 9; request++) {
+            assertTrue(limiter.isAllowed("r1"), "Request #" + request);
+        }
+        assertEquals(2, store.roundTrips());
+        assertTrue(limiter.isAllowed("r1"));
+        assertEquals(3, store.roundTrips());
+        assertEquals(1, limiter.numberOfResources());
+    }
+
+    @Test
+    void should_decide_on_every_resource_at_once() {
+        var watch = new MockWatch();
+        var store = new InMemoryTokenStore(1, 1, Duration.ofHours(1), watch);
+        var limiter = new LeasingRateLimiter(store, Duration.ofMillis(100), 10, watch);
+        var allowed = new BitSet();
+        limiter.isAllowed(new String[]{"r1", "r2", "r1"}, allowed);
+        assertEquals(BitSet.valueOf(new long[]{0b011}), allowed);
+        assertThrows(NullPointerException.class, () -> limiter.isAllowed(new String[]{"r3", null}, allowed));
+        assertTrue(limiter.isAllowed("r3"));
+    }
+
+    @Test
+    void should_reject_unrepresentable_store_rates() {
+        var watch = new MockWatch();
+        assertThrows(IllegalArgumentException.class, () -> new InMemoryTokenStore(1, 2, Duration.ofNanos(1), watch));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new InMemoryTokenStore(Long.MAX_VALUE / 2, 1, Duration.ofNanos(4), watch)
+        );
+    }
+
+    @Test
+    void should_give_back_unused_tokens() {
+        var watch = new MockWatch();
+        var store = new InMemoryTokenStore(10, 1, Duration.ofHours(1), watch);
+        var node1 = new LeasingRateLimiter(store, Duration.ofMillis(100), 10, watch);
+        var node2 = new LeasingRateLimiter(store, Duration.ofMillis(100), 10, watch);
+        assertTrue(node1.isAllowed("r1"));
+        // Leases the other 9 tokens
+        assertTrue(node1.isAllowed("r1"));
+        assertFalse(node2.isAllowed("r1"));
+        // Given back on the next lease of node1, which spends one
+        watch.advance(Duration.ofMillis(100).toNanos());
+        assertTrue(node1.isAllowed("r1"));
+        assertTrue(node2.isAllowed("r1", 7));
+        assertFalse(node2.isAllowed("r1"));
+    }
+
+    @Test
+    void should_set_aside_unused_tokens_of_evicted_leases() {
+        var watch = new MockWatch();
+        var store = new InMemoryTokenStore(10, 1, Duration.ofHours(1), watch);
+        var node1 = new LeasingRateLimiter(store, Duration.ofMillis(100), 10, watch);
+        var node2 = new LeasingRateLimiter(store, Duration.ofMillis(100), 10, watch);
+        assertTrue(node1.isAllowed("r1"));
+        // Leases the other 9 tokens, spends one
+        assertTrue(node1.isAllowed("r1"));
+        watch.advance(Duration.ofMillis(100).toNanos());
+        // Evicted by the sweeper once idle
+        assertTrue(node1.isAllowed("r2"));
+        for (int request = 0; request < 1_000 && node1.numberOfResources() != 1; request++) {
+            node1.isAllowed("r2");
+        }
+        assertEquals(1, node1.numberOfResources());
+        // The sweeper gave nothing back
+        assertFalse(node2.isAllowed("r1"));
+        assertEquals(8, node1.giveBackUnused());
+        assertEquals(0, node1.giveBackUnused());
+        watch.advance(Duration.ofMillis(100).toNanos());
+        assertTrue(node2.isAllowed("r1", 8));
+        assertFalse(node2.isAllowed("r1"));
+    }
+
+    @Test
+    void should_give_back_unused_tokens_of_evicted_leases_on_the_next_lease() {
+        var watch = new MockWatch();
+        var store = new InMemoryTokenStore(10, 1, Duration.ofHours(1), watch);
+        var node1 = new LeasingRateLimiter(store, Duration.ofMillis(100), 10, watch);
+        var node2 = new LeasingRateLimiter(store, Duration.ofMillis(100), 10, watch);
+        assertTrue(node1.isAllowed("r1"));
+        assertTrue(node1.isAllowed("r1"));
+        watch.advance(Duration.ofMillis(100).toNanos());
+        // Evicted by the sweeper once idle
+        assertTrue(node1.isAllowed("r2"));
+        for (int request = 0; request < 1_000 && node1.numberOfResources() != 1; request++) {
+            node1.isAllowed("r2");
+        }
+        assertEquals(1, node1.numberOfResources());
+        // Gives back 8 tokens, leases 1
+        assertTrue(node1.isAllowed("r1"));
+        assertEquals(0, node1.giveBackUnused());
+        assertTrue(node2.isAllowed("r1", 7));
+        assertFalse(node2.isAllowed("r1"));
+    }
+
+    @Test
+    void should_keep_unused_tokens_when_the_store_fails() {
+        var watch = new MockWatch();
+        var store = new InMemoryTokenStore(10, 1, Duration.ofHours(1), watch);
+        var failing = new AtomicBoolean();
+        TokenStore unreliable = (resource, tokens, unused) -> {
+            if (failing.get()) throw new IllegalStateException("Unreachable");
+            return store.lease(resource, tokens, unused);
+        };
+        var node1 = new LeasingRateLimiter(unreliable, Duration.ofMillis(100), 10, watch);
+        var node2 = new LeasingRateLimiter(store, Duration.ofMillis(100), 10, watch);
+        assertTrue(node1.isAllowed("r1"));
+        // Leases the other 9 tokens, spends one
+        assertTrue(node1.isAllowed("r1"));
+        watch.advance(Duration.ofMillis(100).toNanos());
+        failing.set(true);
+        assertThrows(IllegalStateException.class, () -> node1.isAllowed("r1"));
+        failing.set(false);
+        // Gives back the 8 tokens on the next lease, leases 1
+        assertTrue(node1.isAllowed("r1"));
+        assertTrue(node2.isAllowed("r1", 7));
+        assertFalse(node2.isAllowed("r1"));
+    }
+
+    @Test
+    void should_keep_unused_tokens_of_evicted_leases_when_the_store_fails() {
+        var watch = new MockWatch();
+        var store = new InMemoryTokenStore(10, 1, Duration.ofHours(1), watch);
+        var failing = new AtomicBoolean();
+        TokenStore unreliable = (resource, tokens, unused) -> {
+            if (failing.get()) throw new IllegalStateException("Unreachable");
+            return store.lease(resource, tokens, unused);
+        };
+        var node1 = new LeasingRateLimiter(unreliable, Duration.ofMillis(100), 10, watch);
+        assertTrue(node1.isAllowed("r1"));
+        assertTrue(node1.isAllowed("r1"));
+        watch.advance(Duration.ofMillis(100).toNanos());
+        // Evicted by the sweeper once idle
+        assertTrue(node1.isAllowed("r2"));
+        for (int request = 0; request < 1_000 && node1.numberOfResources() != 1; request++) {
+            node1.isAllowed("r2");
+        }
+        assertEquals(1, node1.numberOfResources());
+        failing.set(true);
+        assertThrows(IllegalStateException.class, node1::giveBackUnused);
+        failing.set(false);
+        assertEquals(8, node1.giveBackUnused());
+    }
+
+    @Test
+    void should_deny_locally_once_the_store_runs_dry() {
+        var watch = new MockWatch();
+        var store = new InMemoryTokenStore(2, 1, Duration.ofHours(1), watch);
+        var limiter = new LeasingRateLimiter(store, Duration.ofMillis(100), 10, watch);
+        assertTrue(limiter.isAllowed("r1"));
+        assertTrue(limiter.isAllowed("r1"));
+        long roundTrips = store.roundTrips();
+        for (int request = 0; request < 100; request++) {
+            assertFalse(limiter.isAllowed("r1"), "Request #" + request);
+        }
+        assertEquals(roundTrips, store.roundTrips());
+        assertThrows(IllegalArgumentException.class, () -> limiter.isAllowed("r1", 0));
+    }
+
+    /**
+     * 4 nodes offering 370/s together to a 100/s limit with a capacity of 100, for 10 seconds.
+     */
+    @Test
+    void should_not_overadmit_across_nodes() {
+        long[] offeredPerSecond = {50, 100, 200, 20};
+        long leaseMillis = 100;
+        var result = simulate(offeredPerSecond, 100, Duration.ofMillis(leaseMillis), 10_000);
+        // At most C + R * (T + lease) over any period T, the single bucket bound being C + R * T
+        assertTrue(result.maxAdmittedPerSecond <= 100 + 100 * (1000 + leaseMillis) / 1000, result.toString());
+        assertTrue(result.admitted <= 100 + 100 * (10_000 + leaseMillis) / 1000, result.toString());
+        // Accuracy, a single bucket would admit 1100
+        assertTrue(result.admitted >= 1100 * 9 / 10, result.toString());
+        // Most decisions are local
+        assertTrue(result.roundTrips <= result.offered / 4, result.toString());
+    }
+
+    /**
+     * 4 nodes offering 80/s together to a 100/s limit, none should be denied.
+     */
+    @Test
+    void should_admit_all_below_the_limit() {
+        long[] offeredPerSecond = {20, 20, 20, 20};
+        var result = simulate(offeredPerSecond, 100, Duration.ofSeconds(1), 10_000);
+        assertEquals(result.offered, result.admitted, result.toString());
+        assertTrue(result.roundTrips <= result.offered / 10, result.toString());
+    }
+
+    private static Result simulate(long[] offeredPerSecond, long limitPerSecond, Duration lease, int millis) {
+        var watch = new MockWatch();
+        var store = new InMemoryTokenStore(limitPerSecond, limitPerSecond, Duration.ofSeconds(1), watch);
+        var nodes = new LeasingRateLimiter[offeredPerSecond.length];
+        for (int node = 0; node < nodes.length; node++) {
+            nodes[node] = new LeasingRateLimiter(store, lease, limitPerSecond, watch);
+        }
+        var result = new Result();
+        long[] admittedPerTick = new long[millis];
+        for (int tick = 0; tick < millis; tick++) {
+            for (int node = 0; node < nodes.length; node++) {
+                // Evenly spread over the ticks
+                long requests = (tick + 1) * offeredPerSecond[node] / 1000 - tick * offeredPerSecond[node] / 1000;
+                for (int request = 0; request < requests; request++) {
+                    result.offered++;
+                    if (nodes[node].isAllowed("r1")) {
+                        admittedPerTick[tick]++;
+                    }
+                }
+            }
+            watch.advance(TICK_NANOS);
+        }
+        long admittedPerSecond = 0;
+        for (int tick = 0; tick < millis; tick++) {
+            result.admitted += admittedPerTick[tick];
+            admittedPerSecond += admittedPerTick[tick] - (tick >= 1000 ? admittedPerTick[tick - 1000] : 0);
+            result.maxAdmittedPerSecond = Math.max(result.maxAdmittedPerSecond, admittedPerSecond);
+        }
+        result.roundTrips = store.roundTrips();
+        return result;
+    }
+
+    private static final class Result {
+
+        long offered;
+        long admitted;
+        long maxAdmittedPerSecond;
+        long roundTrips;
+
+        @Override
+        public String toString() {
+            return "offered=" + offered + ", admitted=" + admitted + ", maxAdmittedPerSecond=" + maxAdmittedPerSecond
+                    + ", roundTrips=" + roundTrips;
+        }
+
+    }
+
+}
@@ -0,0 +1,76 @@
+package io.github.tech0ver.ratelimiter.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HeavyHittersTest {
+
+    @Test
+    void should_keep_heavy_hitters_among_many_resources() {
+        var actualCounts = Map.of("hot", 10_000, "warm", 5_000, "lukewarm", 2_000);
+        var stream = new ArrayList<String>();
+        actualCounts.forEach((resource, count) -> stream.addAll(Collections.nCopies(count, resource)));
+        // Seen once each, far more of them than counters
+        for (int resource = 0; resource < 20_000; resource++) {
+            stream.add("cold-" + resource);
+        }
+        Collections.shuffle(stream, new Random(42));
+        var heavyHitters = new HeavyHitters(64);
+        stream.forEach(heavyHitters::add);
+        List<HeavyHitters.Entry> top = heavyHitters.top(3);
+        assertEquals(List.of("hot", "warm", "lukewarm"), top.stream().map(HeavyHitters.Entry::resource).toList());
+        for (var entry : top) {
+            int actualCount = actualCounts.get(entry.resource());
+            assertTrue(entry.count() >= actualCount, entry.toString());
+            assertTrue(entry.count() - entry.error() <= actualCount, entry.toString());
+        }
+        assertEquals(64, heavyHitters.top(100).size());
+        assertThrows(IllegalArgumentException.class, () -> new HeavyHitters(0));
+    }
+
+    @Test
+    void should_count_exactly_within_capacity() {
+        var heavyHitters = new HeavyHitters(4);
+        for (int request = 0; request < 3; request++) {
+            heavyHitters.add("r1");
+        }
+        heavyHitters.add("r2");
+        heavyHitters.add("r2");
+        heavyHitters.add("r3");
+        var top = heavyHitters.top(4);
+        assertEquals(3, top.size());
+        assertEquals("r1", top.get(0).resource());
+        assertEquals(3, top.get(0).count());
+        assertEquals(0, top.get(0).error());
+        assertEquals("r3", top.get(2).resource());
+    }
+
+    @Test
+    void should_decay_weighted_counts() {
+        var heavyHitters = new HeavyHitters(4);
+        heavyHitters.add("r1", 8);
+        heavyHitters.add("r1");
+        heavyHitters.add("r2", 4);
+        heavyHitters.add("r3");
+        heavyHitters.decay();
+        var top = heavyHitters.top(4);
+        // r3 counted down to 0 frees its counter
+        assertEquals(List.of("r1", "r2"), top.stream().map(HeavyHitters.Entry::resource).toList());
+        assertEquals(4, top.get(0).count());
+        assertEquals(2, top.get(1).count());
+        heavyHitters.add("r3", 3);
+        heavyHitters.decay();
+        assertEquals(List.of(2L, 1L, 1L), heavyHitters.top(4).stream().map(HeavyHitters.Entry::count).toList());
+        assertThrows(IllegalArgumentException.class, () -> heavyHitters.add("r1", 0));
+    }
+
+}
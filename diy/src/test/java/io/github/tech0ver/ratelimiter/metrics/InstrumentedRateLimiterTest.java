@@ -0,0 +1,102 @@
+package io.github.tech0ver.ratelimiter.metrics;
+
+import io.github.tech0ver.ratelimiter.MockWatch;
+import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.window.FixedWindowCounterRateLimiter;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InstrumentedRateLimiterTest {
+
+    @Test
+    void should_count_decisions() {
+        var limiter = new InstrumentedRateLimiter(
+                "api", new FixedWindowCounterRateLimiter(3, Duration.ofSeconds(1), new MockWatch())
+        );
+        assertTrue(limiter.isAllowed("r1", 2));
+        assertTrue(limiter.handle("r1").tryAcquire());
+        byte[] bytes = "r1".getBytes(StandardCharsets.UTF_8);
+        assertFalse(limiter.isAllowed(bytes, 0, bytes.length, 1));
+        var allowed = new BitSet();
+        limiter.isAllowed(new String[]{"r1", "r2", "r3"}, allowed);
+        var metrics = new AtomicReference<DecisionMetrics>();
+        limiter.report(metrics::set);
+        assertEquals("api", metrics.get().name());
+        assertEquals(4, metrics.get().allowed());
+        assertEquals(2, metrics.get().denied());
+        assertEquals(3, metrics.get().resources());
+    }
+
+    @Test
+    void should_time_a_sample_of_decisions() {
+        var watch = new MockWatch();
+        MyRateLimiter slow = (resource, permits) -> {
+            watch.advance(1_000);
+            return true;
+        };
+        var limiter = new InstrumentedRateLimiter("slow", slow, watch);
+        for (int request = 0; request < 8_000; request++) {
+            assertTrue(limiter.isAllowed("r1"));
+        }
+        var metrics = new AtomicReference<DecisionMetrics>();
+        limiter.report(metrics::set);
+        var latency = metrics.get().latency();
+        // About 1 of 8
+        assertTrue(latency.count() > 500 && latency.count() < 1_500, "Timed " + latency.count());
+        assertEquals(1_000, latency.max());
+        assertEquals(1_000, latency.valueAtPercentile(50));
+        assertEquals(8_000, metrics.get().allowed());
+        assertEquals(-1, metrics.get().resources());
+        // The latency is of the decisions since the previous report, the counts are not
+        limiter.report(metrics::set);
+        assertEquals(0, metrics.get().latency().count());
+        assertEquals(8_000, metrics.get().allowed());
+    }
+
+    @Test
+    void should_track_heavy_hitters() {
+        var watch = new MockWatch();
+        var limiter = new InstrumentedRateLimiter(
+                "api", new FixedWindowCounterRateLimiter(5_000, Duration.ofSeconds(1), watch), watch, 64
+        );
+        for (int resource = 0; resource < 1_000; resource++) {
+            limiter.isAllowed("r" + resource);
+        }
+        // r1 is abusive, r2 busy but within its limit
+        byte[] r1 = "r1".getBytes(StandardCharsets.UTF_8);
+        for (int request = 0; request < 8_000; request++) {
+            limiter.isAllowed(r1, 0, r1.length, 1);
+        }
+        var r2 = limiter.handle("r2");
+        for (int request = 0; request < 4_000; request++) {
+            assertTrue(r2.tryAcquire());
+        }
+        assertEquals(List.of("r1", "r2"), resources(limiter.topRequested(2)));
+        assertEquals(List.of("r1"), resources(limiter.topDenied(2)));
+        // About 3000, estimated from 1 of 8
+        long denied = limiter.topDenied(1).get(0).count();
+        assertTrue(denied > 2_000 && denied < 4_000, "Denied " + denied);
+        // Every report halves the counts
+        limiter.report(metrics -> { });
+        assertEquals(denied / 2, limiter.topDenied(1).get(0).count());
+        var untracked = new InstrumentedRateLimiter(
+                "api", new FixedWindowCounterRateLimiter(10, Duration.ofSeconds(1), watch)
+        );
+        assertThrows(IllegalStateException.class, () -> untracked.topDenied(1));
+    }
+
+    private static List<String> resources(List<HeavyHitters.Entry> entries) {
+        return entries.stream().map(HeavyHitters.Entry::resource).toList();
+    }
+
+}
@@ -0,0 +1,53 @@
+package io.github.tech0ver.ratelimiter.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void should_bucket_values_within_a_sixteenth() {
+        var random = ThreadLocalRandom.current();
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong(Long.MAX_VALUE) >>> random.nextInt(63);
+            int bucket = LatencyHistogram.bucket(value);
+            long highestValue = LatencyHistogram.highestValue(bucket);
+            assertTrue(highestValue >= value, "Value " + value);
+            assertTrue(highestValue - value <= value / 16, "Value " + value);
+            assertEquals(bucket, LatencyHistogram.bucket(highestValue), "Value " + value);
+            if (highestValue < Long.MAX_VALUE) {
+                assertEquals(bucket + 1, LatencyHistogram.bucket(highestValue + 1), "Value " + value);
+            }
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    void should_report_percentiles_of_drained_values() {
+        var histogram = new LatencyHistogram();
+        for (int value = 1; value <= 1_000; value++) {
+            histogram.record(value);
+        }
+        histogram.record(-5);
+        var snapshot = histogram.drain();
+        assertEquals(1_001, snapshot.count());
+        assertEquals(1_000, snapshot.max());
+        assertEquals(0, snapshot.valueAtPercentile(0));
+        long median = snapshot.valueAtPercentile(50);
+        assertTrue(median >= 500 && median <= 500 + 500 / 16, "Median " + median);
+        long p99 = snapshot.valueAtPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1_000, "p99 " + p99);
+        assertEquals(1_000, snapshot.valueAtPercentile(100));
+        assertThrows(IllegalArgumentException.class, () -> snapshot.valueAtPercentile(101));
+        // Drained, recording goes on from scratch
+        var empty = histogram.drain();
+        assertEquals(0, empty.count());
+        assertEquals(0, empty.valueAtPercentile(99));
+    }
+
+}
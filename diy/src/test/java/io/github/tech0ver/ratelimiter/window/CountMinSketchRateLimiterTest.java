@@ -0,0 +1,153 @@
+package io.github.tech0ver.ratelimiter.window;
+
+import io.github.tech0ver.ratelimiter.MockWatch;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CountMinSketchRateLimiterTest {
+
+    @Test
+    void should_interpolate_previous_window() {
+        int limit = 10;
+        var window = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new CountMinSketchRateLimiter(limit, window, 1024, 4, watch);
+        for (int request = 0; request < limit; request++) {
+            assertTrue(limiter.isAllowed("r1"), "Window #0 Request #" + request);
+        }
+        assertFalse(limiter.isAllowed("r1"), "Window #0 Last request");
+        // Half of the previous window is still counted
+        watch.advance(window.toNanos() * 3 / 2);
+        for (int request = 0; request < limit / 2; request++) {
+            assertTrue(limiter.isAllowed("r1"), "Window #1 Request #" + request);
+        }
+        assertFalse(limiter.isAllowed("r1"), "Window #1 Last request");
+        // Window #0 is gone, half of window #1 is still counted, i.e. 2.5 permits
+        watch.advance(window.toNanos());
+        for (int request = 0; request < limit - limit / 4; request++) {
+            assertTrue(limiter.isAllowed("r1"), "Window #2 Request #" + request);
+        }
+        assertFalse(limiter.isAllowed("r1"), "Window #2 Last request");
+    }
+
+    @Test
+    void should_not_count_denied_permits() {
+        var watch = new MockWatch();
+        var limiter = new CountMinSketchRateLimiter(10, Duration.ofSeconds(1), 1024, 4, watch);
+        assertTrue(limiter.isAllowed("r1", 6));
+        assertFalse(limiter.isAllowed("r1", 5));
+        assertFalse(limiter.isAllowed("r1", 11));
+        assertTrue(limiter.isAllowed("r1", 4));
+        assertFalse(limiter.isAllowed("r1"));
+    }
+
+    @Test
+    void should_deny_threads_lagging_behind_the_counters() {
+        var window = Duration.ofMillis(1);
+        var staleNanos = new AtomicLong(-1);
+        var watch = new MockWatch() {
+            // Read the clock before a pause
+            @Override
+            public long currentTimeNanos() {
+                long nanos = staleNanos.getAndSet(-1);
+                return nanos >= 0 ? nanos : super.currentTimeNanos();
+            }
+        };
+        var limiter = new CountMinSketchRateLimiter(3, window, 1024, 4, watch);
+        watch.advance(2 * window.toNanos() + window.toNanos() / 2);
+        assertTrue(limiter.isAllowed("r1", 3));
+        assertFalse(limiter.isAllowed("r1"));
+        // Same sketch, 2 windows behind: neither admitted nor resetting the counters
+        staleNanos.set(window.toNanos() / 2);
+        assertFalse(limiter.isAllowed("r1"));
+        assertFalse(limiter.isAllowed("r1"));
+        // 1 window behind, the counters of its previous window are ahead
+        staleNanos.set(window.toNanos() + window.toNanos() / 2);
+        assertFalse(limiter.isAllowed("r1"));
+        assertFalse(limiter.isAllowed("r1"));
+        assertTrue(limiter.isAllowed("r2", 3));
+    }
+
+    @Test
+    void should_keep_saturated_counters_saturated() {
+        var watch = new MockWatch();
+        long limit = 0xFFFF_FFFEL;
+        var limiter = new CountMinSketchRateLimiter(limit, Duration.ofSeconds(1), 1, 1, watch);
+        assertTrue(limiter.isAllowed("r1", limit));
+        // Saturates the single counter, then takes back nothing
+        assertFalse(limiter.isAllowed("r2", 2));
+        assertFalse(limiter.isAllowed("r3"));
+        assertFalse(limiter.isAllowed("r3"));
+    }
+
+    @Test
+    void should_keep_resources_apart() {
+        int limit = 5;
+        int resources = 10_000;
+        var watch = new MockWatch();
+        // e / width * N = e / 2^16 * 50_000 ~ 2 permits of overcount at most, but rarely
+        var limiter = new CountMinSketchRateLimiter(limit, Duration.ofSeconds(1), 1 << 16, 5, watch);
+        int allowed = 0;
+        for (int resource = 0; resource < resources; resource++) {
+            for (int request = 0; request < limit; request++) {
+                if (limiter.isAllowed("r" + resource)) {
+                    allowed++;
+                }
+            }
+        }
+        // Overcounting denies early, never admits beyond the limit
+        assertTrue(allowed > resources * limit * 99L / 100, "Allowed " + allowed);
+        for (int resource = 0; resource < resources; resource++) {
+            assertFalse(limiter.isAllowed("r" + resource), "Resource #" + resource);
+        }
+        assertEquals(-1, limiter.numberOfResources());
+    }
+
+    @Test
+    void should_overcount_colliding_resources_only() {
+        var watch = new MockWatch();
+        // A single counter per row, every resource collides
+        var limiter = new CountMinSketchRateLimiter(10, Duration.ofSeconds(1), 1, 3, watch);
+        assertTrue(limiter.isAllowed("r1", 6));
+        assertFalse(limiter.isAllowed("r2", 5));
+        assertTrue(limiter.isAllowed("r2", 4));
+    }
+
+    @Test
+    void should_decide_on_raw_resources() {
+        var watch = new MockWatch();
+        var limiter = new CountMinSketchRateLimiter(4, Duration.ofSeconds(1), 1024, 4, watch);
+        byte[] bytes = "xr1x".getBytes(StandardCharsets.UTF_8);
+        assertTrue(limiter.isAllowed("r1"));
+        assertTrue(limiter.isAllowed(new StringBuilder("r1"), 1));
+        assertTrue(limiter.isAllowed(bytes, 1, 2, 1));
+        assertTrue(limiter.isAllowed(ByteBuffer.wrap(bytes, 1, 2), 1));
+        assertFalse(limiter.handle("r1").tryAcquire());
+        var allowed = new BitSet();
+        limiter.isAllowed(new String[]{"r1", "r2"}, allowed);
+        assertFalse(allowed.get(0));
+        assertTrue(allowed.get(1));
+    }
+
+    @Test
+    void should_reject_invalid_arguments() {
+        var window = Duration.ofSeconds(1);
+        assertThrows(IllegalArgumentException.class, () -> new CountMinSketchRateLimiter(0, window, 1, 1));
+        assertThrows(IllegalArgumentException.class, () -> new CountMinSketchRateLimiter(1, window, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new CountMinSketchRateLimiter(1, window, 1, 0));
+        var limiter = new CountMinSketchRateLimiter(1, window, 1, 1);
+        assertThrows(IllegalArgumentException.class, () -> limiter.isAllowed("r1", 0));
+        assertThrows(NullPointerException.class, () -> limiter.isAllowed((String) null, 1));
+    }
+
+}
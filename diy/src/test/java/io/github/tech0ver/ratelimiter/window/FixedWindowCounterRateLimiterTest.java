@@ -1,14 +1,29 @@
 package io.github.tech0ver.ratelimiter.window;
 
+import io.github.tech0ver.ratelimiter.HeapLongStateTable;
 import io.github.tech0ver.ratelimiter.MockWatch;
+import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.MyRateLimiterTest;
+import io.github.tech0ver.ratelimiter.OffHeapLongStateTable;
+import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.time.Duration;
+import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
-class FixedWindowCounterRateLimiterTest {
+class FixedWindowCounterRateLimiterTest extends MyRateLimiterTest {
+
+    @Override
+    protected MyRateLimiter create(long limit, Duration window, MockWatch watch) {
+        return new FixedWindowCounterRateLimiter(limit, window, watch);
+    }
 
     /**
      * <pre>
@@ -246,4 +261,87 @@ class FixedWindowCounterRateLimiterTest {
         }
     }
 
+    @Test
+    void should_keep_counters_in_table() {
+        var window = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new FixedWindowCounterRateLimiter(3, window, watch, new HeapLongStateTable(2_048));
+        var handle = limiter.handle("r0");
+        for (int resource = 0; resource < 1_000; resource++) {
+            assertTrue(limiter.isAllowed("r" + resource, 3));
+            assertFalse(limiter.isAllowed("r" + resource));
+        }
+        assertEquals(1_000, limiter.numberOfResources());
+        watch.advance(window.toNanos());
+        // Every counter is of a past window, decisions sweep them incrementally and free their slots
+        for (int request = 0; request < 10_000; request++) {
+            limiter.isAllowed("r1");
+        }
+        assertEquals(1, limiter.numberOfResources());
+        // A stale handle claims a slot again
+        assertTrue(handle.tryAcquire(3));
+        assertFalse(limiter.isAllowed("r0"));
+        assertEquals(2, limiter.numberOfResources());
+    }
+
+    @Test
+    void should_count_afresh_once_the_window_wraps_around() {
+        var window = Duration.ofMillis(1);
+        var watch = new MockWatch();
+        var limiter = new FixedWindowCounterRateLimiter(3, window, watch);
+        var limiterInTable = new FixedWindowCounterRateLimiter(3, window, watch, new HeapLongStateTable(64));
+        for (var each : List.of(limiter, limiterInTable)) {
+            assertTrue(each.isAllowed("r1", 3));
+            assertFalse(each.isAllowed("r1"));
+        }
+        // Half way round the 32-bit window, seemingly ahead of the clock
+        watch.advance(((1L << 31) + 5) * window.toNanos());
+        for (var each : List.of(limiter, limiterInTable)) {
+            assertTrue(each.isAllowed("r1", 3));
+            assertFalse(each.isAllowed("r1"));
+        }
+    }
+
+    @Test
+    void should_restore_snapshot() throws IOException {
+        var window = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new FixedWindowCounterRateLimiter(3, window, watch);
+        assertTrue(limiter.isAllowed("r1"));
+        watch.advance(window.toNanos() / 2);
+        assertTrue(limiter.isAllowed("r1", 2));
+        assertTrue(limiter.isAllowed("r2"));
+        var snapshot = new ByteArrayOutputStream();
+        limiter.snapshot(snapshot);
+        // Another process, its watch has another origin
+        var otherWatch = new MockWatch();
+        otherWatch.advance(7 * window.toNanos() + window.toNanos() / 5);
+        var restoredLimiters = new FixedWindowCounterRateLimiter[]{
+                new FixedWindowCounterRateLimiter(3, window, otherWatch),
+                new FixedWindowCounterRateLimiter(3, window, otherWatch, new OffHeapLongStateTable(2_048))
+        };
+        for (var restored : restoredLimiters) {
+            restored.restore(new ByteArrayInputStream(snapshot.toByteArray()));
+            assertEquals(2, restored.numberOfResources());
+            assertFalse(restored.isAllowed("r1"));
+            assertTrue(restored.isAllowed("r2", 2));
+            assertFalse(restored.isAllowed("r2"));
+        }
+        // Counted in the current window only
+        otherWatch.advance(window.toNanos());
+        for (var restored : restoredLimiters) {
+            assertTrue(restored.isAllowed("r1", 3));
+        }
+    }
+
+    @Nested
+    class HeapFixedWindowCounterRateLimiterTest extends MyRateLimiterTest {
+
+        @Override
+        protected MyRateLimiter create(long limit, Duration window, MockWatch watch) {
+            return new FixedWindowCounterRateLimiter(limit, window, watch, new HeapLongStateTable(2_048));
+        }
+
+    }
+
 }
\ No newline at end of file
@@ -1,9 +1,16 @@
 package io.github.tech0ver.ratelimiter.window;
 
+import io.github.tech0ver.ratelimiter.HeapLongStateTable;
 import io.github.tech0ver.ratelimiter.MockWatch;
+import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.MyRateLimiterTest;
+import io.github.tech0ver.ratelimiter.OffHeapLongStateTable;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.time.Duration;
 
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -12,7 +19,12 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 class SlidingWindowCounterRateLimiterTest {
 
     @Nested
-    class BucketedCounterTest {
+    class BucketedCounterTest extends MyRateLimiterTest {
+
+        @Override
+        protected MyRateLimiter create(long limit, Duration window, MockWatch watch) {
+            return SlidingWindowCounterRateLimiter.createBucketed(limit, window, 5, watch);
+        }
 
         /**
          * <pre>
@@ -281,10 +293,66 @@ class SlidingWindowCounterRateLimiterTest {
             }
         }
 
+        @Test
+        void should_expire_oldest_bucket_only_with_manyBuckets() {
+            int limit = 10;
+            var window = Duration.ofSeconds(1);
+            int numberOfBuckets = 100;
+            long bucketSizeNanos = window.toNanos() / numberOfBuckets;
+            var watch = new MockWatch();
+            var limiter = SlidingWindowCounterRateLimiter.createBucketed(limit, window, numberOfBuckets, watch);
+            for (int request = 0; request < limit; request++) {
+                assertTrue(limiter.isAllowed("r1"), "Bucket #0 Request #" + request);
+            }
+            watch.advance(bucketSizeNanos);
+            assertFalse(limiter.isAllowed("r1"), "Bucket #1");
+            watch.advance((numberOfBuckets - 2) * bucketSizeNanos);
+            assertFalse(limiter.isAllowed("r1"), "Bucket #99");
+            watch.advance(bucketSizeNanos);
+            // Bucket #0 has left the window
+            for (int request = 0; request < limit; request++) {
+                assertTrue(limiter.isAllowed("r1"), "Bucket #100 Request #" + request);
+            }
+            assertFalse(limiter.isAllowed("r1"), "Bucket #100 Last request");
+        }
+
+        @Test
+        void should_restore_snapshot() throws IOException {
+            var window = Duration.ofSeconds(1);
+            var watch = new MockWatch();
+            var limiter = SlidingWindowCounterRateLimiter.createBucketed(3, window, 5, watch);
+            assertTrue(limiter.isAllowed("r1", 3));
+            watch.advance(window.toNanos() / 2);
+            var snapshot = new ByteArrayOutputStream();
+            limiter.snapshot(snapshot);
+            // Another process, its watch has another origin
+            var otherWatch = new MockWatch();
+            otherWatch.advance(10 * window.toNanos() + window.toNanos() / 2);
+            var restored = SlidingWindowCounterRateLimiter.createBucketed(3, window, 5, otherWatch);
+            restored.restore(new ByteArrayInputStream(snapshot.toByteArray()));
+            assertFalse(restored.isAllowed("r1"));
+            otherWatch.advance(window.toNanos() * 2 / 5);
+            assertFalse(restored.isAllowed("r1"));
+            // The bucket of the requests has left the window
+            otherWatch.advance(window.toNanos() / 10);
+            assertTrue(restored.isAllowed("r1", 3));
+        }
+
     }
 
     @Nested
-    class LinearInterpolatedCounterTest {
+    class LinearInterpolatedCounterTest extends MyRateLimiterTest {
+
+        @Override
+        protected SlidingWindowCounterRateLimiter create(long limit, Duration window, MockWatch watch) {
+            return SlidingWindowCounterRateLimiter.createLinearInterpolated(limit, window, watch);
+        }
+
+        // The previous window still counts during the next one
+        @Override
+        protected long idleNanos(Duration window) {
+            return 2 * window.toNanos();
+        }
 
         /**
          * <pre>
@@ -301,7 +369,7 @@ class SlidingWindowCounterRateLimiterTest {
             int limit = 15;
             var window = Duration.ofSeconds(1);
             var watch = new MockWatch();
-            var limiter = SlidingWindowCounterRateLimiter.createLinearInterpolated(limit, window, watch);
+            var limiter = create(limit, window, watch);
             int numberOfBuckets = 5;
             // window 0
             for (int bucket = 0; bucket < numberOfBuckets; bucket++) {
@@ -360,7 +428,7 @@ class SlidingWindowCounterRateLimiterTest {
             int limit = 15;
             var window = Duration.ofSeconds(1);
             var watch = new MockWatch();
-            var limiter = SlidingWindowCounterRateLimiter.createLinearInterpolated(limit, window, watch);
+            var limiter = create(limit, window, watch);
             int numberOfBuckets = 5;
             // window 0
             for (int bucket = 0; bucket < numberOfBuckets; bucket++) {
@@ -435,7 +503,7 @@ class SlidingWindowCounterRateLimiterTest {
             int limit = 15;
             var window = Duration.ofSeconds(1);
             var watch = new MockWatch();
-            var limiter = SlidingWindowCounterRateLimiter.createLinearInterpolated(limit, window, watch);
+            var limiter = create(limit, window, watch);
             int numberOfBuckets = 5;
             // window 0
             for (int bucket = numberOfBuckets - 1; bucket >= 0; bucket--) {
@@ -493,7 +561,7 @@ class SlidingWindowCounterRateLimiterTest {
             int limit = 15;
             var window = Duration.ofSeconds(1);
             var watch = new MockWatch();
-            var limiter = SlidingWindowCounterRateLimiter.createLinearInterpolated(limit, window, watch);
+            var limiter = create(limit, window, watch);
             int numberOfBuckets = 5;
             // window 0
             for (int bucket = 0; bucket < numberOfBuckets; bucket++) {
@@ -575,6 +643,80 @@ class SlidingWindowCounterRateLimiterTest {
             }
         }
 
+        @Test
+        void should_restore_snapshot() throws IOException {
+            var window = Duration.ofSeconds(1);
+            var watch = new MockWatch();
+            var limiter = create(3, window, watch);
+            watch.advance(window.toNanos() / 2);
+            assertTrue(limiter.isAllowed("r1", 3));
+            var snapshot = new ByteArrayOutputStream();
+            limiter.snapshot(snapshot);
+            // Another process, its watch has another origin
+            var otherWatch = new MockWatch();
+            otherWatch.advance(10 * window.toNanos() + window.toNanos() / 2);
+            var restored = create(3, window, otherWatch);
+            restored.restore(new ByteArrayInputStream(snapshot.toByteArray()));
+            assertFalse(restored.isAllowed("r1"));
+            // Half of the previous window weighs 1.5
+            otherWatch.advance(window.toNanos());
+            assertTrue(restored.isAllowed("r1"));
+            assertTrue(restored.isAllowed("r1"));
+            assertFalse(restored.isAllowed("r1"));
+        }
+
+    }
+
+    @Nested
+    class LockFreeLinearInterpolatedCounterTest extends LinearInterpolatedCounterTest {
+
+        @Override
+        protected SlidingWindowCounterRateLimiter create(long limit, Duration window, MockWatch watch) {
+            return SlidingWindowCounterRateLimiter.createLockFreeLinearInterpolated(limit, window, watch);
+        }
+
+        @Test
+        void should_count_afresh_once_the_window_wraps_around() {
+            var window = Duration.ofMillis(1);
+            var watch = new MockWatch();
+            var limiter = create(3, window, watch);
+            assertTrue(limiter.isAllowed("r1", 3));
+            assertFalse(limiter.isAllowed("r1"));
+            // Half way round the 24-bit window, seemingly ahead of the clock
+            watch.advance(((1L << 23) + 5) * window.toNanos());
+            assertTrue(limiter.isAllowed("r1", 3));
+            assertFalse(limiter.isAllowed("r1"));
+            // All the way round
+            watch.advance(((1L << 24) + 5) * window.toNanos());
+            assertTrue(limiter.isAllowed("r1", 3));
+        }
+
+    }
+
+    @Nested
+    class OffHeapLockFreeLinearInterpolatedCounterTest extends LockFreeLinearInterpolatedCounterTest {
+
+        @Override
+        protected SlidingWindowCounterRateLimiter create(long limit, Duration window, MockWatch watch) {
+            // Seeded alike, so that they restore the snapshots of each other
+            return SlidingWindowCounterRateLimiter.createLockFreeLinearInterpolated(
+                    limit, window, watch, new OffHeapLongStateTable(2_048, 42)
+            );
+        }
+
+    }
+
+    @Nested
+    class HeapLockFreeLinearInterpolatedCounterTest extends LockFreeLinearInterpolatedCounterTest {
+
+        @Override
+        protected SlidingWindowCounterRateLimiter create(long limit, Duration window, MockWatch watch) {
+            // Seeded alike, so that they restore the snapshots of each other
+            return SlidingWindowCounterRateLimiter.createLockFreeLinearInterpolated(
+                    limit, window, watch, new HeapLongStateTable(2_048, 42)
+            );
+        }
+
     }
 
-}
\ No newline at end of file
+}
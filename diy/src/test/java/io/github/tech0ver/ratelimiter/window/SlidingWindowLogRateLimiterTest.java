@@ -1,14 +1,27 @@
 package io.github.tech0ver.ratelimiter.window;
 
 import io.github.tech0ver.ratelimiter.MockWatch;
+import io.github.tech0ver.ratelimiter.MyRateLimiter;
+import io.github.tech0ver.ratelimiter.MyRateLimiterTest;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
-class SlidingWindowLogRateLimiterTest {
+class SlidingWindowLogRateLimiterTest extends MyRateLimiterTest {
+
+    @Override
+    protected MyRateLimiter create(long limit, Duration window, MockWatch watch) {
+        return new SlidingWindowLogRateLimiter((int) limit, window, watch);
+    }
 
     /**
      * <pre>
@@ -277,4 +290,84 @@ class SlidingWindowLogRateLimiterTest {
         }
     }
 
+    @Test
+    void should_grow_and_wrap_log_beyond_initial_capacity() {
+        var window = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new SlidingWindowLogRateLimiter(20, window, watch);
+        assertTrue(limiter.isAllowed("r1", 6));
+        watch.advance(Duration.ofMillis(100).toNanos());
+        // Beyond the initial capacity of 8, grows
+        assertTrue(limiter.isAllowed("r1", 6));
+        watch.advance(Duration.ofMillis(900).toNanos());
+        // The first 6 expired, the next ones wrap around the head, then grow while wrapped
+        assertFalse(limiter.isAllowed("r1", 15));
+        assertTrue(limiter.isAllowed("r1", 14));
+        assertFalse(limiter.isAllowed("r1"));
+        watch.advance(Duration.ofMillis(100).toNanos());
+        // Partially expired, in the middle of the wrapped log
+        assertFalse(limiter.isAllowed("r1", 7));
+        assertTrue(limiter.isAllowed("r1", 6));
+        assertFalse(limiter.isAllowed("r1"));
+        watch.advance(Duration.ofMillis(899).toNanos());
+        assertFalse(limiter.isAllowed("r1"));
+        watch.advance(Duration.ofMillis(1).toNanos());
+        assertFalse(limiter.isAllowed("r1", 15));
+        assertTrue(limiter.isAllowed("r1", 14));
+        assertFalse(limiter.isAllowed("r1"));
+    }
+
+    @Test
+    void should_decide_as_a_plain_log_of_timestamps() {
+        int limit = 50;
+        var window = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new SlidingWindowLogRateLimiter(limit, window, watch);
+        // Every timestamp still in the window, oldest first
+        var timestamps = new ArrayDeque<Long>();
+        var random = new Random(42);
+        for (int request = 0; request < 100_000; request++) {
+            long nowNanos = watch.currentTimeNanos();
+            while (!timestamps.isEmpty() && nowNanos - timestamps.peekFirst() >= window.toNanos()) {
+                timestamps.removeFirst();
+            }
+            int permits = 1 + random.nextInt(5);
+            boolean allowed = timestamps.size() + permits <= limit;
+            if (allowed) {
+                for (int permit = 0; permit < permits; permit++) {
+                    timestamps.addLast(nowNanos);
+                }
+            }
+            assertEquals(allowed, limiter.isAllowed("r1", permits), "Request #" + request);
+            watch.advance(random.nextInt(20_000_000));
+        }
+    }
+
+    @Test
+    void should_restore_snapshot() throws IOException {
+        var window = Duration.ofSeconds(1);
+        var watch = new MockWatch();
+        var limiter = new SlidingWindowLogRateLimiter(3, window, watch);
+        assertTrue(limiter.isAllowed("r1"));
+        assertTrue(limiter.isAllowed("r2"));
+        watch.advance(window.toNanos() / 2);
+        assertTrue(limiter.isAllowed("r1", 2));
+        watch.advance(window.toNanos() / 2);
+        var snapshot = new ByteArrayOutputStream();
+        limiter.snapshot(snapshot);
+        // Another process, its watch has another origin
+        var otherWatch = new MockWatch();
+        otherWatch.advance(12_345_678_901L);
+        var restored = new SlidingWindowLogRateLimiter(3, window, otherWatch);
+        restored.restore(new ByteArrayInputStream(snapshot.toByteArray()));
+        // r2 had expired
+        assertEquals(1, restored.numberOfResources());
+        assertTrue(restored.isAllowed("r1"));
+        assertFalse(restored.isAllowed("r1"));
+        assertTrue(restored.isAllowed("r2", 3));
+        otherWatch.advance(window.toNanos() / 2);
+        assertTrue(restored.isAllowed("r1", 2));
+        assertFalse(restored.isAllowed("r1"));
+    }
+
 }
\ No newline at end of file